@@ -0,0 +1,157 @@
+package libs.java.extension.distributedmap.benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.codec.JsonValueCodec;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.redis.DistributedRedisMap;
+import libs.java.extension.distributedmap.redis.RedisCommand;
+import libs.java.extension.distributedmap.redis.RedisEventFrame;
+import libs.java.extension.distributedmap.redis.RedisMapEventSubscriber;
+import redis.clients.jedis.Jedis;
+
+/**
+ * Event handling without network, frame building as done by
+ * RedisMapEventPublisher and message parsing of
+ * {@link RedisMapEventSubscriber#onMessage(byte[], byte[])}. Subscriber is not
+ * started, it parses messages and applies them to local map of a map
+ * connected to {@link RespServer}.
+ *
+ * @author Kuldeep
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventBenchmark {
+
+	/**
+	 * Events waiting for apply thread before onMessage waits
+	 */
+	private static final int MAX_QUEUED = 1000;
+
+	/**
+	 * Characters of value data
+	 */
+	@Param({ "100", "10000" })
+	public int valueSize;
+
+	/**
+	 * Elements per event
+	 */
+	@Param({ "1", "100" })
+	public int batchSize;
+
+	/**
+	 * Max keys in local map of receiving map
+	 */
+	@Param({ "10000" })
+	public int localKeyLimit;
+
+	/**
+	 * Redis stand-in
+	 */
+	private RespServer server;
+
+	/**
+	 * Map receiving events
+	 */
+	private DistributedRedisMap<String, Payload> map;
+
+	/**
+	 * Subscriber under test
+	 */
+	private RedisMapEventSubscriber<Payload> subscriber;
+
+	/**
+	 * Encoded elements of event
+	 */
+	private Map<String, byte[]> elements;
+
+	/**
+	 * Encoded event, of another map instance
+	 */
+	private byte[] frame;
+
+	/**
+	 * Channel
+	 */
+	private byte[] channel;
+
+	/**
+	 * Build elements and event
+	 *
+	 * @throws Exception
+	 *             if server can't be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new RespServer();
+		map = new DistributedRedisMap<String, Payload>("events", null, localKeyLimit, Payload.class,
+				server.getHost(), server.getPort(), null, new DistributedMapConfig());
+		ValueCodec<Payload> codec = new JsonValueCodec<Payload>(Payload.class);
+		elements = new LinkedHashMap<>();
+		for (int i = 0; i < batchSize; i++) {
+			elements.put("key-" + i, codec.encode(new Payload(i, valueSize)));
+		}
+		frame = RedisEventFrame.encode(RedisCommand.PUT, 1L, elements);
+		channel = "events".getBytes(StandardCharsets.UTF_8);
+		// not connected, subscriber is not started
+		subscriber = new RedisMapEventSubscriber<Payload>("events", map, codec,
+				new Jedis(server.getHost(), server.getPort()), 2L, null, map.getMetrics());
+	}
+
+	/**
+	 * Close map and server
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		subscriber.close();
+		map.close();
+		server.close();
+	}
+
+	/**
+	 * Build event frame
+	 *
+	 * @return frame
+	 */
+	@Benchmark
+	public byte[] encode() {
+		return RedisEventFrame.encode(RedisCommand.PUT, 1L, elements);
+	}
+
+	/**
+	 * Parse event and hand it to apply thread. Waits while apply thread is
+	 * behind, so queue of subscriber stays bounded
+	 */
+	@Benchmark
+	public void onMessage() {
+		subscriber.onMessage(channel, frame);
+		while (subscriber.getQueueDepth() > MAX_QUEUED) {
+			Thread.yield();
+		}
+	}
+
+}
@@ -0,0 +1,207 @@
+package libs.java.extension.distributedmap.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.redis.DistributedRedisMap;
+
+/**
+ * Map operations against {@link RespServer}. Reads of keys in local map are
+ * served locally, so get measures local tier when key count is within local
+ * key limit and redis round trip otherwise.
+ *
+ * @author Kuldeep
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+
+	/**
+	 * Characters of value data
+	 */
+	@Param({ "100", "10000" })
+	public int valueSize;
+
+	/**
+	 * Keys written before measurement
+	 */
+	@Param({ "1000", "100000" })
+	public int keyCount;
+
+	/**
+	 * Max keys in local map
+	 */
+	@Param({ "10000" })
+	public int localKeyLimit;
+
+	/**
+	 * Entries per putAll
+	 */
+	@Param({ "100" })
+	public int batchSize;
+
+	/**
+	 * Redis stand-in
+	 */
+	private RespServer server;
+
+	/**
+	 * Map
+	 */
+	private DistributedRedisMap<String, Payload> map;
+
+	/**
+	 * Keys
+	 */
+	private String[] keys;
+
+	/**
+	 * Value written by put
+	 */
+	private Payload value;
+
+	/**
+	 * Entries written by putAll
+	 */
+	private Map<String, Payload> batch;
+
+	/**
+	 * Start server and fill map
+	 *
+	 * @throws Exception
+	 *             if server can't be started
+	 */
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new RespServer();
+		DistributedMapConfig config = new DistributedMapConfig();
+		config.setNearCache(true);
+		map = new DistributedRedisMap<String, Payload>("bench", null, localKeyLimit, Payload.class,
+				server.getHost(), server.getPort(), null, config);
+		keys = new String[keyCount];
+		Map<String, Payload> fill = new HashMap<>();
+		for (int i = 0; i < keyCount; i++) {
+			keys[i] = "key-" + i;
+			fill.put(keys[i], new Payload(i, valueSize));
+			if (fill.size() == 1000) {
+				map.putAll(fill);
+				fill.clear();
+			}
+		}
+		map.putAll(fill);
+		value = new Payload(-1, valueSize);
+		batch = new HashMap<>();
+		for (int i = 0; i < batchSize; i++) {
+			batch.put(keys[i % keyCount], new Payload(i, valueSize));
+		}
+	}
+
+	/**
+	 * Close map and server
+	 */
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		map.close();
+		server.close();
+	}
+
+	/**
+	 * Random key
+	 *
+	 * @return key
+	 */
+	private String key() {
+		return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+	}
+
+	/**
+	 * Get of random key
+	 *
+	 * @return value
+	 */
+	@Benchmark
+	public Payload get() {
+		return map.get(key());
+	}
+
+	/**
+	 * Put of random key
+	 *
+	 * @return previous value
+	 */
+	@Benchmark
+	public Payload put() {
+		return map.put(key(), value);
+	}
+
+	/**
+	 * Put of batch
+	 */
+	@Benchmark
+	public void putAll() {
+		map.putAll(batch);
+	}
+
+	/**
+	 * Remove and put back random key, so key count stays same
+	 *
+	 * @return removed value
+	 */
+	@Benchmark
+	public Payload remove() {
+		String key = key();
+		Payload removed = map.remove(key);
+		map.put(key, value);
+		return removed;
+	}
+
+	/**
+	 * Iterate all keys
+	 *
+	 * @param blackhole
+	 *            consumes keys
+	 */
+	@Benchmark
+	public void keySet(Blackhole blackhole) {
+		for (String key : map.keySet()) {
+			blackhole.consume(key);
+		}
+	}
+
+	/**
+	 * Iterate all entries with values
+	 *
+	 * @param blackhole
+	 *            consumes values
+	 */
+	@Benchmark
+	public void entrySet(Blackhole blackhole) {
+		for (Map.Entry<String, Payload> entry : map.entrySet()) {
+			blackhole.consume(entry.getValue());
+		}
+	}
+
+}
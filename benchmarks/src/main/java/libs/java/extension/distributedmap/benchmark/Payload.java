@@ -0,0 +1,82 @@
+package libs.java.extension.distributedmap.benchmark;
+
+/**
+ * Value stored by benchmarks, a id and data of configured size
+ *
+ * @author Kuldeep
+ *
+ */
+public class Payload {
+
+	/**
+	 * Id
+	 */
+	private long id;
+
+	/**
+	 * Data
+	 */
+	private String data;
+
+	/**
+	 * Constructor for codec
+	 */
+	public Payload() {
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param id
+	 *            id
+	 * @param size
+	 *            characters of data
+	 */
+	public Payload(long id, int size) {
+		this.id = id;
+		StringBuilder builder = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			builder.append((char) ('a' + (id + i) % 26));
+		}
+		this.data = builder.toString();
+	}
+
+	/**
+	 * Id
+	 *
+	 * @return id
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Set id
+	 *
+	 * @param id
+	 *            id
+	 */
+	public void setId(long id) {
+		this.id = id;
+	}
+
+	/**
+	 * Data
+	 *
+	 * @return data
+	 */
+	public String getData() {
+		return data;
+	}
+
+	/**
+	 * Set data
+	 *
+	 * @param data
+	 *            data
+	 */
+	public void setData(String data) {
+		this.data = data;
+	}
+
+}
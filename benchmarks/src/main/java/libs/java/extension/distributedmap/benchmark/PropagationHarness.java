@@ -0,0 +1,300 @@
+package libs.java.extension.distributedmap.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.redis.DistributedRedisMap;
+
+/**
+ * Load harness of event propagation. Starts {@link RespServer} and N
+ * {@link PropagationNode}s, each a map instance in its own JVM, which drive a
+ * read/write mix on same keys. Reports per node throughput, latency from a
+ * write on another node to its arrival in local map, and max depth of
+ * publisher and subscriber queues (a growing subscriber queue means events
+ * arrive faster than they are applied).
+ *
+ * After load stops and a settle time, local map of every node is compared
+ * with redis, keys with a different value (or present locally but removed)
+ * are counted as divergent.
+ *
+ * Settings are given as name=value arguments, e.g.
+ *
+ * <pre>
+ * java -cp benchmarks.jar libs.java.extension.distributedmap.benchmark.PropagationHarness nodes=8 rate=5000 writeRatio=0.5
+ * </pre>
+ *
+ * nodes (4), threads per node (2), durationSeconds (30), keys (10000),
+ * valueSize (1000), writeRatio (0.2), removeRatio (0), rate in operations per
+ * second per node, 0 for no limit (0), localKeyLimit (10000),
+ * publishWindowMillis (0), compressionThresholdBytes (0), settleMillis
+ * (2000), jvmArgs passed to nodes separated by space ("-Xmx512m").
+ *
+ * @author Kuldeep
+ *
+ */
+public class PropagationHarness {
+
+	/**
+	 * Settings with defaults
+	 *
+	 * @param args
+	 *            arguments
+	 * @param from
+	 *            first name=value argument
+	 * @return settings
+	 */
+	static Properties settings(String[] args, int from) {
+		Properties settings = new Properties();
+		settings.setProperty("nodes", "4");
+		settings.setProperty("threads", "2");
+		settings.setProperty("durationSeconds", "30");
+		settings.setProperty("keys", "10000");
+		settings.setProperty("valueSize", "1000");
+		settings.setProperty("writeRatio", "0.2");
+		settings.setProperty("removeRatio", "0");
+		settings.setProperty("rate", "0");
+		settings.setProperty("localKeyLimit", "10000");
+		settings.setProperty("publishWindowMillis", "0");
+		settings.setProperty("compressionThresholdBytes", "0");
+		settings.setProperty("settleMillis", "2000");
+		settings.setProperty("jvmArgs", "-Xmx512m");
+		for (int i = from; i < args.length; i++) {
+			int equals = args[i].indexOf('=');
+			if (equals < 0 || !settings.containsKey(args[i].substring(0, equals))) {
+				throw new IllegalStateException("Unknown setting " + args[i]);
+			}
+			settings.setProperty(args[i].substring(0, equals), args[i].substring(equals + 1));
+		}
+		return settings;
+	}
+
+	/**
+	 * Node process and its streams
+	 */
+	private static class Node {
+
+		/**
+		 * Process
+		 */
+		private final Process process;
+
+		/**
+		 * Lines printed by node
+		 */
+		private final BufferedReader out;
+
+		/**
+		 * Commands to node
+		 */
+		private final PrintWriter in;
+
+		/**
+		 * File node dumps local map to
+		 */
+		private final File dump;
+
+		/**
+		 * Fields of RESULT line
+		 */
+		private long[] result;
+
+		/**
+		 * Constructor
+		 *
+		 * @param process
+		 *            process
+		 * @param dump
+		 *            dump file
+		 */
+		Node(Process process, File dump) {
+			this.process = process;
+			this.dump = dump;
+			this.out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+			this.in = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8),
+					true);
+		}
+
+		/**
+		 * Wait for a line starting with expected word, other output of node
+		 * is printed
+		 *
+		 * @param expected
+		 *            first word
+		 * @return line
+		 * @throws IOException
+		 *             if node exits
+		 */
+		String await(String expected) throws IOException {
+			String line;
+			while ((line = out.readLine()) != null) {
+				if (line.startsWith(expected)) {
+					return line;
+				}
+				System.out.println(line);
+			}
+			throw new IOException("Node exited before " + expected);
+		}
+	}
+
+	/**
+	 * Run harness
+	 *
+	 * @param args
+	 *            name=value settings
+	 * @throws Exception
+	 *             on failure
+	 */
+	public static void main(String[] args) throws Exception {
+		Properties settings = settings(args, 0);
+		int count = Integer.parseInt(settings.getProperty("nodes"));
+		List<Node> nodes = new ArrayList<>();
+		try (RespServer server = new RespServer()) {
+			for (int i = 0; i < count; i++) {
+				nodes.add(start(server, settings, i));
+			}
+			for (Node node : nodes) {
+				node.await("READY");
+			}
+			System.out.println(settings);
+			for (Node node : nodes) {
+				node.in.println("GO");
+			}
+			for (Node node : nodes) {
+				node.await("DONE");
+			}
+			// events still in flight are applied meanwhile
+			Thread.sleep(Long.parseLong(settings.getProperty("settleMillis")));
+			for (Node node : nodes) {
+				node.in.println("REPORT");
+			}
+			for (Node node : nodes) {
+				String[] fields = node.await("RESULT").split(" ");
+				node.result = new long[fields.length - 1];
+				for (int i = 1; i < fields.length; i++) {
+					node.result[i - 1] = Long.parseLong(fields[i]);
+				}
+				node.process.waitFor();
+			}
+			report(server, settings, nodes);
+		} finally {
+			for (Node node : nodes) {
+				node.process.destroy();
+				node.dump.delete();
+			}
+		}
+	}
+
+	/**
+	 * Start node JVM
+	 *
+	 * @param server
+	 *            redis stand-in
+	 * @param settings
+	 *            settings
+	 * @param index
+	 *            node number
+	 * @return node
+	 * @throws IOException
+	 *             if JVM can't be started
+	 */
+	private static Node start(RespServer server, Properties settings, int index) throws IOException {
+		File dump = File.createTempFile("propagation-" + index + "-", ".txt");
+		List<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		for (String arg : settings.getProperty("jvmArgs").trim().split("\\s+")) {
+			if (!arg.isEmpty()) {
+				command.add(arg);
+			}
+		}
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(PropagationNode.class.getName());
+		command.add(server.getHost());
+		command.add(String.valueOf(server.getPort()));
+		command.add(dump.getPath());
+		for (String name : settings.stringPropertyNames()) {
+			command.add(name + "=" + settings.getProperty(name));
+		}
+		ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return new Node(builder.start(), dump);
+	}
+
+	/**
+	 * Print results and divergence of local maps from redis
+	 *
+	 * @param server
+	 *            redis stand-in
+	 * @param settings
+	 *            settings
+	 * @param nodes
+	 *            nodes with results
+	 * @throws IOException
+	 *             if dump can't be read
+	 */
+	private static void report(RespServer server, Properties settings, List<Node> nodes) throws IOException {
+		DistributedMapConfig config = new DistributedMapConfig();
+		config.setNearCache(false);
+		config.setCompressionThresholdBytes(Integer.parseInt(settings.getProperty("compressionThresholdBytes")));
+		DistributedRedisMap<String, Payload> redis = new DistributedRedisMap<String, Payload>(
+				PropagationNode.MAP_NAME, null, 0, Payload.class, server.getHost(), server.getPort(), null, config);
+		try {
+			System.out.println(String.format("%-5s %10s %10s %10s %10s %10s %10s %10s %10s %8s %8s %10s", "node",
+					"ops/s", "writes/s", "applied", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us", "pub q",
+					"sub q", "divergent"));
+			long totalOps = 0, totalApplied = 0, totalDivergent = 0;
+			double seconds = 0;
+			for (int i = 0; i < nodes.size(); i++) {
+				long[] r = nodes.get(i).result;
+				double elapsed = r[0] / 1e9;
+				long ops = r[1] + r[2] + r[3];
+				long divergent = divergent(redis, nodes.get(i).dump);
+				totalOps += ops;
+				totalApplied += r[4];
+				totalDivergent += divergent;
+				seconds = Math.max(seconds, elapsed);
+				System.out.println(String.format("%-5d %10.0f %10.0f %10d %10d %10d %10d %10d %10d %8d %8d %10d", i,
+						ops / elapsed, r[2] / elapsed, r[4], r[5], r[6], r[7], r[8], r[9], r[10], r[11],
+						divergent));
+			}
+			System.out.println(String.format("total %10.0f %10s %10d %76d", totalOps / seconds, "", totalApplied,
+					totalDivergent));
+		} finally {
+			redis.close();
+		}
+	}
+
+	/**
+	 * Count keys of a local map dump with a value different from redis
+	 *
+	 * @param redis
+	 *            map reading redis only
+	 * @param dump
+	 *            "key id" lines
+	 * @return divergent keys
+	 * @throws IOException
+	 *             if dump can't be read
+	 */
+	private static long divergent(DistributedRedisMap<String, Payload> redis, File dump) throws IOException {
+		long divergent = 0;
+		for (String line : Files.readAllLines(dump.toPath(), StandardCharsets.UTF_8)) {
+			int space = line.indexOf(' ');
+			Payload value = redis.get(line.substring(0, space));
+			if (value == null || value.getId() != Long.parseLong(line.substring(space + 1))) {
+				divergent++;
+			}
+		}
+		return divergent;
+	}
+
+}
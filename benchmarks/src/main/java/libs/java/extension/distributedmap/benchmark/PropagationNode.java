@@ -0,0 +1,370 @@
+package libs.java.extension.distributedmap.benchmark;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.metrics.DefaultMapMetrics;
+import libs.java.extension.distributedmap.metrics.LatencyHistogram;
+import libs.java.extension.distributedmap.redis.DistributedRedisMap;
+
+/**
+ * One map instance of {@link PropagationHarness}, run in its own JVM. Drives a
+ * read/write mix on shared keys and measures how long after a write by
+ * another node its value reaches local map of this node.
+ *
+ * Values carry write time in microseconds as {@link Payload#getId()}. Local
+ * map is a {@link ConcurrentHashMap} which records, for values put by
+ * subscriber (any thread other than driver threads), time since write. Nodes
+ * run on one host, so their clocks are same.
+ *
+ * Node talks to harness by lines: prints READY, waits for GO, runs, prints
+ * DONE, waits for REPORT, writes local map to dump file and prints RESULT.
+ *
+ * @author Kuldeep
+ *
+ */
+public class PropagationNode {
+
+	/**
+	 * Map name used by all nodes
+	 */
+	static final String MAP_NAME = "propagation";
+
+	/**
+	 * Interval of queue depth sampling
+	 */
+	private static final long SAMPLE_MILLIS = 50;
+
+	/**
+	 * Threads driving operations
+	 */
+	private static final ThreadLocal<Boolean> DRIVER = new ThreadLocal<>();
+
+	/**
+	 * Propagation latency, microseconds
+	 */
+	private final LatencyHistogram lag = new LatencyHistogram();
+
+	/**
+	 * Operations done
+	 */
+	private final LongAdder reads = new LongAdder(), writes = new LongAdder(), removes = new LongAdder();
+
+	/**
+	 * Max depth of publisher and subscriber queue seen
+	 */
+	private final AtomicLong maxPublisherQueue = new AtomicLong(), maxSubscriberQueue = new AtomicLong();
+
+	/**
+	 * Time drivers ran, nanoseconds
+	 */
+	private long elapsedNanos;
+
+	/**
+	 * Set when drivers should stop
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * Settings, see {@link PropagationHarness}
+	 */
+	private final Properties settings;
+
+	/**
+	 * Metrics of map, queue gauges are sampled
+	 */
+	private final DefaultMapMetrics metrics = new DefaultMapMetrics();
+
+	/**
+	 * Map
+	 */
+	private DistributedRedisMap<String, Payload> map;
+
+	/**
+	 * Constructor
+	 *
+	 * @param settings
+	 *            settings
+	 */
+	PropagationNode(Properties settings) {
+		this.settings = settings;
+	}
+
+	/**
+	 * Current time in microseconds
+	 *
+	 * @return microseconds since epoch
+	 */
+	static long micros() {
+		Instant now = Clock.systemUTC().instant();
+		return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+	}
+
+	/**
+	 * Integer setting
+	 *
+	 * @param name
+	 *            name
+	 * @return value
+	 */
+	private int intSetting(String name) {
+		return Integer.parseInt(settings.getProperty(name));
+	}
+
+	/**
+	 * Decimal setting
+	 *
+	 * @param name
+	 *            name
+	 * @return value
+	 */
+	private double doubleSetting(String name) {
+		return Double.parseDouble(settings.getProperty(name));
+	}
+
+	/**
+	 * Connect map
+	 *
+	 * @param host
+	 *            redis host
+	 * @param port
+	 *            redis port
+	 */
+	void connect(String host, int port) {
+		DistributedMapConfig config = new DistributedMapConfig();
+		config.setNearCache(true);
+		config.setMetrics(metrics);
+		config.setPublishWindowMillis(Long.parseLong(settings.getProperty("publishWindowMillis")));
+		config.setCompressionThresholdBytes(intSetting("compressionThresholdBytes"));
+		map = new DistributedRedisMap<String, Payload>(MAP_NAME, new ObservedMap(), intSetting("localKeyLimit"),
+				Payload.class, host, port, null, config);
+	}
+
+	/**
+	 * Drive operations for configured duration
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted
+	 */
+	void run() throws InterruptedException {
+		int threads = intSetting("threads");
+		final int keys = intSetting("keys");
+		final int valueSize = intSetting("valueSize");
+		final double writeRatio = doubleSetting("writeRatio");
+		final double removeRatio = doubleSetting("removeRatio");
+		int rate = intSetting("rate");
+		// time between operations of one thread, 0 for no limit
+		final long interval = rate > 0 ? 1000000000L * threads / rate : 0;
+		List<Thread> drivers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			Thread driver = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					DRIVER.set(Boolean.TRUE);
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					long next = System.nanoTime();
+					while (!stopped) {
+						if (interval > 0) {
+							next += interval;
+							long wait = next - System.nanoTime();
+							if (wait > 0) {
+								LockSupport.parkNanos(wait);
+							}
+						}
+						String key = "key-" + random.nextInt(keys);
+						double p = random.nextDouble();
+						try {
+							if (p < writeRatio) {
+								map.put(key, new Payload(micros(), valueSize));
+								writes.increment();
+							} else if (p < writeRatio + removeRatio) {
+								map.remove(key);
+								removes.increment();
+							} else {
+								map.get(key);
+								reads.increment();
+							}
+						} catch (RuntimeException e) {
+							e.printStackTrace();
+						}
+					}
+				}
+			}, "driver-" + t);
+			drivers.add(driver);
+		}
+		Thread sampler = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (!stopped) {
+					Map<String, Long> gauges = metrics.getGauges();
+					max(maxPublisherQueue, gauges.get("publisherQueue"));
+					max(maxSubscriberQueue, gauges.get("subscriberQueue"));
+					try {
+						Thread.sleep(SAMPLE_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "sampler");
+		sampler.setDaemon(true);
+		long start = System.nanoTime();
+		sampler.start();
+		for (Thread driver : drivers) {
+			driver.start();
+		}
+		Thread.sleep(Long.parseLong(settings.getProperty("durationSeconds")) * 1000);
+		stopped = true;
+		for (Thread driver : drivers) {
+			driver.join();
+		}
+		elapsedNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Raise max to value
+	 *
+	 * @param max
+	 *            max
+	 * @param value
+	 *            value, can be null
+	 */
+	private static void max(AtomicLong max, Long value) {
+		if (value == null) {
+			return;
+		}
+		long current;
+		while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+			// retry
+		}
+	}
+
+	/**
+	 * Write local map as "key id" lines
+	 *
+	 * @param file
+	 *            dump file
+	 * @throws IOException
+	 *             if file can't be written
+	 */
+	void dump(File file) throws IOException {
+		try (BufferedWriter out = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, Payload> entry : map.entrySetLocal()) {
+				out.write(entry.getKey());
+				out.write(' ');
+				out.write(String.valueOf(entry.getValue().getId()));
+				out.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Result line
+	 *
+	 * @return fields separated by space
+	 */
+	String result() {
+		return "RESULT " + elapsedNanos + " " + reads.sum() + " " + writes.sum() + " "
+				+ removes.sum() + " " + lag.count() + " " + lag.percentile(0.5) + " " + lag.percentile(0.9) + " "
+				+ lag.percentile(0.99) + " " + lag.percentile(0.999) + " " + lag.max() + " "
+				+ maxPublisherQueue.get() + " " + maxSubscriberQueue.get();
+	}
+
+	/**
+	 * Close map
+	 */
+	void close() {
+		map.close();
+	}
+
+	/**
+	 * Local map recording propagation latency of values put by subscriber
+	 */
+	private class ObservedMap extends ConcurrentHashMap<String, Payload> {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Record latency if value came from another node
+		 *
+		 * @param value
+		 *            value put
+		 */
+		private void observe(Payload value) {
+			if (value != null && DRIVER.get() == null) {
+				lag.record(Math.max(0, micros() - value.getId()));
+			}
+		}
+
+		@Override
+		public Payload put(String key, Payload value) {
+			observe(value);
+			return super.put(key, value);
+		}
+
+		@Override
+		public Payload putIfAbsent(String key, Payload value) {
+			observe(value);
+			return super.putIfAbsent(key, value);
+		}
+
+		@Override
+		public Payload replace(String key, Payload value) {
+			observe(value);
+			return super.replace(key, value);
+		}
+	}
+
+	/**
+	 * Run node
+	 *
+	 * @param args
+	 *            host, port, dump file, then name=value settings
+	 * @throws Exception
+	 *             on failure
+	 */
+	public static void main(String[] args) throws Exception {
+		Properties settings = PropagationHarness.settings(args, 3);
+		PropagationNode node = new PropagationNode(settings);
+		node.connect(args[0], Integer.parseInt(args[1]));
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		System.out.println("READY");
+		System.out.flush();
+		if (!"GO".equals(in.readLine())) {
+			node.close();
+			return;
+		}
+		node.run();
+		System.out.println("DONE");
+		System.out.flush();
+		if ("REPORT".equals(in.readLine())) {
+			node.dump(new File(args[2]));
+			System.out.println(node.result());
+			System.out.flush();
+		}
+		node.close();
+		System.exit(0);
+	}
+
+}
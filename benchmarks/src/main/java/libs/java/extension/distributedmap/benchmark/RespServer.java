@@ -0,0 +1,779 @@
+package libs.java.extension.distributedmap.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Minimal in-process redis server speaking RESP on a loopback port, so map
+ * can be benchmarked and load tested without a redis installation. Supports
+ * commands used by map: strings, hashes (HSCAN pages by position), sorted set
+ * writes of expiry, MULTI/EXEC, PUBLISH/SUBSCRIBE. Scripts are not supported
+ * (EVALSHA replies an error), so atomic operations, expiry sweep and event
+ * streams are not available.
+ *
+ * Data is guarded by one lock, commands run one at a time like in redis. A
+ * thread serves each connection and replies of pipelined commands are
+ * flushed together.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RespServer implements Closeable {
+
+	/**
+	 * Line end of protocol
+	 */
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/**
+	 * Listening socket
+	 */
+	private ServerSocket server;
+
+	/**
+	 * Guards data
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * String keys
+	 */
+	private final Map<String, byte[]> strings = new HashMap<>();
+
+	/**
+	 * Hash keys, fields in insertion order so scan position stays valid
+	 */
+	private final Map<String, LinkedHashMap<String, byte[]>> hashes = new HashMap<>();
+
+	/**
+	 * Sorted set keys, member to score
+	 */
+	private final Map<String, Map<String, Double>> sortedSets = new HashMap<>();
+
+	/**
+	 * Channel to subscribed connections
+	 */
+	private final Map<String, Set<Connection>> channels = new ConcurrentHashMap<>();
+
+	/**
+	 * Open connections
+	 */
+	private final Set<Connection> connections = new CopyOnWriteArraySet<>();
+
+	/**
+	 * Set on close
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * Start server on a free loopback port
+	 *
+	 * @throws IOException
+	 *             if port can't be opened
+	 */
+	public RespServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * Start server on loopback port
+	 *
+	 * @param port
+	 *            port, 0 for a free port
+	 * @throws IOException
+	 *             if port can't be opened
+	 */
+	public RespServer(int port) throws IOException {
+		server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "resp-accept-" + server.getLocalPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Host to connect to
+	 *
+	 * @return host address
+	 */
+	public String getHost() {
+		return server.getInetAddress().getHostAddress();
+	}
+
+	/**
+	 * Port to connect to
+	 *
+	 * @return port
+	 */
+	public int getPort() {
+		return server.getLocalPort();
+	}
+
+	/**
+	 * Remove all data
+	 */
+	public void flushAll() {
+		synchronized (lock) {
+			strings.clear();
+			hashes.clear();
+			sortedSets.clear();
+		}
+	}
+
+	/**
+	 * Accept connections until closed
+	 */
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+				Thread thread = new Thread(connection, "resp-" + socket.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop server and close connections
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			server.close();
+		} catch (IOException e) {
+			// closing anyway
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Key of bytes, ISO-8859-1 keeps every byte
+	 *
+	 * @param bytes
+	 *            bytes
+	 * @return key
+	 */
+	private static String key(byte[] bytes) {
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Bytes of key
+	 *
+	 * @param key
+	 *            key
+	 * @return bytes
+	 */
+	private static byte[] bytes(String key) {
+		return key.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Client connection, reads commands and writes replies
+	 */
+	private class Connection implements Runnable {
+
+		/**
+		 * Socket
+		 */
+		private final Socket socket;
+
+		/**
+		 * Input
+		 */
+		private final InputStream in;
+
+		/**
+		 * Output, guarded by itself, published messages are written by other
+		 * connections
+		 */
+		private final OutputStream out;
+
+		/**
+		 * Commands queued after MULTI, null if not in transaction
+		 */
+		private List<List<byte[]>> transaction;
+
+		/**
+		 * Subscribed channels
+		 */
+		private final Set<String> subscriptions = new CopyOnWriteArraySet<>();
+
+		/**
+		 * Constructor
+		 *
+		 * @param socket
+		 *            socket
+		 * @throws IOException
+		 *             if streams can't be opened
+		 */
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(), 65536);
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					List<byte[]> command = readCommand();
+					if (command == null) {
+						break;
+					}
+					if (command.isEmpty()) {
+						continue;
+					}
+					synchronized (out) {
+						boolean quit = execute(command);
+						// pipelined commands are answered together
+						if (quit || in.available() == 0) {
+							out.flush();
+						}
+						if (quit) {
+							break;
+						}
+					}
+				}
+			} catch (IOException e) {
+				// client gone
+			} finally {
+				close();
+			}
+		}
+
+		/**
+		 * Close connection and drop subscriptions
+		 */
+		void close() {
+			for (String channel : subscriptions) {
+				Set<Connection> subscribers = channels.get(channel);
+				if (subscribers != null) {
+					subscribers.remove(this);
+				}
+			}
+			connections.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+
+		/**
+		 * Read a command, array of bulk strings or inline command
+		 *
+		 * @return arguments, null at end of stream
+		 * @throws IOException
+		 *             on read failure
+		 */
+		private List<byte[]> readCommand() throws IOException {
+			int type = in.read();
+			if (type < 0) {
+				return null;
+			}
+			List<byte[]> args = new ArrayList<>();
+			if (type != '*') {
+				// inline command, e.g. from telnet
+				String line = (char) type + readLine();
+				for (String part : line.trim().split("\\s+")) {
+					if (!part.isEmpty()) {
+						args.add(part.getBytes(StandardCharsets.UTF_8));
+					}
+				}
+				return args;
+			}
+			int count = Integer.parseInt(readLine());
+			for (int i = 0; i < count; i++) {
+				if (in.read() != '$') {
+					throw new IOException("Bulk string expected");
+				}
+				int length = Integer.parseInt(readLine());
+				byte[] arg = new byte[length];
+				int read = 0;
+				while (read < length) {
+					int n = in.read(arg, read, length - read);
+					if (n < 0) {
+						throw new EOFException();
+					}
+					read += n;
+				}
+				in.read();
+				in.read();
+				args.add(arg);
+			}
+			return args;
+		}
+
+		/**
+		 * Read line without CRLF
+		 *
+		 * @return line
+		 * @throws IOException
+		 *             on read failure
+		 */
+		private String readLine() throws IOException {
+			StringBuilder line = new StringBuilder();
+			int c;
+			while ((c = in.read()) != '\r') {
+				if (c < 0) {
+					throw new EOFException();
+				}
+				line.append((char) c);
+			}
+			in.read();
+			return line.toString();
+		}
+
+		/**
+		 * Run command, reply is written to output
+		 *
+		 * @param args
+		 *            command and arguments
+		 * @return true if connection should be closed
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private boolean execute(List<byte[]> args) throws IOException {
+			String name = new String(args.get(0), StandardCharsets.US_ASCII).toUpperCase();
+			if (transaction != null && !"EXEC".equals(name) && !"DISCARD".equals(name)
+					&& !"MULTI".equals(name)) {
+				transaction.add(args);
+				simple("QUEUED");
+				return false;
+			}
+			switch (name) {
+			case "QUIT":
+				simple("OK");
+				return true;
+			case "MULTI":
+				transaction = new ArrayList<>();
+				simple("OK");
+				return false;
+			case "DISCARD":
+				transaction = null;
+				simple("OK");
+				return false;
+			case "EXEC":
+				if (transaction == null) {
+					error("ERR EXEC without MULTI");
+					return false;
+				}
+				List<List<byte[]>> queued = transaction;
+				transaction = null;
+				arrayHeader(queued.size());
+				synchronized (lock) {
+					for (List<byte[]> command : queued) {
+						data(new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase(), command);
+					}
+				}
+				return false;
+			case "SUBSCRIBE":
+				for (int i = 1; i < args.size(); i++) {
+					String channel = key(args.get(i));
+					Set<Connection> subscribers = channels.get(channel);
+					if (subscribers == null) {
+						channels.putIfAbsent(channel, new CopyOnWriteArraySet<Connection>());
+						subscribers = channels.get(channel);
+					}
+					subscribers.add(this);
+					subscriptions.add(channel);
+					arrayHeader(3);
+					bulk(bytes("subscribe"));
+					bulk(args.get(i));
+					integer(subscriptions.size());
+				}
+				return false;
+			case "UNSUBSCRIBE":
+				List<String> channelNames = new ArrayList<>();
+				for (int i = 1; i < args.size(); i++) {
+					channelNames.add(key(args.get(i)));
+				}
+				if (channelNames.isEmpty()) {
+					channelNames.addAll(subscriptions);
+				}
+				for (String channel : channelNames) {
+					Set<Connection> subscribers = channels.get(channel);
+					if (subscribers != null) {
+						subscribers.remove(this);
+					}
+					subscriptions.remove(channel);
+					arrayHeader(3);
+					bulk(bytes("unsubscribe"));
+					bulk(bytes(channel));
+					integer(subscriptions.size());
+				}
+				return false;
+			case "PUBLISH":
+				integer(publish(key(args.get(1)), args.get(2)));
+				return false;
+			default:
+				synchronized (lock) {
+					data(name, args);
+				}
+				return false;
+			}
+		}
+
+		/**
+		 * Send message to subscribers of channel
+		 *
+		 * @param channel
+		 *            channel
+		 * @param message
+		 *            message
+		 * @return number of subscribers
+		 * @throws IOException
+		 *             never, failures of subscribers close them
+		 */
+		private int publish(String channel, byte[] message) throws IOException {
+			Set<Connection> subscribers = channels.get(channel);
+			if (subscribers == null) {
+				return 0;
+			}
+			int count = 0;
+			for (Connection subscriber : subscribers) {
+				if (subscriber == this) {
+					arrayMessage(out, channel, message);
+					count++;
+					continue;
+				}
+				try {
+					synchronized (subscriber.out) {
+						arrayMessage(subscriber.out, channel, message);
+						subscriber.out.flush();
+					}
+					count++;
+				} catch (IOException e) {
+					subscriber.close();
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Run data command, caller holds lock
+		 *
+		 * @param name
+		 *            upper case command name
+		 * @param args
+		 *            command and arguments
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void data(String name, List<byte[]> args) throws IOException {
+			switch (name) {
+			case "PING":
+				simple("PONG");
+				return;
+			case "AUTH":
+			case "SELECT":
+			case "CLIENT":
+				simple("OK");
+				return;
+			case "FLUSHALL":
+			case "FLUSHDB":
+				strings.clear();
+				hashes.clear();
+				sortedSets.clear();
+				simple("OK");
+				return;
+			case "GET":
+				bulk(strings.get(key(args.get(1))));
+				return;
+			case "SET":
+				strings.put(key(args.get(1)), args.get(2));
+				simple("OK");
+				return;
+			case "DEL": {
+				int removed = 0;
+				for (int i = 1; i < args.size(); i++) {
+					String key = key(args.get(i));
+					if (strings.remove(key) != null | hashes.remove(key) != null
+							| sortedSets.remove(key) != null) {
+						removed++;
+					}
+				}
+				integer(removed);
+				return;
+			}
+			case "HGET": {
+				Map<String, byte[]> hash = hashes.get(key(args.get(1)));
+				bulk(hash == null ? null : hash.get(key(args.get(2))));
+				return;
+			}
+			case "HSET":
+			case "HMSET": {
+				String key = key(args.get(1));
+				LinkedHashMap<String, byte[]> hash = hashes.get(key);
+				if (hash == null) {
+					hash = new LinkedHashMap<>();
+					hashes.put(key, hash);
+				}
+				int added = 0;
+				for (int i = 2; i + 1 < args.size(); i += 2) {
+					if (hash.put(key(args.get(i)), args.get(i + 1)) == null) {
+						added++;
+					}
+				}
+				if ("HMSET".equals(name)) {
+					simple("OK");
+				} else {
+					integer(added);
+				}
+				return;
+			}
+			case "HMGET": {
+				Map<String, byte[]> hash = hashes.get(key(args.get(1)));
+				arrayHeader(args.size() - 2);
+				for (int i = 2; i < args.size(); i++) {
+					bulk(hash == null ? null : hash.get(key(args.get(i))));
+				}
+				return;
+			}
+			case "HDEL": {
+				String key = key(args.get(1));
+				Map<String, byte[]> hash = hashes.get(key);
+				int removed = 0;
+				if (hash != null) {
+					for (int i = 2; i < args.size(); i++) {
+						if (hash.remove(key(args.get(i))) != null) {
+							removed++;
+						}
+					}
+					if (hash.isEmpty()) {
+						hashes.remove(key);
+					}
+				}
+				integer(removed);
+				return;
+			}
+			case "HLEN": {
+				Map<String, byte[]> hash = hashes.get(key(args.get(1)));
+				integer(hash == null ? 0 : hash.size());
+				return;
+			}
+			case "HSCAN":
+				hscan(args);
+				return;
+			case "ZADD": {
+				String key = key(args.get(1));
+				Map<String, Double> set = sortedSets.get(key);
+				if (set == null) {
+					set = new HashMap<>();
+					sortedSets.put(key, set);
+				}
+				int added = 0;
+				for (int i = 2; i + 1 < args.size(); i += 2) {
+					if (set.put(key(args.get(i + 1)), Double.parseDouble(key(args.get(i)))) == null) {
+						added++;
+					}
+				}
+				integer(added);
+				return;
+			}
+			case "ZREM": {
+				Map<String, Double> set = sortedSets.get(key(args.get(1)));
+				int removed = 0;
+				if (set != null) {
+					for (int i = 2; i < args.size(); i++) {
+						if (set.remove(key(args.get(i))) != null) {
+							removed++;
+						}
+					}
+				}
+				integer(removed);
+				return;
+			}
+			default:
+				error("ERR unknown or unsupported command '" + name + "'");
+			}
+		}
+
+		/**
+		 * HSCAN key cursor [COUNT n], cursor is position in field order
+		 *
+		 * @param args
+		 *            command and arguments
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void hscan(List<byte[]> args) throws IOException {
+			Map<String, byte[]> hash = hashes.get(key(args.get(1)));
+			int cursor = Integer.parseInt(key(args.get(2)));
+			int count = 10;
+			for (int i = 3; i + 1 < args.size(); i += 2) {
+				if ("COUNT".equalsIgnoreCase(key(args.get(i)))) {
+					count = Integer.parseInt(key(args.get(i + 1)));
+				}
+			}
+			List<byte[]> page = new ArrayList<>();
+			int position = 0;
+			int next = 0;
+			if (hash != null) {
+				Iterator<Map.Entry<String, byte[]>> it = hash.entrySet().iterator();
+				while (it.hasNext() && position < cursor) {
+					it.next();
+					position++;
+				}
+				while (it.hasNext() && page.size() < count * 2) {
+					Map.Entry<String, byte[]> field = it.next();
+					page.add(bytes(field.getKey()));
+					page.add(field.getValue());
+					position++;
+				}
+				next = it.hasNext() ? position : 0;
+			}
+			arrayHeader(2);
+			bulk(bytes(String.valueOf(next)));
+			arrayHeader(page.size());
+			for (byte[] element : page) {
+				bulk(element);
+			}
+		}
+
+		/**
+		 * Write simple string reply
+		 *
+		 * @param s
+		 *            string
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void simple(String s) throws IOException {
+			out.write('+');
+			out.write(bytes(s));
+			out.write(CRLF);
+		}
+
+		/**
+		 * Write error reply
+		 *
+		 * @param message
+		 *            message
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void error(String message) throws IOException {
+			out.write('-');
+			out.write(bytes(message));
+			out.write(CRLF);
+		}
+
+		/**
+		 * Write integer reply
+		 *
+		 * @param value
+		 *            value
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void integer(long value) throws IOException {
+			out.write(':');
+			out.write(bytes(String.valueOf(value)));
+			out.write(CRLF);
+		}
+
+		/**
+		 * Write bulk string reply
+		 *
+		 * @param value
+		 *            value, null for nil
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void bulk(byte[] value) throws IOException {
+			writeBulk(out, value);
+		}
+
+		/**
+		 * Write array header
+		 *
+		 * @param size
+		 *            elements following
+		 * @throws IOException
+		 *             on write failure
+		 */
+		private void arrayHeader(int size) throws IOException {
+			out.write('*');
+			out.write(bytes(String.valueOf(size)));
+			out.write(CRLF);
+		}
+	}
+
+	/**
+	 * Write pub/sub message push
+	 *
+	 * @param out
+	 *            output of subscriber
+	 * @param channel
+	 *            channel
+	 * @param message
+	 *            message
+	 * @throws IOException
+	 *             on write failure
+	 */
+	private static void arrayMessage(OutputStream out, String channel, byte[] message) throws IOException {
+		out.write(bytes("*3\r\n"));
+		writeBulk(out, bytes("message"));
+		writeBulk(out, bytes(channel));
+		writeBulk(out, message);
+	}
+
+	/**
+	 * Write bulk string
+	 *
+	 * @param out
+	 *            output
+	 * @param value
+	 *            value, null for nil
+	 * @throws IOException
+	 *             on write failure
+	 */
+	private static void writeBulk(OutputStream out, byte[] value) throws IOException {
+		if (value == null) {
+			out.write(bytes("$-1\r\n"));
+			return;
+		}
+		out.write('$');
+		out.write(bytes(String.valueOf(value.length)));
+		out.write(CRLF);
+		out.write(value);
+		out.write(CRLF);
+	}
+
+}
@@ -0,0 +1,65 @@
+package libs.java.extension.distributedmap;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking view of a {@link DistributedMap} (See
+ * {@link DistributedMap#async()}). Operations return immediately, redis
+ * commands of many operations are sent together and futures are completed on
+ * executor of map (See
+ * {@link DistributedMapConfig#setAsyncExecutor(java.util.concurrent.Executor)}),
+ * never on the redis I/O thread. Operations behave as same operation of map,
+ * local map is updated and events are published on completion.
+ *
+ * Operations answered by local map (near cache, write behind buffer) return
+ * completed futures.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public interface AsyncDistributedMap<V> {
+
+	/**
+	 * Get value of key
+	 *
+	 * @param key
+	 *            key
+	 * @return future of value, null if key is not available
+	 */
+	CompletableFuture<V> getAsync(String key);
+
+	/**
+	 * Put value of key
+	 *
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @return future of old value, only when available in local map
+	 */
+	CompletableFuture<V> putAsync(String key, V value);
+
+	/**
+	 * Remove key
+	 *
+	 * @param key
+	 *            key
+	 * @return future of old value, only when available in local map
+	 */
+	CompletableFuture<V> removeAsync(String key);
+
+	/**
+	 * Get values of keys
+	 *
+	 * @param keys
+	 *            keys
+	 * @return future of map of key to value, keys not available are not part
+	 *         of map
+	 */
+	CompletableFuture<Map<String, V>> getAllAsync(Collection<String> keys);
+
+}
@@ -1,9 +1,20 @@
 package libs.java.extension.distributedmap;
 
+import java.io.Closeable;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+import libs.java.extension.distributedmap.eviction.EvictionPolicy;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
 import libs.java.extension.distributedmap.redis.DistributedRedisMap;
 
 /**
@@ -30,8 +41,54 @@ import libs.java.extension.distributedmap.redis.DistributedRedisMap;
  * 7. On read of data which is not available in local map, it is copied from
  * shared memory (if available) to local (if local key limit allows) and
  * returned. <br>
- * 8. "<>", "><", "~~" patterns are used to publish events, and used in parsing,
- * these should not be part of key or value fields
+ * 8. Events are published as length prefixed binary frames, so keys and values
+ * can contain any character. Only if legacy text events are published (See
+ * {@link DistributedMapConfig#setLegacyEvents(boolean)}), "<>", "><", "~~"
+ * patterns are used to publish events, and used in parsing, these should not
+ * be part of key or value fields <br>
+ * 9. Optionally (See {@link DistributedMapConfig#setNearCache(boolean)}) reads
+ * are served from local map when key is available locally, falling back to
+ * shared memory on a miss <br>
+ * 10. Optionally (See {@link DistributedMapConfig#setWriteBehind(boolean)})
+ * writes are buffered and written to shared memory in batches, see
+ * {@link #flush()} <br>
+ * 11. Optionally (See
+ * {@link DistributedMapConfig#setEvictionPolicy(EvictionPolicy)}) keys are
+ * evicted from full local map to make space for keys used more <br>
+ * 12. Keys can expire (See {@link #put(String, Object, long)} and
+ * {@link DistributedMapConfig#setDefaultTtlMillis(long)}), expired keys are
+ * removed from shared memory and all the processes <br>
+ * 13. entrySet, keySet and values are views of shared memory, read page by
+ * page while iterating (See
+ * {@link DistributedMapConfig#setScanPageSize(int)}), so large maps can be
+ * iterated without copying them to local process <br>
+ * 14. Optionally (See {@link DistributedMapConfig#setShardNodes(List)}) map is
+ * sharded over multiple redis nodes, so it is not limited by memory or CPU of
+ * one node <br>
+ * 15. Optionally (See {@link DistributedMapConfig#setHashBuckets(int)}) map is
+ * split into many small redis hashes instead of one large hash <br>
+ * 16. Operations can be run without blocking caller (See {@link #async()})
+ * <br>
+ * 17. putIfAbsent, replace, remove(key, value), compute and merge are atomic
+ * across processes, values are compared in shared memory
+ * <br>
+ * 18. Missed events can be replayed from a redis stream after reconnect (See
+ * {@link DistributedMapConfig#setStreamEvents(boolean)})
+ * <br>
+ * 19. Local map can be filled at start, from hot keys of previous run first
+ * (See {@link #preload(Collection)})
+ * <br>
+ * 20. Local map can be snapshotted to a file and reloaded on restart (See
+ * {@link DistributedMapConfig#setSnapshotFile(String)})
+ * <br>
+ * 21. Local map can keep encoded values outside heap (See
+ * {@link libs.java.extension.distributedmap.local.OffHeapLocalMap})
+ * <br>
+ * 22. Hits, latencies, event lag and errors are measured (See
+ * {@link #getMetrics()})
+ * <br>
+ * 23. Large values can be compressed in redis and in map events (See
+ * {@link DistributedMapConfig#setCompressionThresholdBytes(int)})
  * 
  * See Word Document (How it works) for details of map operations.
  * 
@@ -44,9 +101,11 @@ import libs.java.extension.distributedmap.redis.DistributedRedisMap;
  *            implementation uses Redis as data store which has inbuilt hash
  *            support for string key.
  * @param <V>
- *            Value of the key. It can be any java type. Currently it is
+ *            Value of the key. It can be any java type. By default it is
  *            converted to JSON before storing to Redis which makes it easier to
- *            read/view data directly at redis
+ *            read/view data directly at redis. Other format can be used by
+ *            setting a codec (See
+ *            {@link DistributedMapConfig#setCodec(libs.java.extension.distributedmap.codec.ValueCodec)})
  *
  *            <br>
  *            Simple usage - <br>
@@ -56,7 +115,7 @@ import libs.java.extension.distributedmap.redis.DistributedRedisMap;
  *            use normal map operations.
  * 
  */
-public abstract class DistributedMap<K, V> implements Map<String, V> {
+public abstract class DistributedMap<K, V> implements Map<String, V>, Closeable {
 
 	/**
 	 * underlying map
@@ -68,40 +127,104 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	protected int localKeyLimit;
 
 	/**
-	 * Local key size
+	 * Local key size, a key is counted before it is put, so concurrent puts
+	 * never exceed local key limit
 	 */
-	protected int size;
+	protected final AtomicInteger size = new AtomicInteger();
 	/**
 	 * Name for the map, used to associate hash key with redis
 	 */
 	protected String name;
 
+	/**
+	 * Number of version stripes used to track remote updates of keys
+	 */
+	private static final int VERSION_STRIPES = 1024;
+
+	/**
+	 * Version per key stripe, changed on every remote update of a key in the
+	 * stripe. Used to detect a remote update while a value read from shared
+	 * memory is being copied to local
+	 */
+	private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+	/**
+	 * Eviction policy of local map, null if new keys are not added to full
+	 * local map
+	 */
+	protected EvictionPolicy evictionPolicy;
+
+	/**
+	 * Expiry time (epoch milliseconds) of local keys put with time to live
+	 */
+	private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>();
+
 	/**
 	 * Constructor, assigns different variables
 	 * 
 	 * @param name
 	 *            name of the key/map
 	 * @param underlyingMap
-	 *            underlying map
+	 *            underlying map, null for a {@link ConcurrentHashMap}. Local
+	 *            map is used by caller threads and by event subscriber at same
+	 *            time, a map which is not a {@link ConcurrentMap} is used
+	 *            through {@link Collections#synchronizedMap(Map)}
 	 * @param localKeyLimit
 	 *            local key limit
-	 * @throws IllegalStateException
-	 *             if passed map is null
 	 */
 	public DistributedMap(String name, Map<String, V> underlyingMap, int localKeyLimit) {
 		if (underlyingMap == null) {
-			throw new IllegalStateException("Passed map can't be null");
+			underlyingMap = new ConcurrentHashMap<>();
+		} else if (!(underlyingMap instanceof ConcurrentMap)) {
+			underlyingMap = Collections.synchronizedMap(underlyingMap);
 		}
 		this.localKeyLimit = localKeyLimit;
 		this.underlyingMap = underlyingMap;
 		this.name = name;
 	}
 
+	/**
+	 * Constructor, assigns different variables
+	 * 
+	 * @param name
+	 *            name of the key/map
+	 * @param underlyingMap
+	 *            underlying map, null for a {@link ConcurrentHashMap}
+	 * @param localKeyLimit
+	 *            local key limit
+	 * @param evictionPolicy
+	 *            eviction policy of local map, null to not add new keys to
+	 *            full local map
+	 */
+	public DistributedMap(String name, Map<String, V> underlyingMap, int localKeyLimit,
+			EvictionPolicy evictionPolicy) {
+		this(name, underlyingMap, localKeyLimit);
+		this.evictionPolicy = evictionPolicy;
+		if (evictionPolicy != null) {
+			evictionPolicy.init(localKeyLimit);
+		}
+	}
+
 	/**
 	 * Clears only underlying map
 	 */
 	public void clearLocal() {
-		underlyingMap.clear();
+		for (int i = 0; i < VERSION_STRIPES; i++) {
+			versions.incrementAndGet(i);
+		}
+		if (underlyingMap instanceof ConcurrentMap) {
+			// removed one by one, so size stays exact with concurrent puts
+			for (String key : underlyingMap.keySet()) {
+				removeLocal(key);
+			}
+		} else {
+			underlyingMap.clear();
+			size.set(0);
+		}
+		expiries.clear();
+		if (evictionPolicy != null) {
+			evictionPolicy.clear();
+		}
 	}
 
 	/**
@@ -114,13 +237,16 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	}
 
 	/**
-	 * If key is present locally
+	 * If key is present locally, an expired key is not present
 	 * 
 	 * @param key
 	 *            key
 	 * @return true/false
 	 */
 	public boolean containsKeyLocal(Object key) {
+		if (expiredLocal(key)) {
+			return false;
+		}
 		return underlyingMap.containsKey(key);
 
 	}
@@ -153,7 +279,15 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	 * @return value if available at local
 	 */
 	public V getLocal(Object key) {
-		return underlyingMap.get(key);
+		if (expiredLocal(key)) {
+			removeLocal(key);
+			return null;
+		}
+		V value = underlyingMap.get(key);
+		if (value != null && evictionPolicy != null) {
+			evictionPolicy.onAccess(String.valueOf(key));
+		}
+		return value;
 	}
 
 	/**
@@ -184,17 +318,260 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	 * @return old data for key
 	 */
 	public V putLocal(String key, V value) {
+		if (expiredLocal(key)) {
+			// old value and its expiry time are not kept
+			removeLocal(key);
+		}
+		if (underlyingMap.containsKey(key)) {
+			if (evictionPolicy != null) {
+				evictionPolicy.onAccess(key);
+			}
+			V old = underlyingMap.replace(key, value);
+			if (old != null) {
+				return old;
+			}
+			// removed meanwhile, put as new key
+		}
+		if (reserve()) {
+			return insert(key, value);
+		}
+		if (evictionPolicy != null) {
+			// full, replace victim if policy prefers new key
+			String victim = evictionPolicy.victim();
+			if (victim != null && evictionPolicy.admit(key, victim)) {
+				if (removeLocal(victim) == null) {
+					// not in local map, drop it from policy so it is not
+					// chosen again
+					evictionPolicy.onRemove(victim);
+				}
+				if (reserve()) {
+					return insert(key, value);
+				}
+			}
+		}
+		return null;
+
+	}
+
+	/**
+	 * Count a new key if local key limit allows
+	 * 
+	 * @return true if counted
+	 */
+	private boolean reserve() {
+		while (true) {
+			int current = size.get();
+			if (current >= localKeyLimit) {
+				return false;
+			}
+			if (size.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
 
-		if (!containsKeyLocal(key)) {
-			if (size < localKeyLimit) {
-				size++;
-				return underlyingMap.put(String.valueOf(key), value);
+	/**
+	 * Put key counted by {@link #reserve()}. If another thread put key
+	 * meanwhile, count is given back and value is replaced
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @return old value
+	 */
+	private V insert(String key, V value) {
+		V old = underlyingMap.putIfAbsent(key, value);
+		if (old != null) {
+			size.decrementAndGet();
+			return underlyingMap.replace(key, value);
+		}
+		if (evictionPolicy != null) {
+			evictionPolicy.onInsert(key);
+			// a concurrent removeLocal between put and onInsert has already
+			// called onRemove, undo insert to policy
+			if (!underlyingMap.containsKey(key)) {
+				evictionPolicy.onRemove(key);
+				if (underlyingMap.containsKey(key)) {
+					// put again meanwhile
+					evictionPolicy.onInsert(key);
+				}
 			}
-		} else {
-			return underlyingMap.put(String.valueOf(key), value);
 		}
 		return null;
+	}
 
+	/**
+	 * Put data in local, with expiry time
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds, 0 if key does not expire
+	 * @return old data for key
+	 */
+	public V putLocal(String key, V value, long expireAt) {
+		if (!expiries.isEmpty()) {
+			// expiry of old value does not apply to new value
+			expiries.remove(key);
+		}
+		V old = putLocal(key, value);
+		if (expireAt > 0 && underlyingMap.containsKey(key)) {
+			// only a key kept in local map expires
+			expiries.put(key, expireAt);
+			if (!underlyingMap.containsKey(key)) {
+				// removed meanwhile
+				expiries.remove(key);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * If key is put locally with expiry time which has passed. Expired key is
+	 * removed by caller or by {@link #expireLocal(long)}
+	 * 
+	 * @param key
+	 *            key
+	 * @return true if key is expired
+	 */
+	private boolean expiredLocal(Object key) {
+		if (expiries.isEmpty()) {
+			return false;
+		}
+		Long expireAt = expiries.get(key);
+		return expireAt != null && expireAt <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Remove all local keys with expiry time before passed time
+	 * 
+	 * @param now
+	 *            time in epoch milliseconds
+	 * @return removed keys
+	 */
+	public List<String> expireLocal(long now) {
+		List<String> out = new ArrayList<>();
+		Iterator<Map.Entry<String, Long>> it = expiries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			if (entry.getValue() <= now) {
+				it.remove();
+				if (underlyingMap.containsKey(entry.getKey())) {
+					removeLocal(entry.getKey());
+					out.add(entry.getKey());
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Update value of key only if key is available locally, used on update by
+	 * another process. It is not an access of key for eviction policy
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            new value
+	 * @return old value or null if key is not available locally
+	 */
+	public V replaceLocal(String key, V value) {
+		if (!expiries.isEmpty()) {
+			expiries.remove(key);
+		}
+		return underlyingMap.replace(key, value);
+	}
+
+	/**
+	 * Returns current local version of key, to be passed to
+	 * {@link #putLocalIfCurrent(String, Object, long)}
+	 * 
+	 * @param key
+	 *            key
+	 * @return version
+	 */
+	public long localVersion(String key) {
+		return versions.get(stripe(key));
+	}
+
+	/**
+	 * Returns current local versions of all keys, for reads of many keys not
+	 * known before read (e.g. a scan). Version of a key is taken from it by
+	 * {@link #localVersion(long[], String)}
+	 * 
+	 * @return versions
+	 */
+	public long[] localVersions() {
+		long[] out = new long[VERSION_STRIPES];
+		for (int i = 0; i < VERSION_STRIPES; i++) {
+			out[i] = versions.get(i);
+		}
+		return out;
+	}
+
+	/**
+	 * Version of key in versions taken by {@link #localVersions()}
+	 * 
+	 * @param versions
+	 *            versions
+	 * @param key
+	 *            key
+	 * @return version
+	 */
+	public long localVersion(long[] versions, String key) {
+		return versions[stripe(key)];
+	}
+
+	/**
+	 * Marks key as updated by another process, any value read before this
+	 * call is not copied to local afterwards. Must be called before local map
+	 * is updated for the remote event
+	 * 
+	 * @param key
+	 *            key
+	 */
+	public void markUpdated(String key) {
+		versions.incrementAndGet(stripe(key));
+	}
+
+	/**
+	 * Put data read from shared memory in local, only if key is not updated by
+	 * another process since version is taken. Value is put first and removed
+	 * if version changed, so a concurrent remote update either sees the key
+	 * locally and overwrites it, or causes it to be removed here.
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value read from shared memory
+	 * @param version
+	 *            version taken using {@link #localVersion(String)} before
+	 *            reading value
+	 * @return true if key is kept locally, false if local map is full or key
+	 *         was updated meanwhile
+	 */
+	public boolean putLocalIfCurrent(String key, V value, long version) {
+		putLocal(key, value);
+		if (localVersion(key) != version) {
+			removeLocal(key);
+			return false;
+		}
+		return underlyingMap.containsKey(key);
+	}
+
+	/**
+	 * Version stripe for key
+	 * 
+	 * @param key
+	 *            key
+	 * @return stripe index
+	 */
+	private static int stripe(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
 	}
 
 	/**
@@ -204,18 +581,14 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	 * 
 	 */
 	public void putAllLocal(Map<? extends String, ? extends V> m) {
-		if (m.size() < (localKeyLimit - size)) {
-			underlyingMap.putAll(m);
-		}else{
-			// put iterating
-			for (String key:m.keySet()){
-				if (localKeyLimit <= size){
-					break;
-				}
-				putLocal(key, m.get(key));
+		// put iterating, keeps size and eviction policy updated
+		for (String key : m.keySet()) {
+			if (localKeyLimit <= size.get() && evictionPolicy == null && !containsKeyLocal(key)) {
+				continue;
 			}
+			putLocal(key, m.get(key));
 		}
-		
+
 	}
 
 	/**
@@ -226,9 +599,15 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	 * @return value
 	 */
 	public V removeLocal(Object key) {
+		if (!expiries.isEmpty()) {
+			expiries.remove(key);
+		}
 		V out = underlyingMap.remove(key);
 		if (out != null) {
-			size--;
+			size.decrementAndGet();
+			if (evictionPolicy != null) {
+				evictionPolicy.onRemove(String.valueOf(key));
+			}
 		}
 		return out;
 	}
@@ -285,18 +664,114 @@ public abstract class DistributedMap<K, V> implements Map<String, V> {
 	 */
 	public static <V> Map<String, V> newMap(String mapName, Map<String, V> rootMap, int localKeyLimit, Class<V> type,
 			String host, int port, String password) {
+		return newMap(mapName, rootMap, localKeyLimit, type, host, port, password, new DistributedMapConfig());
+	}
+
+	/**
+	 * Factory method creates redis map
+	 * 
+	 * @param mapName
+	 *            name for the map
+	 * @param rootMap
+	 *            underlying map
+	 * @param localKeyLimit
+	 *            local key limit
+	 * @param type
+	 *            class type of value, used to convert to JSON
+	 * @param host
+	 *            redis host
+	 * @param port
+	 *            redis port
+	 * @param password
+	 *            password if any of redis
+	 * @param config
+	 *            optional settings of map, including redis connection pool
+	 *            sizing (See {@link DistributedMapConfig#setPoolMaxTotal(int)})
+	 * @return {@link DistributedRedisMap}
+	 */
+	public static <V> Map<String, V> newMap(String mapName, Map<String, V> rootMap, int localKeyLimit, Class<V> type,
+			String host, int port, String password, DistributedMapConfig config) {
 		if (mapName == null || mapName.length() < 1) {
 			throw new IllegalStateException("Required map name is missing");
 		}
+		if (config == null) {
+			throw new IllegalStateException("Passed config can't be null");
+		}
 		// if map name is already exist in redis, clear redis key to
 		// reinitialize, it would not overwrite
 
 		Map<String, V> map = new DistributedRedisMap<String, V>(mapName, rootMap, localKeyLimit, type, host, port,
-				password);
+				password, config);
 
 		return map;
 	}
 
+	/**
+	 * Put value with time to live. Key is removed from shared memory and all
+	 * the processes after time to live
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @param ttlMillis
+	 *            time to live in milliseconds, 0 if key does not expire
+	 * @return old value, only when available in local map
+	 */
+	public abstract V put(String key, V value, long ttlMillis);
+
+	/**
+	 * Returns values of all the keys, reading from shared memory in one
+	 * operation. Values read are copied to local (if local key limit allows)
+	 * 
+	 * @param keys
+	 *            keys to read
+	 * @return map of key to value, keys not available are not part of map
+	 */
+	public abstract Map<String, V> getAll(Collection<String> keys);
+
+	/**
+	 * Writes mutations buffered in local process (write behind mode) to shared
+	 * memory, returns after write. Does nothing if no mutation is buffered
+	 */
+	public abstract void flush();
+
+	/**
+	 * Non blocking view of map, operations return futures. Same view is
+	 * returned on each call
+	 * 
+	 * @return async view
+	 */
+	public abstract AsyncDistributedMap<V> async();
+
+	/**
+	 * Fills local map from shared memory, up to local key limit. Priority keys
+	 * are read first, then rest of keys in shared memory order. Values are
+	 * decoded in parallel
+	 * 
+	 * @param priorityKeys
+	 *            keys to load first (e.g. hot keys of previous run), can be
+	 *            null
+	 * @return keys put in local map
+	 */
+	public abstract int preload(Collection<String> priorityKeys);
+
+	/**
+	 * Measurements of map, a
+	 * {@link libs.java.extension.distributedmap.metrics.DefaultMapMetrics}
+	 * unless another is set in config, pull values from it
+	 * 
+	 * @return metrics
+	 */
+	public abstract MapMetrics getMetrics();
+
+	/**
+	 * Releases resources (connections, threads) used by map. Map should not be
+	 * used after close
+	 */
+	@Override
+	public abstract void close();
+
 	@Override
 	public String toString() {
 		return underlyingMap.toString();
@@ -0,0 +1,800 @@
+package libs.java.extension.distributedmap;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import libs.java.extension.distributedmap.codec.JsonValueCodec;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.eviction.EvictionPolicy;
+import libs.java.extension.distributedmap.eviction.LruEvictionPolicy;
+import libs.java.extension.distributedmap.eviction.TinyLfuEvictionPolicy;
+import libs.java.extension.distributedmap.metrics.DefaultMapMetrics;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+
+/**
+ * Optional settings for a {@link DistributedMap}. A new instance carries the
+ * defaults, which keep the original behaviour of the map, so only the required
+ * settings need to be changed.
+ *
+ * <br>
+ * Simple usage - <br>
+ * DistributedMapConfig config = new DistributedMapConfig(); <br>
+ * config.setNearCache(true); <br>
+ * Map<String, Data> map = DistributedMap.newMap("mymap", new
+ * ConcurrentHashMap<String, Data>(), 1000, Data.class, redisip, redisport,
+ * null, config);
+ *
+ * @author Kuldeep
+ *
+ */
+public class DistributedMapConfig {
+
+	/**
+	 * Serve reads from local map when key is available locally
+	 */
+	private boolean nearCache;
+
+	/**
+	 * Max number of redis connections used by map operations
+	 */
+	private int poolMaxTotal = 8;
+
+	/**
+	 * Max number of idle redis connections kept in pool
+	 */
+	private int poolMaxIdle = 8;
+
+	/**
+	 * Min number of idle redis connections kept in pool
+	 */
+	private int poolMinIdle = 0;
+
+	/**
+	 * Redis connection and socket timeout in milliseconds
+	 */
+	private int timeout = 2000;
+
+	/**
+	 * Buffer writes locally and flush to redis in batches
+	 */
+	private boolean writeBehind;
+
+	/**
+	 * Max keys buffered in write behind mode before flush
+	 */
+	private int writeBehindMaxEntries = 1000;
+
+	/**
+	 * Write behind flush interval in milliseconds
+	 */
+	private long writeBehindFlushMillis = 5;
+
+	/**
+	 * Value codec, JSON if not set
+	 */
+	private ValueCodec<?> codec;
+
+	/**
+	 * Publish legacy text events instead of binary frames
+	 */
+	private boolean legacyEvents;
+
+	/**
+	 * Time in milliseconds events are collected before publish
+	 */
+	private long publishWindowMillis;
+
+	/**
+	 * Max keys collected before publish
+	 */
+	private int publishBatchSize = 500;
+
+	/**
+	 * Eviction policy of local map
+	 */
+	private EvictionPolicy evictionPolicy;
+
+	/**
+	 * Time to live of keys put without time to live
+	 */
+	private long defaultTtlMillis;
+
+	/**
+	 * Maintain expiry of keys from start
+	 */
+	private boolean expiryEnabled;
+
+	/**
+	 * Interval of expiry sweep in milliseconds
+	 */
+	private long expirySweepMillis = 1000;
+
+	/**
+	 * Fields read per HSCAN by entrySet/keySet/values
+	 */
+	private int scanPageSize = 1000;
+
+	/**
+	 * Redis nodes map is sharded over, "host:port"
+	 */
+	private List<String> shardNodes;
+
+	/**
+	 * Number of redis hashes map is split into
+	 */
+	private int hashBuckets;
+
+	/**
+	 * Executor completing futures of async view
+	 */
+	private Executor asyncExecutor;
+
+	/**
+	 * If events are also kept in a redis stream to replay missed events
+	 */
+	private boolean streamEvents;
+
+	/**
+	 * Approximate max events kept in stream
+	 */
+	private long streamMaxLength = 100000;
+
+	/**
+	 * If local map is filled from redis when map is created
+	 */
+	private boolean preloadOnStart;
+
+	/**
+	 * File keeping local keys between runs, preloaded first
+	 */
+	private String hotKeysFile;
+
+	/**
+	 * File local map is snapshotted to
+	 */
+	private String snapshotFile;
+
+	/**
+	 * Time between snapshots of local map
+	 */
+	private long snapshotIntervalMillis = 60000;
+
+	/**
+	 * Receives measurements of map
+	 */
+	private MapMetrics metrics;
+
+	/**
+	 * If measurements are exposed through JMX
+	 */
+	private boolean jmxEnabled;
+
+	/**
+	 * Min encoded value size compressed, 0 for no compression
+	 */
+	private int compressionThresholdBytes;
+
+	/**
+	 * If reads are served from local map when key is available locally. Local
+	 * data is kept updated by events from other processes, so it can be stale
+	 * for the event propagation time. Default false, every read goes to redis.
+	 *
+	 * @return true/false
+	 */
+	public boolean isNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Set near cache read mode
+	 *
+	 * @param nearCache
+	 *            true to serve reads from local map when available
+	 */
+	public void setNearCache(boolean nearCache) {
+		this.nearCache = nearCache;
+	}
+
+	/**
+	 * Max number of redis connections used by map operations, this is the
+	 * number of threads which can run redis commands in parallel. Default 8
+	 *
+	 * @return max connections
+	 */
+	public int getPoolMaxTotal() {
+		return poolMaxTotal;
+	}
+
+	/**
+	 * Set max number of redis connections used by map operations
+	 *
+	 * @param poolMaxTotal
+	 *            max connections
+	 */
+	public void setPoolMaxTotal(int poolMaxTotal) {
+		this.poolMaxTotal = poolMaxTotal;
+	}
+
+	/**
+	 * Max number of idle redis connections kept in pool. Default 8
+	 *
+	 * @return max idle connections
+	 */
+	public int getPoolMaxIdle() {
+		return poolMaxIdle;
+	}
+
+	/**
+	 * Set max number of idle redis connections kept in pool
+	 *
+	 * @param poolMaxIdle
+	 *            max idle connections
+	 */
+	public void setPoolMaxIdle(int poolMaxIdle) {
+		this.poolMaxIdle = poolMaxIdle;
+	}
+
+	/**
+	 * Min number of idle redis connections kept in pool. Default 0
+	 *
+	 * @return min idle connections
+	 */
+	public int getPoolMinIdle() {
+		return poolMinIdle;
+	}
+
+	/**
+	 * Set min number of idle redis connections kept in pool
+	 *
+	 * @param poolMinIdle
+	 *            min idle connections
+	 */
+	public void setPoolMinIdle(int poolMinIdle) {
+		this.poolMinIdle = poolMinIdle;
+	}
+
+	/**
+	 * Redis connection and socket timeout in milliseconds. Default 2000
+	 *
+	 * @return timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set redis connection and socket timeout in milliseconds
+	 *
+	 * @param timeout
+	 *            timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * If writes are buffered and flushed to redis in batches. put/remove update
+	 * local map immediately, mutations of a key are coalesced and written to
+	 * redis (and published to other processes) on flush, so other processes
+	 * see the change after flush. Reads of same process see buffered
+	 * mutations. Default false, every write goes to redis.
+	 *
+	 * @return true/false
+	 */
+	public boolean isWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Set write behind mode
+	 *
+	 * @param writeBehind
+	 *            true to buffer writes
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	/**
+	 * Max keys buffered in write behind mode, a write reaching the limit
+	 * flushes the buffer in caller thread. While redis is not available,
+	 * writes of new keys to a full buffer are rejected with
+	 * {@link IllegalStateException}. Default 1000
+	 *
+	 * @return max buffered keys
+	 */
+	public int getWriteBehindMaxEntries() {
+		return writeBehindMaxEntries;
+	}
+
+	/**
+	 * Set max keys buffered in write behind mode
+	 *
+	 * @param writeBehindMaxEntries
+	 *            max buffered keys
+	 */
+	public void setWriteBehindMaxEntries(int writeBehindMaxEntries) {
+		this.writeBehindMaxEntries = writeBehindMaxEntries;
+	}
+
+	/**
+	 * Interval in milliseconds at which write behind buffer is flushed, max
+	 * time a write stays only in local process. Default 5
+	 *
+	 * @return flush interval
+	 */
+	public long getWriteBehindFlushMillis() {
+		return writeBehindFlushMillis;
+	}
+
+	/**
+	 * Set interval in milliseconds at which write behind buffer is flushed
+	 *
+	 * @param writeBehindFlushMillis
+	 *            flush interval
+	 */
+	public void setWriteBehindFlushMillis(long writeBehindFlushMillis) {
+		this.writeBehindFlushMillis = writeBehindFlushMillis;
+	}
+
+	/**
+	 * Codec used to convert values to bytes stored in redis and sent in map
+	 * events. Default null, values are converted to JSON using
+	 * {@link JsonValueCodec}. All processes using a map must use same codec
+	 *
+	 * @return codec or null
+	 */
+	public ValueCodec<?> getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Set codec used to convert values, it must convert value type of the map
+	 *
+	 * @param codec
+	 *            codec
+	 */
+	public void setCodec(ValueCodec<?> codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * If map events are published in legacy text format ("put&lt;&gt;key~~value")
+	 * instead of binary frames. All processes read both formats, so while
+	 * processes of an older version share the map, set it true until all
+	 * processes are upgraded. Default false
+	 *
+	 * @return true/false
+	 */
+	public boolean isLegacyEvents() {
+		return legacyEvents;
+	}
+
+	/**
+	 * Set legacy text event format
+	 *
+	 * @param legacyEvents
+	 *            true to publish legacy text events
+	 */
+	public void setLegacyEvents(boolean legacyEvents) {
+		this.legacyEvents = legacyEvents;
+	}
+
+	/**
+	 * Time in milliseconds PUT/DELETE events are collected before they are
+	 * published together, only last event of a key is published. Other
+	 * processes see changes later by up to this time. Default 0, each event is
+	 * published immediately
+	 *
+	 * @return publish window
+	 */
+	public long getPublishWindowMillis() {
+		return publishWindowMillis;
+	}
+
+	/**
+	 * Set time in milliseconds events are collected before publish, e.g. 1-5
+	 *
+	 * @param publishWindowMillis
+	 *            publish window, 0 to publish immediately
+	 */
+	public void setPublishWindowMillis(long publishWindowMillis) {
+		this.publishWindowMillis = publishWindowMillis;
+	}
+
+	/**
+	 * Max keys collected in publish window, collected events are published
+	 * when reached, before end of window. Default 500
+	 *
+	 * @return max keys per publish
+	 */
+	public int getPublishBatchSize() {
+		return publishBatchSize;
+	}
+
+	/**
+	 * Set max keys collected in publish window
+	 *
+	 * @param publishBatchSize
+	 *            max keys per publish
+	 */
+	public void setPublishBatchSize(int publishBatchSize) {
+		this.publishBatchSize = publishBatchSize;
+	}
+
+	/**
+	 * Eviction policy of local map, used when local key limit is reached.
+	 * Default null, new keys are not added to full local map. See
+	 * {@link LruEvictionPolicy} and {@link TinyLfuEvictionPolicy}
+	 *
+	 * @return eviction policy or null
+	 */
+	public EvictionPolicy getEvictionPolicy() {
+		return evictionPolicy;
+	}
+
+	/**
+	 * Set eviction policy of local map, policy instance must not be shared by
+	 * maps, so config with a policy is used to create one map
+	 *
+	 * @param evictionPolicy
+	 *            eviction policy
+	 */
+	public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+		this.evictionPolicy = evictionPolicy;
+	}
+
+	/**
+	 * Time to live in milliseconds of keys put without time to live. Default
+	 * 0, keys don't expire
+	 *
+	 * @return default time to live
+	 */
+	public long getDefaultTtlMillis() {
+		return defaultTtlMillis;
+	}
+
+	/**
+	 * Set time to live in milliseconds of keys put without time to live
+	 *
+	 * @param defaultTtlMillis
+	 *            default time to live, 0 if keys don't expire
+	 */
+	public void setDefaultTtlMillis(long defaultTtlMillis) {
+		this.defaultTtlMillis = defaultTtlMillis;
+	}
+
+	/**
+	 * If expiry of keys is maintained from start. Expiry is enabled anyway by
+	 * a default time to live or first put with time to live, but a put without
+	 * time to live removes expiry of a key only when enabled. So if any
+	 * process puts keys with time to live, all processes using the map should
+	 * enable it. Default false
+	 *
+	 * @return true/false
+	 */
+	public boolean isExpiryEnabled() {
+		return expiryEnabled;
+	}
+
+	/**
+	 * Set if expiry of keys is maintained from start
+	 *
+	 * @param expiryEnabled
+	 *            true to enable expiry
+	 */
+	public void setExpiryEnabled(boolean expiryEnabled) {
+		this.expiryEnabled = expiryEnabled;
+	}
+
+	/**
+	 * Interval in milliseconds at which expired keys are removed from redis
+	 * and other processes, expired keys are visible there up to this time.
+	 * Default 1000
+	 *
+	 * @return sweep interval
+	 */
+	public long getExpirySweepMillis() {
+		return expirySweepMillis;
+	}
+
+	/**
+	 * Set interval in milliseconds at which expired keys are removed
+	 *
+	 * @param expirySweepMillis
+	 *            sweep interval
+	 */
+	public void setExpirySweepMillis(long expirySweepMillis) {
+		this.expirySweepMillis = expirySweepMillis;
+	}
+
+	/**
+	 * Number of fields read from redis per HSCAN while iterating entrySet,
+	 * keySet and values of map, memory used by iteration is bounded by a page.
+	 * It is a hint to redis, a page can have more or less fields. Default 1000
+	 *
+	 * @return page size
+	 */
+	public int getScanPageSize() {
+		return scanPageSize;
+	}
+
+	/**
+	 * Set number of fields read from redis per HSCAN
+	 *
+	 * @param scanPageSize
+	 *            page size
+	 */
+	public void setScanPageSize(int scanPageSize) {
+		this.scanPageSize = scanPageSize;
+	}
+
+	/**
+	 * Redis nodes ("host:port") map is sharded over. Keys are spread over
+	 * nodes by consistent hashing, each node stores its keys in hash of map
+	 * name and carries events of its keys. All nodes use same password. All
+	 * processes using a map must use same nodes, order of nodes does not
+	 * matter. Default null, map is stored on redis host/port given to map,
+	 * which is not used when nodes are set
+	 *
+	 * @return nodes or null
+	 */
+	public List<String> getShardNodes() {
+		return shardNodes;
+	}
+
+	/**
+	 * Set redis nodes ("host:port") map is sharded over
+	 *
+	 * @param shardNodes
+	 *            nodes
+	 */
+	public void setShardNodes(List<String> shardNodes) {
+		this.shardNodes = shardNodes;
+	}
+
+	/**
+	 * Number of redis hashes ("name:{bucket}") map is split into by hash of
+	 * key. Small hashes are stored compactly by redis (up to
+	 * hash-max-ziplist-entries fields, e.g. 128), and clear, scans and expiry
+	 * work bucket by bucket, without blocking redis for whole map. E.g. expected
+	 * keys / 100. All processes using a map must use same buckets, changing it
+	 * needs data to be moved. Default 0, map is one hash "name"
+	 *
+	 * @return buckets
+	 */
+	public int getHashBuckets() {
+		return hashBuckets;
+	}
+
+	/**
+	 * Set number of redis hashes map is split into
+	 *
+	 * @param hashBuckets
+	 *            buckets, 0 for one hash
+	 */
+	public void setHashBuckets(int hashBuckets) {
+		this.hashBuckets = hashBuckets;
+	}
+
+	/**
+	 * Executor completing futures of async view of map (See
+	 * {@link DistributedMap#async()}), dependent actions of futures run on it.
+	 * Default null, {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 *
+	 * @return executor or null
+	 */
+	public Executor getAsyncExecutor() {
+		return asyncExecutor;
+	}
+
+	/**
+	 * Set executor completing futures of async view of map
+	 *
+	 * @param asyncExecutor
+	 *            executor, e.g. a virtual thread per task executor
+	 */
+	public void setAsyncExecutor(Executor asyncExecutor) {
+		this.asyncExecutor = asyncExecutor;
+	}
+
+	/**
+	 * If events are also appended to a redis stream ("name:events"). Messages
+	 * carry stream ids, so a process detects missed messages (e.g. connection
+	 * lost) and replays them from stream instead of serving stale local data.
+	 * Local map is cleared only if missed messages are already trimmed from
+	 * stream. All processes using a map must use same setting. Default false,
+	 * events are only published, local map is cleared after reconnect
+	 *
+	 * @return true/false
+	 */
+	public boolean isStreamEvents() {
+		return streamEvents;
+	}
+
+	/**
+	 * Set if events are also kept in a redis stream
+	 *
+	 * @param streamEvents
+	 *            true/false
+	 */
+	public void setStreamEvents(boolean streamEvents) {
+		this.streamEvents = streamEvents;
+	}
+
+	/**
+	 * Approximate max events kept in stream (MAXLEN ~), older events are
+	 * trimmed. Should cover events published during longest expected
+	 * disconnect. Default 100000
+	 *
+	 * @return max events
+	 */
+	public long getStreamMaxLength() {
+		return streamMaxLength;
+	}
+
+	/**
+	 * Set approximate max events kept in stream
+	 *
+	 * @param streamMaxLength
+	 *            max events
+	 */
+	public void setStreamMaxLength(long streamMaxLength) {
+		this.streamMaxLength = streamMaxLength;
+	}
+
+	/**
+	 * If local map is filled from redis when map is created (See
+	 * {@link DistributedMap#preload(java.util.Collection)}), so reads are
+	 * served locally from start instead of each key being read on first
+	 * access. Creation of map waits for preload. Default false
+	 *
+	 * @return true/false
+	 */
+	public boolean isPreloadOnStart() {
+		return preloadOnStart;
+	}
+
+	/**
+	 * Set if local map is filled from redis when map is created
+	 *
+	 * @param preloadOnStart
+	 *            true/false
+	 */
+	public void setPreloadOnStart(boolean preloadOnStart) {
+		this.preloadOnStart = preloadOnStart;
+	}
+
+	/**
+	 * File local keys are saved to on close, and preloaded first on start, so
+	 * keys hot in previous run are loaded even if redis has more keys than
+	 * local key limit. Default null, keys are not saved
+	 *
+	 * @return file path or null
+	 */
+	public String getHotKeysFile() {
+		return hotKeysFile;
+	}
+
+	/**
+	 * Set file local keys are saved to on close
+	 *
+	 * @param hotKeysFile
+	 *            file path
+	 */
+	public void setHotKeysFile(String hotKeysFile) {
+		this.hotKeysFile = hotKeysFile;
+	}
+
+	/**
+	 * File local map is snapshotted to (memory mapped), periodically and on
+	 * close. On start local map is loaded from it and events published since
+	 * snapshot are replayed from stream, so map starts with local data without
+	 * reading redis. Needs stream events (See {@link #setStreamEvents(boolean)}).
+	 * Default null, no snapshot
+	 *
+	 * @return file path or null
+	 */
+	public String getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	/**
+	 * Set file local map is snapshotted to
+	 *
+	 * @param snapshotFile
+	 *            file path
+	 */
+	public void setSnapshotFile(String snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	/**
+	 * Time between snapshots of local map. Events since last snapshot must
+	 * still be in stream on restart (See {@link #setStreamMaxLength(long)}).
+	 * Default 60000
+	 *
+	 * @return milliseconds
+	 */
+	public long getSnapshotIntervalMillis() {
+		return snapshotIntervalMillis;
+	}
+
+	/**
+	 * Set time between snapshots of local map
+	 *
+	 * @param snapshotIntervalMillis
+	 *            milliseconds
+	 */
+	public void setSnapshotIntervalMillis(long snapshotIntervalMillis) {
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+	}
+
+	/**
+	 * Receives measurements of map: local hits and misses, latency and errors
+	 * of redis operations, publish latency, event lag and decode errors.
+	 * Default null, a {@link DefaultMapMetrics} per map (See
+	 * {@link DistributedMap#getMetrics()})
+	 *
+	 * @return metrics or null
+	 */
+	public MapMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set receiver of measurements of map
+	 *
+	 * @param metrics
+	 *            metrics, e.g. forwarding to a metrics library
+	 */
+	public void setMetrics(MapMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * If measurements are registered as MXBean (See
+	 * {@link libs.java.extension.distributedmap.metrics.MapMetricsMXBean}),
+	 * only when metrics is a {@link DefaultMapMetrics}. Default false
+	 *
+	 * @return true/false
+	 */
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	/**
+	 * Set if measurements are registered as MXBean
+	 *
+	 * @param jmxEnabled
+	 *            true/false
+	 */
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	/**
+	 * Encoded values of at least this size are compressed (See
+	 * {@link libs.java.extension.distributedmap.codec.CompressingValueCodec}),
+	 * in redis and in map events. All processes using a map must enable it
+	 * before any of them writes compressed values, threshold can differ. Not
+	 * supported with legacy events. Default 0, values are not compressed
+	 *
+	 * @return threshold in bytes
+	 */
+	public int getCompressionThresholdBytes() {
+		return compressionThresholdBytes;
+	}
+
+	/**
+	 * Set min encoded value size compressed, e.g. 1024. 0 disables
+	 * compression
+	 *
+	 * @param compressionThresholdBytes
+	 *            threshold in bytes
+	 */
+	public void setCompressionThresholdBytes(int compressionThresholdBytes) {
+		this.compressionThresholdBytes = compressionThresholdBytes;
+	}
+
+}
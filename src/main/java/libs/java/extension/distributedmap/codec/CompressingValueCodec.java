@@ -0,0 +1,196 @@
+package libs.java.extension.distributedmap.codec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values encoded by another codec with deflate (fastest level),
+ * when encoded value is at least threshold bytes. Values in redis and in map
+ * events are smaller, at cost of compress/decompress CPU.
+ * 
+ * Compressed bytes start with 0x00 'D' and original length (4 bytes), which
+ * JSON and Smile never start with, other bytes are decoded by wrapped codec
+ * as is. So data written before compression was enabled, small values, and
+ * values that don't get smaller stay readable, and processes with different
+ * thresholds can share a map. Processes without compression can't read
+ * compressed values.
+ * 
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class CompressingValueCodec<V> implements ValueCodec<V> {
+
+	/**
+	 * First byte of compressed value
+	 */
+	private static final byte FLAG = 0x00;
+
+	/**
+	 * Second byte of compressed value, deflate
+	 */
+	private static final byte DEFLATE = 'D';
+
+	/**
+	 * Flag and original length
+	 */
+	private static final int HEADER_SIZE = 6;
+
+	/**
+	 * Compressor per thread, reset for each value
+	 */
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+
+	/**
+	 * Decompressor per thread, reset for each value
+	 */
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	/**
+	 * Wrapped codec
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Min encoded size compressed
+	 */
+	private int thresholdBytes;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param codec
+	 *            codec converting values to bytes
+	 * @param thresholdBytes
+	 *            min encoded size compressed
+	 */
+	public CompressingValueCodec(ValueCodec<V> codec, int thresholdBytes) {
+		this.codec = codec;
+		this.thresholdBytes = thresholdBytes;
+	}
+
+	@Override
+	public byte[] encode(V value) throws IOException {
+		byte[] data = codec.encode(value);
+		if (data == null || data.length < thresholdBytes) {
+			return data;
+		}
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		// output not smaller than input is not kept
+		byte[] out = new byte[data.length];
+		int length = HEADER_SIZE;
+		while (!deflater.finished() && length < out.length) {
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		if (!deflater.finished()) {
+			return data;
+		}
+		out[0] = FLAG;
+		out[1] = DEFLATE;
+		out[2] = (byte) (data.length >>> 24);
+		out[3] = (byte) (data.length >>> 16);
+		out[4] = (byte) (data.length >>> 8);
+		out[5] = (byte) data.length;
+		return Arrays.copyOf(out, length);
+	}
+
+	@Override
+	public V decode(byte[] data) throws IOException {
+		return decode(data, 0, data.length);
+	}
+
+	@Override
+	public V decode(byte[] data, int offset, int length) throws IOException {
+		if (!isCompressed(data, offset, length)) {
+			return codec.decode(data, offset, length);
+		}
+		return codec.decode(inflate(data, offset, length));
+	}
+
+	/**
+	 * Bytes of wrapped codec, e.g. to compare values written with different
+	 * thresholds
+	 * 
+	 * @param data
+	 *            encoded bytes, compressed or not
+	 * @return uncompressed bytes, same array if not compressed
+	 * @throws IOException
+	 *             if compressed bytes are corrupt
+	 */
+	public static byte[] uncompressed(byte[] data) throws IOException {
+		return isCompressed(data, 0, data.length) ? inflate(data, 0, data.length) : data;
+	}
+
+	/**
+	 * Decompress bytes
+	 * 
+	 * @param data
+	 *            array containing compressed bytes
+	 * @param offset
+	 *            start of compressed bytes
+	 * @param length
+	 *            number of compressed bytes
+	 * @return uncompressed bytes
+	 * @throws IOException
+	 *             if compressed bytes are corrupt
+	 */
+	private static byte[] inflate(byte[] data, int offset, int length) throws IOException {
+		int size = ((data[offset + 2] & 0xFF) << 24) | ((data[offset + 3] & 0xFF) << 16)
+				| ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+		byte[] out = new byte[size];
+		int read = 0;
+		try {
+			while (read < size && !inflater.finished()) {
+				int n = inflater.inflate(out, read, size - read);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed value", e);
+		}
+		if (read != size || !inflater.finished()) {
+			throw new IOException("Compressed value truncated, " + read + " of " + size + " bytes");
+		}
+		return out;
+	}
+
+	/**
+	 * If bytes are compressed by this codec
+	 * 
+	 * @param data
+	 *            array containing encoded bytes
+	 * @param offset
+	 *            start of encoded bytes
+	 * @param length
+	 *            number of encoded bytes
+	 * @return true/false
+	 */
+	public static boolean isCompressed(byte[] data, int offset, int length) {
+		return length >= HEADER_SIZE && data[offset] == FLAG && data[offset + 1] == DEFLATE;
+	}
+
+}
@@ -0,0 +1,68 @@
+package libs.java.extension.distributedmap.codec;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Default codec, converts value to UTF-8 JSON. It makes it easier to
+ * read/view data directly at redis
+ * 
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class JsonValueCodec<V> implements ValueCodec<V> {
+
+	/**
+	 * JSON writer
+	 */
+	private ObjectWriter writer;
+
+	/**
+	 * JSON reader
+	 */
+	private ObjectReader reader;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param type
+	 *            class type of value
+	 */
+	public JsonValueCodec(Class<V> type) {
+		this(new ObjectMapper(), type);
+	}
+
+	/**
+	 * Constructor, used by codecs of other Jackson formats
+	 * 
+	 * @param mapper
+	 *            Jackson mapper
+	 * @param type
+	 *            class type of value
+	 */
+	protected JsonValueCodec(ObjectMapper mapper, Class<V> type) {
+		writer = mapper.writer();
+		reader = mapper.reader().forType(type);
+	}
+
+	@Override
+	public byte[] encode(V value) throws IOException {
+		return writer.writeValueAsBytes(value);
+	}
+
+	@Override
+	public V decode(byte[] data) throws IOException {
+		return reader.readValue(data);
+	}
+
+	@Override
+	public V decode(byte[] data, int offset, int length) throws IOException {
+		return reader.readValue(data, offset, length);
+	}
+
+}
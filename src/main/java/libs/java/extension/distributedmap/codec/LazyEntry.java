@@ -0,0 +1,145 @@
+package libs.java.extension.distributedmap.codec;
+
+import java.util.Map;
+
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+
+/**
+ * Map entry holding encoded value, value is decoded on first
+ * {@link #getValue()} and kept for next calls. Entries of which only key is
+ * used are never decoded. A value which can't be decoded is returned as null.
+ *
+ * Entry is not thread safe, it is meant to be used by the thread iterating.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class LazyEntry<V> implements Map.Entry<String, V> {
+
+	/**
+	 * Key
+	 */
+	private final String key;
+
+	/**
+	 * Encoded value, null once decoded
+	 */
+	private byte[] encoded;
+
+	/**
+	 * Decoded value
+	 */
+	private V value;
+
+	/**
+	 * Codec decoding value
+	 */
+	private final ValueCodec<V> codec;
+
+	/**
+	 * Map, setValue puts to map
+	 */
+	private final Map<String, V> map;
+
+	/**
+	 * Measurements of map, decode failures are recorded, null if not recorded
+	 */
+	private final MapMetrics metrics;
+
+	/**
+	 * Constructor
+	 *
+	 * @param key
+	 *            key
+	 * @param encoded
+	 *            encoded value
+	 * @param codec
+	 *            codec decoding value
+	 * @param map
+	 *            map of entry, setValue puts to it
+	 * @param metrics
+	 *            measurements of map, decode failures are recorded, can be
+	 *            null
+	 */
+	public LazyEntry(String key, byte[] encoded, ValueCodec<V> codec, Map<String, V> map, MapMetrics metrics) {
+		this.key = key;
+		this.encoded = encoded;
+		this.codec = codec;
+		this.map = map;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Value, decoded on first call
+	 *
+	 * @return value or null if it can't be decoded
+	 */
+	@Override
+	public V getValue() {
+		if (encoded != null) {
+			try {
+				value = codec.decode(encoded);
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (metrics != null) {
+					metrics.decodeError();
+				}
+			}
+			encoded = null;
+		}
+		return value;
+	}
+
+	/**
+	 * If value is decoded
+	 *
+	 * @return true/false
+	 */
+	public boolean isDecoded() {
+		return encoded == null;
+	}
+
+	/**
+	 * Put value to map
+	 *
+	 * @param value
+	 *            new value
+	 * @return old value of entry
+	 */
+	@Override
+	public V setValue(V value) {
+		V old = getValue();
+		map.put(key, value);
+		this.value = value;
+		return old;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Map.Entry)) {
+			return false;
+		}
+		Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+		V v = getValue();
+		return key.equals(e.getKey()) && (v == null ? e.getValue() == null : v.equals(e.getValue()));
+	}
+
+	@Override
+	public int hashCode() {
+		V v = getValue();
+		return key.hashCode() ^ (v == null ? 0 : v.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		return key + "=" + getValue();
+	}
+
+}
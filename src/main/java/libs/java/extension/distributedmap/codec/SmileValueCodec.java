@@ -0,0 +1,29 @@
+package libs.java.extension.distributedmap.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Compact binary codec using Smile (binary JSON) format. Same value mapping
+ * as {@link JsonValueCodec}, but smaller payload and faster to encode/decode.
+ * Data in redis is not readable as text, and all processes using a map must
+ * use same codec.
+ * 
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class SmileValueCodec<V> extends JsonValueCodec<V> {
+
+	/**
+	 * Constructor
+	 * 
+	 * @param type
+	 *            class type of value
+	 */
+	public SmileValueCodec(Class<V> type) {
+		super(new ObjectMapper(new SmileFactory()), type);
+	}
+
+}
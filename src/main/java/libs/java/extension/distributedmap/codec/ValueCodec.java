@@ -0,0 +1,55 @@
+package libs.java.extension.distributedmap.codec;
+
+import java.io.IOException;
+
+/**
+ * Converts map values to bytes stored in shared memory and sent in map
+ * events, and back. One codec instance is shared by map, event publisher and
+ * subscriber, so implementation must be thread safe.
+ * 
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public interface ValueCodec<V> {
+
+	/**
+	 * Encode value
+	 * 
+	 * @param value
+	 *            value
+	 * @return encoded bytes
+	 * @throws IOException
+	 *             if value can't be encoded
+	 */
+	byte[] encode(V value) throws IOException;
+
+	/**
+	 * Decode value
+	 * 
+	 * @param data
+	 *            encoded bytes
+	 * @return value
+	 * @throws IOException
+	 *             if data can't be decoded
+	 */
+	V decode(byte[] data) throws IOException;
+
+	/**
+	 * Decode value from part of array, avoids copy of bytes received as part
+	 * of a larger message
+	 * 
+	 * @param data
+	 *            array containing encoded bytes
+	 * @param offset
+	 *            start of encoded bytes
+	 * @param length
+	 *            number of encoded bytes
+	 * @return value
+	 * @throws IOException
+	 *             if data can't be decoded
+	 */
+	V decode(byte[] data, int offset, int length) throws IOException;
+
+}
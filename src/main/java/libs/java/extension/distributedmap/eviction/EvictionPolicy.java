@@ -0,0 +1,69 @@
+package libs.java.extension.distributedmap.eviction;
+
+/**
+ * Decides which key is evicted from local map when local key limit is
+ * reached, so local map holds the keys used most. Without a policy new keys
+ * are not added to a full local map. Implementation must be thread safe, and
+ * an instance must be used by one map only.
+ * 
+ * @author Kuldeep
+ *
+ */
+public interface EvictionPolicy {
+
+	/**
+	 * Called once by map before use
+	 * 
+	 * @param capacity
+	 *            local key limit
+	 */
+	void init(int capacity);
+
+	/**
+	 * Key available locally is read or updated
+	 * 
+	 * @param key
+	 *            key
+	 */
+	void onAccess(String key);
+
+	/**
+	 * Key is added to local map
+	 * 
+	 * @param key
+	 *            key
+	 */
+	void onInsert(String key);
+
+	/**
+	 * Key is removed from local map
+	 * 
+	 * @param key
+	 *            key
+	 */
+	void onRemove(String key);
+
+	/**
+	 * Local map is cleared
+	 */
+	void clear();
+
+	/**
+	 * Key to evict if a new key is added to full local map
+	 * 
+	 * @return key or null if there is no key to evict
+	 */
+	String victim();
+
+	/**
+	 * If candidate should replace victim in full local map
+	 * 
+	 * @param candidate
+	 *            new key
+	 * @param victim
+	 *            key returned by {@link #victim()}
+	 * @return true to evict victim and add candidate
+	 */
+	boolean admit(String candidate, String victim);
+
+}
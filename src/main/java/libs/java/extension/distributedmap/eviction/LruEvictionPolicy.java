@@ -0,0 +1,167 @@
+package libs.java.extension.distributedmap.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Least recently used policy, evicts key not accessed for longest time and
+ * always admits new key
+ *
+ * Accesses are not applied to access order by reading thread, they are
+ * recorded in striped ring buffers without locking, and applied in batch by
+ * the thread filling a buffer, if no other thread is applying them, and
+ * before a victim is chosen. A read of local map so takes no lock. Buffers
+ * are lossy, an access recorded while its buffer is full overwrites an older
+ * one, recency of hot keys is kept as they are accessed again.
+ *
+ * @author Kuldeep
+ *
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+	/**
+	 * Accesses kept per stripe, power of 2
+	 */
+	private static final int BUFFER_SIZE = 32;
+
+	/**
+	 * Keys in access order, eldest first. Guarded by lock
+	 */
+	private final LinkedHashMap<String, Boolean> order = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Guards access order
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Recorded accesses, per stripe
+	 */
+	private final AtomicReferenceArray<String>[] buffers;
+
+	/**
+	 * Accesses recorded per stripe, slot of next access
+	 */
+	private final AtomicLong[] counters;
+
+	/**
+	 * Constructor
+	 */
+	@SuppressWarnings("unchecked")
+	public LruEvictionPolicy() {
+		int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+		buffers = (AtomicReferenceArray<String>[]) new AtomicReferenceArray<?>[stripes];
+		counters = new AtomicLong[stripes];
+		for (int i = 0; i < stripes; i++) {
+			buffers[i] = new AtomicReferenceArray<>(BUFFER_SIZE);
+			counters[i] = new AtomicLong();
+		}
+	}
+
+	@Override
+	public void init(int capacity) {
+	}
+
+	@Override
+	public void onAccess(String key) {
+		int stripe = stripe();
+		long slot = counters[stripe].getAndIncrement();
+		buffers[stripe].lazySet((int) (slot & (BUFFER_SIZE - 1)), key);
+		if ((slot & (BUFFER_SIZE - 1)) == BUFFER_SIZE - 1 && lock.tryLock()) {
+			// buffer is full, apply unless another thread does
+			try {
+				drain();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void onInsert(String key) {
+		lock.lock();
+		try {
+			order.put(key, Boolean.TRUE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void onRemove(String key) {
+		lock.lock();
+		try {
+			order.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			drain();
+			order.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String victim() {
+		lock.lock();
+		try {
+			drain();
+			Iterator<String> keys = order.keySet().iterator();
+			return keys.hasNext() ? keys.next() : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean admit(String candidate, String victim) {
+		return true;
+	}
+
+	/**
+	 * Apply access recorded in buffer, lock is held. Accesses of keys not in
+	 * local map anymore are ignored
+	 *
+	 * @param key
+	 *            key accessed
+	 */
+	protected void onAccessApplied(String key) {
+		order.get(key);
+	}
+
+	/**
+	 * Apply recorded accesses, lock is held
+	 */
+	private void drain() {
+		for (AtomicReferenceArray<String> buffer : buffers) {
+			for (int i = 0; i < BUFFER_SIZE; i++) {
+				String key = buffer.get(i);
+				if (key != null && buffer.compareAndSet(i, key, null)) {
+					onAccessApplied(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Buffer of current thread
+	 *
+	 * @return stripe
+	 */
+	private int stripe() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (buffers.length - 1);
+	}
+
+}
@@ -0,0 +1,155 @@
+package libs.java.extension.distributedmap.eviction;
+
+/**
+ * Frequency based admission (TinyLFU) over LRU eviction. Access frequency of
+ * keys, including keys not available locally, is estimated in a small count
+ * min sketch. A new key replaces the least recently used key only if it is
+ * used more often, so a burst of one time reads does not flush hot keys out
+ * of local map. Frequencies are halved periodically, so the policy adapts when
+ * working set changes. Reads of local keys are counted as buffered by
+ * {@link LruEvictionPolicy}, a few may be lost under heavy load.
+ * 
+ * @author Kuldeep
+ *
+ */
+public class TinyLfuEvictionPolicy extends LruEvictionPolicy {
+
+	/**
+	 * Rows of sketch
+	 */
+	private static final int DEPTH = 4;
+
+	/**
+	 * Max value of a counter
+	 */
+	private static final int MAX_COUNT = 15;
+
+	/**
+	 * Seeds of row hash functions
+	 */
+	private static final int[] SEEDS = { 0x97cb3127, 0xc3a5c85c, 0x4cf5ad43, 0x2127599b };
+
+	/**
+	 * Counters, DEPTH rows of width. Guarded by this
+	 */
+	private int[] table;
+
+	/**
+	 * Width of row, power of 2
+	 */
+	private int width;
+
+	/**
+	 * Increments since last halving
+	 */
+	private int additions;
+
+	/**
+	 * Increments after which counters are halved
+	 */
+	private int sampleSize;
+
+	@Override
+	public synchronized void init(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		width = size;
+		table = new int[DEPTH * width];
+		sampleSize = 10 * Math.max(capacity, 16);
+	}
+
+	@Override
+	protected void onAccessApplied(String key) {
+		// counted when buffered accesses are applied, reads take no lock
+		super.onAccessApplied(key);
+		increment(key);
+	}
+
+	@Override
+	public void onInsert(String key) {
+		super.onInsert(key);
+		increment(key);
+	}
+
+	@Override
+	public boolean admit(String candidate, String victim) {
+		// an attempt to add is an access of candidate
+		increment(candidate);
+		return frequency(candidate) > frequency(victim);
+	}
+
+	/**
+	 * Increment estimated frequency of key
+	 * 
+	 * @param key
+	 *            key
+	 */
+	private synchronized void increment(String key) {
+		int hash = spread(key.hashCode());
+		boolean added = false;
+		for (int i = 0; i < DEPTH; i++) {
+			int index = i * width + index(hash, i);
+			if (table[index] < MAX_COUNT) {
+				table[index]++;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	/**
+	 * Estimated frequency of key
+	 * 
+	 * @param key
+	 *            key
+	 * @return frequency
+	 */
+	private synchronized int frequency(String key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_COUNT;
+		for (int i = 0; i < DEPTH; i++) {
+			frequency = Math.min(frequency, table[i * width + index(hash, i)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halve all counters, ages old frequencies
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] >>>= 1;
+		}
+		additions >>>= 1;
+	}
+
+	/**
+	 * Column of hash in row
+	 * 
+	 * @param hash
+	 *            spread hash of key
+	 * @param row
+	 *            row
+	 * @return column
+	 */
+	private int index(int hash, int row) {
+		int h = (hash + SEEDS[row]) * SEEDS[row];
+		h ^= h >>> 16;
+		return h & (width - 1);
+	}
+
+	/**
+	 * Spread bits of hash code
+	 * 
+	 * @param h
+	 *            hash code
+	 * @return spread hash
+	 */
+	private static int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		return h ^ (h >>> 16);
+	}
+
+}
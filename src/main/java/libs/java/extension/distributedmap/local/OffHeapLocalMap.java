@@ -0,0 +1,872 @@
+package libs.java.extension.distributedmap.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import libs.java.extension.distributedmap.codec.LazyEntry;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+
+/**
+ * Local map keeping keys and encoded values outside java heap, in direct
+ * {@link ByteBuffer} slabs. Values are encoded on put and decoded on each get,
+ * so heap holds only an index (a hash and an address per key) and local map
+ * can hold many more keys than heap would allow. Can be passed as root map of
+ * a {@link libs.java.extension.distributedmap.DistributedMap}.
+ *
+ * Keys are split into segments by hash, each segment has its own index, slabs
+ * and read write lock, so threads using different segments don't wait for
+ * each other and reads of a segment run in parallel. Records are appended to
+ * slabs, space of removed or replaced records is reclaimed by copying live
+ * records of a segment to new slabs when more than half of it is unused.
+ *
+ * Values returned are new objects on each get, changing them does not change
+ * map. Null keys and values are not supported. remove(key, value) and
+ * replace(key, old, new) compare encoded values, so codec must encode equal
+ * values to equal bytes.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class OffHeapLocalMap<V> extends AbstractMap<String, V> implements ConcurrentMap<String, V> {
+
+	/**
+	 * Default number of segments
+	 */
+	public static final int DEFAULT_SEGMENTS = 64;
+
+	/**
+	 * Default slab size, 16 MB
+	 */
+	public static final int DEFAULT_SLAB_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Value codec
+	 */
+	private final ValueCodec<V> codec;
+
+	/**
+	 * Segments, count is a power of two
+	 */
+	private final Segment[] segments;
+
+	/**
+	 * Shift of mixed hash selecting segment, 32 - log2(segment count)
+	 */
+	private final int segmentShift;
+
+	/**
+	 * Measurements of map, decode failures are recorded, null if not set
+	 */
+	private volatile MapMetrics metrics;
+
+	/**
+	 * Entry set view
+	 */
+	private Set<Map.Entry<String, V>> entrySet;
+
+	/**
+	 * Constructor, default segments and slab size
+	 *
+	 * @param codec
+	 *            value codec, same as codec of map is a good choice
+	 */
+	public OffHeapLocalMap(ValueCodec<V> codec) {
+		this(codec, DEFAULT_SEGMENTS, DEFAULT_SLAB_BYTES);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param codec
+	 *            value codec
+	 * @param segments
+	 *            number of segments, rounded up to a power of two
+	 * @param slabBytes
+	 *            size of a slab, a larger record gets a slab of its own
+	 * @throws IllegalStateException
+	 *             if codec is null or sizes are not positive
+	 */
+	public OffHeapLocalMap(ValueCodec<V> codec, int segments, int slabBytes) {
+		if (codec == null) {
+			throw new IllegalStateException("Codec can't be null");
+		}
+		if (segments <= 0 || slabBytes <= 0) {
+			throw new IllegalStateException("Segments and slab size must be positive");
+		}
+		this.codec = codec;
+		int count = Integer.highestOneBit(segments);
+		if (count < segments) {
+			count <<= 1;
+		}
+		this.segments = new Segment[count];
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(count);
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new Segment(slabBytes);
+		}
+	}
+
+	/**
+	 * Spread hash of key
+	 *
+	 * @param key
+	 *            key
+	 * @return hash
+	 */
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Segment of hash
+	 *
+	 * @param hash
+	 *            spread hash
+	 * @return segment
+	 */
+	private Segment segment(int hash) {
+		// top bits of a multiplicative hash depend on all bits of hash, low
+		// bits of hash select slot within segment
+		long mixed = (hash * 0x9E3779B9) & 0xFFFFFFFFL;
+		return segments[(int) (mixed >>> segmentShift)];
+	}
+
+	/**
+	 * Set measurements decode failures are recorded to. Set by
+	 * {@link libs.java.extension.distributedmap.redis.DistributedRedisMap}
+	 * when map is its root map
+	 *
+	 * @param metrics
+	 *            metrics
+	 */
+	public void setMetrics(MapMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Encode value
+	 *
+	 * @param value
+	 *            value
+	 * @return encoded bytes
+	 * @throws IllegalStateException
+	 *             if value can't be encoded
+	 */
+	private byte[] encode(V value) {
+		if (value == null) {
+			throw new IllegalStateException("Value can't be null");
+		}
+		try {
+			return codec.encode(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode value
+	 *
+	 * @param bytes
+	 *            encoded bytes, can be null
+	 * @return value, null if bytes is null or can't be decoded
+	 */
+	private V decode(byte[] bytes) {
+		if (bytes == null) {
+			return null;
+		}
+		try {
+			return codec.decode(bytes);
+		} catch (IOException e) {
+			e.printStackTrace();
+			MapMetrics metrics = this.metrics;
+			if (metrics != null) {
+				metrics.decodeError();
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public V get(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int hash = hash(key);
+		return decode(segment(hash).get((String) key, hash));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (!(key instanceof String)) {
+			return false;
+		}
+		int hash = hash(key);
+		return segment(hash).contains((String) key, hash);
+	}
+
+	@Override
+	public V put(String key, V value) {
+		int hash = hash(key);
+		return decode(segment(hash).put(key, hash, encode(value), false));
+	}
+
+	@Override
+	public V putIfAbsent(String key, V value) {
+		int hash = hash(key);
+		return decode(segment(hash).put(key, hash, encode(value), true));
+	}
+
+	@Override
+	public V remove(Object key) {
+		if (!(key instanceof String)) {
+			return null;
+		}
+		int hash = hash(key);
+		return decode(segment(hash).remove((String) key, hash, null));
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (!(key instanceof String) || value == null) {
+			return false;
+		}
+		int hash = hash(key);
+		@SuppressWarnings("unchecked")
+		byte[] expected = encode((V) value);
+		return segment(hash).remove((String) key, hash, expected) != null;
+	}
+
+	@Override
+	public V replace(String key, V value) {
+		int hash = hash(key);
+		return decode(segment(hash).replace(key, hash, null, encode(value)));
+	}
+
+	@Override
+	public boolean replace(String key, V oldValue, V newValue) {
+		int hash = hash(key);
+		return segment(hash).replace(key, hash, encode(oldValue), encode(newValue)) != null;
+	}
+
+	@Override
+	public int size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.count;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public boolean isEmpty() {
+		for (Segment segment : segments) {
+			if (segment.count > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Removes all keys, slabs are released
+	 */
+	@Override
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Bytes of slabs allocated outside heap
+	 *
+	 * @return bytes
+	 */
+	public long offHeapBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.allocated();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Entries are copied segment by segment when iterated, values are decoded
+	 * on access (See {@link LazyEntry}). Iteration does not fail on concurrent
+	 * updates
+	 *
+	 * @return entry set
+	 */
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new AbstractSet<Map.Entry<String, V>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, V>> iterator() {
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size() {
+					return OffHeapLocalMap.this.size();
+				}
+
+				@Override
+				public void clear() {
+					OffHeapLocalMap.this.clear();
+				}
+			};
+		}
+		return entrySet;
+	}
+
+	/**
+	 * Iterates entries, copying keys and encoded values of one segment at a
+	 * time
+	 */
+	private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+
+		/**
+		 * Next segment to copy
+		 */
+		private int nextSegment;
+
+		/**
+		 * Keys and encoded values of current segment, alternating
+		 */
+		private List<Object> page = new ArrayList<>();
+
+		/**
+		 * Position in page
+		 */
+		private int index;
+
+		/**
+		 * Key of last entry returned
+		 */
+		private String last;
+
+		@Override
+		public boolean hasNext() {
+			while (index >= page.size() && nextSegment < segments.length) {
+				page = segments[nextSegment++].copy();
+				index = 0;
+			}
+			return index < page.size();
+		}
+
+		@Override
+		public Map.Entry<String, V> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			last = (String) page.get(index);
+			byte[] value = (byte[]) page.get(index + 1);
+			index += 2;
+			return new LazyEntry<V>(last, value, codec, OffHeapLocalMap.this, metrics);
+		}
+
+		@Override
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			OffHeapLocalMap.this.remove(last);
+			last = null;
+		}
+	}
+
+	/**
+	 * Part of map, an open addressing index (linear probing) on heap and
+	 * records in slabs. Record is key length, value length, key (UTF-8) and
+	 * value. Address of a record is slab index and offset
+	 */
+	private static class Segment {
+
+		/**
+		 * Initial index slots
+		 */
+		private static final int INITIAL_SLOTS = 16;
+
+		/**
+		 * Guards segment
+		 */
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/**
+		 * Size of a slab
+		 */
+		private final int slabBytes;
+
+		/**
+		 * Hash of key per slot
+		 */
+		private int[] hashes = new int[INITIAL_SLOTS];
+
+		/**
+		 * Address + 1 of record per slot, 0 if slot is empty
+		 */
+		private long[] addresses = new long[INITIAL_SLOTS];
+
+		/**
+		 * Number of keys
+		 */
+		private volatile int count;
+
+		/**
+		 * Slabs, last one is written
+		 */
+		private List<ByteBuffer> slabs = new ArrayList<>();
+
+		/**
+		 * Bytes of slabs taken by records
+		 */
+		private long used;
+
+		/**
+		 * Bytes of records removed or replaced
+		 */
+		private long garbage;
+
+		/**
+		 * Constructor
+		 *
+		 * @param slabBytes
+		 *            size of a slab
+		 */
+		Segment(int slabBytes) {
+			this.slabBytes = slabBytes;
+		}
+
+		/**
+		 * Slot of key
+		 *
+		 * @param key
+		 *            encoded key
+		 * @param hash
+		 *            hash
+		 * @return slot or -1 if key is not available
+		 */
+		private int find(byte[] key, int hash) {
+			int mask = addresses.length - 1;
+			for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+				long address = addresses[slot];
+				if (address == 0) {
+					return -1;
+				}
+				if (hashes[slot] == hash && keyEquals(address - 1, key)) {
+					return slot;
+				}
+			}
+		}
+
+		/**
+		 * If record has key
+		 *
+		 * @param address
+		 *            record address
+		 * @param key
+		 *            encoded key
+		 * @return true/false
+		 */
+		private boolean keyEquals(long address, byte[] key) {
+			ByteBuffer slab = slabs.get((int) (address >>> 32));
+			int offset = (int) address;
+			if (slab.getInt(offset) != key.length) {
+				return false;
+			}
+			offset += 8;
+			for (int i = 0; i < key.length; i++) {
+				if (slab.get(offset + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Encoded value of record
+		 *
+		 * @param address
+		 *            record address
+		 * @return value bytes
+		 */
+		private byte[] value(long address) {
+			ByteBuffer slab = slabs.get((int) (address >>> 32)).duplicate();
+			int offset = (int) address;
+			int keyLength = slab.getInt(offset);
+			byte[] value = new byte[slab.getInt(offset + 4)];
+			slab.position(offset + 8 + keyLength);
+			slab.get(value);
+			return value;
+		}
+
+		/**
+		 * Encoded key of record
+		 *
+		 * @param address
+		 *            record address
+		 * @return key bytes
+		 */
+		private byte[] key(long address) {
+			ByteBuffer slab = slabs.get((int) (address >>> 32)).duplicate();
+			int offset = (int) address;
+			byte[] key = new byte[slab.getInt(offset)];
+			slab.position(offset + 8);
+			slab.get(key);
+			return key;
+		}
+
+		/**
+		 * Size of record
+		 *
+		 * @param address
+		 *            record address
+		 * @return bytes
+		 */
+		private int recordBytes(long address) {
+			ByteBuffer slab = slabs.get((int) (address >>> 32));
+			int offset = (int) address;
+			return 8 + slab.getInt(offset) + slab.getInt(offset + 4);
+		}
+
+		/**
+		 * Append record to last slab, new slab if it does not fit
+		 *
+		 * @param key
+		 *            encoded key
+		 * @param value
+		 *            encoded value
+		 * @return address
+		 */
+		private long append(byte[] key, byte[] value) {
+			int bytes = 8 + key.length + value.length;
+			ByteBuffer slab = slabs.isEmpty() ? null : slabs.get(slabs.size() - 1);
+			if (slab == null || slab.remaining() < bytes) {
+				slab = ByteBuffer.allocateDirect(Math.max(slabBytes, bytes));
+				slabs.add(slab);
+			}
+			long address = ((long) (slabs.size() - 1) << 32) | slab.position();
+			slab.putInt(key.length).putInt(value.length).put(key).put(value);
+			used += bytes;
+			return address;
+		}
+
+		/**
+		 * Encoded value of key
+		 *
+		 * @param key
+		 *            key
+		 * @param hash
+		 *            hash
+		 * @return value bytes or null
+		 */
+		byte[] get(String key, int hash) {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			lock.readLock().lock();
+			try {
+				int slot = find(k, hash);
+				return slot < 0 ? null : value(addresses[slot] - 1);
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * If key is available
+		 *
+		 * @param key
+		 *            key
+		 * @param hash
+		 *            hash
+		 * @return true/false
+		 */
+		boolean contains(String key, int hash) {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			lock.readLock().lock();
+			try {
+				return find(k, hash) >= 0;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Put encoded value
+		 *
+		 * @param key
+		 *            key
+		 * @param hash
+		 *            hash
+		 * @param value
+		 *            encoded value
+		 * @param onlyIfAbsent
+		 *            do not replace value of available key
+		 * @return encoded old value or null
+		 */
+		byte[] put(String key, int hash, byte[] value, boolean onlyIfAbsent) {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			lock.writeLock().lock();
+			try {
+				int slot = find(k, hash);
+				if (slot >= 0) {
+					long old = addresses[slot] - 1;
+					byte[] oldValue = value(old);
+					if (!onlyIfAbsent) {
+						garbage += recordBytes(old);
+						addresses[slot] = append(k, value) + 1;
+						compactIfNeeded();
+					}
+					return oldValue;
+				}
+				if ((count + 1) * 4 > addresses.length * 3) {
+					resize(addresses.length * 2);
+				}
+				int mask = addresses.length - 1;
+				slot = hash & mask;
+				while (addresses[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				hashes[slot] = hash;
+				addresses[slot] = append(k, value) + 1;
+				count++;
+				return null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Replace value of available key
+		 *
+		 * @param key
+		 *            key
+		 * @param hash
+		 *            hash
+		 * @param expected
+		 *            encoded current value, null for any value
+		 * @param value
+		 *            encoded new value
+		 * @return encoded old value, null if key is not available or value is
+		 *         not as expected
+		 */
+		byte[] replace(String key, int hash, byte[] expected, byte[] value) {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			lock.writeLock().lock();
+			try {
+				int slot = find(k, hash);
+				if (slot < 0) {
+					return null;
+				}
+				long old = addresses[slot] - 1;
+				byte[] oldValue = value(old);
+				if (expected != null && !Arrays.equals(expected, oldValue)) {
+					return null;
+				}
+				garbage += recordBytes(old);
+				addresses[slot] = append(k, value) + 1;
+				compactIfNeeded();
+				return oldValue;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Remove key
+		 *
+		 * @param key
+		 *            key
+		 * @param hash
+		 *            hash
+		 * @param expected
+		 *            encoded current value, null for any value
+		 * @return encoded old value, null if key is not available or value is
+		 *         not as expected
+		 */
+		byte[] remove(String key, int hash, byte[] expected) {
+			byte[] k = key.getBytes(StandardCharsets.UTF_8);
+			lock.writeLock().lock();
+			try {
+				int slot = find(k, hash);
+				if (slot < 0) {
+					return null;
+				}
+				long old = addresses[slot] - 1;
+				byte[] oldValue = value(old);
+				if (expected != null && !Arrays.equals(expected, oldValue)) {
+					return null;
+				}
+				garbage += recordBytes(old);
+				deleteSlot(slot);
+				count--;
+				if (count == 0) {
+					release();
+				} else {
+					compactIfNeeded();
+				}
+				return oldValue;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Empty slot, moving back following keys of probe sequence so no
+		 * tombstone is needed
+		 *
+		 * @param slot
+		 *            slot
+		 */
+		private void deleteSlot(int slot) {
+			int mask = addresses.length - 1;
+			int hole = slot;
+			for (int next = (hole + 1) & mask; addresses[next] != 0; next = (next + 1) & mask) {
+				int home = hashes[next] & mask;
+				// key at next can move to hole if hole is between its home
+				// slot and next (cyclically)
+				boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+				if (movable) {
+					addresses[hole] = addresses[next];
+					hashes[hole] = hashes[next];
+					hole = next;
+				}
+			}
+			addresses[hole] = 0;
+			hashes[hole] = 0;
+		}
+
+		/**
+		 * Grow index
+		 *
+		 * @param slots
+		 *            new slot count, power of two
+		 */
+		private void resize(int slots) {
+			int[] oldHashes = hashes;
+			long[] oldAddresses = addresses;
+			hashes = new int[slots];
+			addresses = new long[slots];
+			int mask = slots - 1;
+			for (int i = 0; i < oldAddresses.length; i++) {
+				if (oldAddresses[i] == 0) {
+					continue;
+				}
+				int slot = oldHashes[i] & mask;
+				while (addresses[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				hashes[slot] = oldHashes[i];
+				addresses[slot] = oldAddresses[i];
+			}
+		}
+
+		/**
+		 * Copy live records to new slabs if more than half of used space is
+		 * garbage
+		 */
+		private void compactIfNeeded() {
+			if (garbage * 2 <= used || used <= slabBytes) {
+				return;
+			}
+			List<ByteBuffer> oldSlabs = slabs;
+			long[] oldAddresses = addresses.clone();
+			slabs = new ArrayList<>();
+			used = 0;
+			garbage = 0;
+			for (int i = 0; i < oldAddresses.length; i++) {
+				if (oldAddresses[i] == 0) {
+					continue;
+				}
+				long address = oldAddresses[i] - 1;
+				ByteBuffer slab = oldSlabs.get((int) (address >>> 32)).duplicate();
+				int offset = (int) address;
+				byte[] key = new byte[slab.getInt(offset)];
+				byte[] value = new byte[slab.getInt(offset + 4)];
+				slab.position(offset + 8);
+				slab.get(key).get(value);
+				addresses[i] = append(key, value) + 1;
+			}
+		}
+
+		/**
+		 * Drop all slabs
+		 */
+		private void release() {
+			slabs = new ArrayList<>();
+			used = 0;
+			garbage = 0;
+		}
+
+		/**
+		 * Remove all keys
+		 */
+		void clear() {
+			lock.writeLock().lock();
+			try {
+				hashes = new int[INITIAL_SLOTS];
+				addresses = new long[INITIAL_SLOTS];
+				count = 0;
+				release();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		/**
+		 * Bytes of slabs allocated
+		 *
+		 * @return bytes
+		 */
+		long allocated() {
+			lock.readLock().lock();
+			try {
+				long bytes = 0;
+				for (ByteBuffer slab : slabs) {
+					bytes += slab.capacity();
+				}
+				return bytes;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Copy keys and encoded values
+		 *
+		 * @return keys and values, alternating
+		 */
+		List<Object> copy() {
+			lock.readLock().lock();
+			try {
+				List<Object> out = new ArrayList<>(count * 2);
+				for (long address : addresses) {
+					if (address != 0) {
+						out.add(new String(key(address - 1), StandardCharsets.UTF_8));
+						out.add(value(address - 1));
+					}
+				}
+				return out;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,280 @@
+package libs.java.extension.distributedmap.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps measurements in memory, counters are {@link LongAdder}s and latencies
+ * are {@link LatencyHistogram}s, so recording does not contend between
+ * threads. Values are pulled by getters (or per operation by
+ * {@link #latency(MapOperation)}) and can be exposed through JMX by
+ * {@link #register(String)}.
+ *
+ * @author Kuldeep
+ *
+ */
+public class DefaultMapMetrics implements MapMetrics, MapMetricsMXBean {
+
+	/**
+	 * JMX domain
+	 */
+	public static final String JMX_DOMAIN = "libs.java.extension.distributedmap";
+
+	/**
+	 * Reads served locally
+	 */
+	private final LongAdder localHits = new LongAdder();
+
+	/**
+	 * Reads not served locally
+	 */
+	private final LongAdder localMisses = new LongAdder();
+
+	/**
+	 * Decode failures
+	 */
+	private final LongAdder decodeErrors = new LongAdder();
+
+	/**
+	 * Latency per operation, nanoseconds
+	 */
+	private final Map<MapOperation, LatencyHistogram> latencies = new EnumMap<>(MapOperation.class);
+
+	/**
+	 * Failures per operation
+	 */
+	private final Map<MapOperation, LongAdder> errors = new EnumMap<>(MapOperation.class);
+
+	/**
+	 * Event lag, milliseconds
+	 */
+	private final LatencyHistogram eventLag = new LatencyHistogram();
+
+	/**
+	 * Events applied, including events without lag
+	 */
+	private final LongAdder eventsApplied = new LongAdder();
+
+	/**
+	 * Registered gauges
+	 */
+	private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	/**
+	 * JMX name, null if not registered
+	 */
+	private ObjectName objectName;
+
+	/**
+	 * Constructor
+	 */
+	public DefaultMapMetrics() {
+		for (MapOperation operation : MapOperation.values()) {
+			latencies.put(operation, new LatencyHistogram());
+			errors.put(operation, new LongAdder());
+		}
+	}
+
+	@Override
+	public void localHit() {
+		localHits.increment();
+	}
+
+	@Override
+	public void localMiss() {
+		localMisses.increment();
+	}
+
+	@Override
+	public void operation(MapOperation operation, long nanos) {
+		latencies.get(operation).record(nanos);
+	}
+
+	@Override
+	public void error(MapOperation operation) {
+		errors.get(operation).increment();
+	}
+
+	@Override
+	public void decodeError() {
+		decodeErrors.increment();
+	}
+
+	@Override
+	public void eventApplied(long lagMillis) {
+		eventsApplied.increment();
+		if (lagMillis >= 0) {
+			eventLag.record(lagMillis);
+		}
+	}
+
+	@Override
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Latency histogram of operation, nanoseconds
+	 *
+	 * @param operation
+	 *            operation
+	 * @return histogram
+	 */
+	public LatencyHistogram latency(MapOperation operation) {
+		return latencies.get(operation);
+	}
+
+	/**
+	 * Histogram of time from publish of an event to its apply, milliseconds
+	 *
+	 * @return histogram
+	 */
+	public LatencyHistogram eventLag() {
+		return eventLag;
+	}
+
+	@Override
+	public long getLocalHits() {
+		return localHits.sum();
+	}
+
+	@Override
+	public long getLocalMisses() {
+		return localMisses.sum();
+	}
+
+	@Override
+	public double getLocalHitRatio() {
+		long hits = localHits.sum();
+		long total = hits + localMisses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getDecodeErrors() {
+		return decodeErrors.sum();
+	}
+
+	@Override
+	public Map<String, Long> getErrors() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for (Map.Entry<MapOperation, LongAdder> error : errors.entrySet()) {
+			out.put(error.getKey().name(), error.getValue().sum());
+		}
+		return out;
+	}
+
+	@Override
+	public Map<String, Long> getOperationCounts() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for (Map.Entry<MapOperation, LatencyHistogram> latency : latencies.entrySet()) {
+			out.put(latency.getKey().name(), latency.getValue().count());
+		}
+		return out;
+	}
+
+	@Override
+	public Map<String, Long> getOperationP50Micros() {
+		return percentileMicros(0.5);
+	}
+
+	@Override
+	public Map<String, Long> getOperationP99Micros() {
+		return percentileMicros(0.99);
+	}
+
+	/**
+	 * Percentile of each operation
+	 *
+	 * @param fraction
+	 *            percentile as fraction
+	 * @return operation to microseconds
+	 */
+	private Map<String, Long> percentileMicros(double fraction) {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for (Map.Entry<MapOperation, LatencyHistogram> latency : latencies.entrySet()) {
+			out.put(latency.getKey().name(),
+					TimeUnit.NANOSECONDS.toMicros(latency.getValue().percentile(fraction)));
+		}
+		return out;
+	}
+
+	@Override
+	public long getEventsApplied() {
+		return eventsApplied.sum();
+	}
+
+	@Override
+	public long getEventLagP50Millis() {
+		return eventLag.percentile(0.5);
+	}
+
+	@Override
+	public long getEventLagP99Millis() {
+		return eventLag.percentile(0.99);
+	}
+
+	@Override
+	public long getEventLagMaxMillis() {
+		return eventLag.max();
+	}
+
+	@Override
+	public Map<String, Long> getGauges() {
+		Map<String, Long> out = new LinkedHashMap<>();
+		for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+			out.put(gauge.getKey(), gauge.getValue().getAsLong());
+		}
+		return out;
+	}
+
+	/**
+	 * Register to platform MBean server
+	 *
+	 * @param mapName
+	 *            map name, part of JMX name
+	 */
+	public synchronized void register(String mapName) {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			ObjectName name = new ObjectName(
+					JMX_DOMAIN + ":type=DistributedMap,name=" + ObjectName.quote(mapName));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				// another instance of same map in this process
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Unregister from platform MBean server, if registered
+	 */
+	public synchronized void unregister() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (Exception e) {
+			// already unregistered
+		}
+		objectName = null;
+	}
+
+}
@@ -0,0 +1,165 @@
+package libs.java.extension.distributedmap.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Histogram of non negative values (e.g. nanoseconds), recorded by many
+ * threads without locks. Values are counted in buckets, 8 per power of two,
+ * so a percentile is returned with at most 12.5% error. Values are never
+ * removed, histogram covers whole life of map.
+ *
+ * @author Kuldeep
+ *
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Sub buckets per power of two, as bits
+	 */
+	private static final int SUB_BITS = 3;
+
+	/**
+	 * Sub buckets per power of two
+	 */
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	/**
+	 * Count per bucket
+	 */
+	private final LongAdder[] buckets = new LongAdder[(64 - SUB_BITS) * SUB_BUCKETS];
+
+	/**
+	 * Sum of values
+	 */
+	private final LongAdder sum = new LongAdder();
+
+	/**
+	 * Largest value
+	 */
+	private final LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+
+		@Override
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	}, 0);
+
+	/**
+	 * Constructor
+	 */
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Bucket of value
+	 *
+	 * @param value
+	 *            value
+	 * @return bucket index
+	 */
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Largest value of bucket
+	 *
+	 * @param bucket
+	 *            bucket index
+	 * @return value
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		return ((sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Record value
+	 *
+	 * @param value
+	 *            value, negative is recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets[bucket(value)].increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Number of values recorded
+	 *
+	 * @return count
+	 */
+	public long count() {
+		long count = 0;
+		for (LongAdder bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Mean of values
+	 *
+	 * @return mean, 0 if no value is recorded
+	 */
+	public double mean() {
+		long count = count();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Largest value recorded
+	 *
+	 * @return max, 0 if no value is recorded
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Value below which given fraction of values are
+	 *
+	 * @param fraction
+	 *            fraction, e.g. 0.99
+	 * @return upper bound of bucket of percentile, 0 if no value is recorded
+	 */
+	public long percentile(double fraction) {
+		long[] counts = new long[buckets.length];
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			counts[i] = buckets[i].sum();
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(upperBound(i), max());
+			}
+		}
+		return max();
+	}
+
+}
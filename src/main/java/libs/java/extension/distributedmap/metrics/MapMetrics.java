@@ -0,0 +1,71 @@
+package libs.java.extension.distributedmap.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives measurements of a map, its event publisher and subscriber.
+ * Methods are called on hot paths by many threads, so implementation must be
+ * thread safe and cheap, e.g. only update counters. Default implementation is
+ * {@link DefaultMapMetrics}, another implementation (e.g. forwarding to a
+ * metrics library) can be set by
+ * {@link libs.java.extension.distributedmap.DistributedMapConfig#setMetrics(MapMetrics)}
+ *
+ * @author Kuldeep
+ *
+ */
+public interface MapMetrics {
+
+	/**
+	 * Read served from local map (near cache mode)
+	 */
+	void localHit();
+
+	/**
+	 * Read not available in local map, read from shared memory (near cache
+	 * mode)
+	 */
+	void localMiss();
+
+	/**
+	 * Operation on shared memory completed
+	 *
+	 * @param operation
+	 *            operation
+	 * @param nanos
+	 *            time taken, including round trip to redis
+	 */
+	void operation(MapOperation operation, long nanos);
+
+	/**
+	 * Operation on shared memory failed
+	 *
+	 * @param operation
+	 *            operation
+	 */
+	void error(MapOperation operation);
+
+	/**
+	 * Value read from shared memory or event could not be decoded
+	 */
+	void decodeError();
+
+	/**
+	 * Event of another process applied to local map
+	 *
+	 * @param lagMillis
+	 *            time since event was published, -1 if not known (event of
+	 *            older version). Clocks of processes should be in sync
+	 */
+	void eventApplied(long lagMillis);
+
+	/**
+	 * Register a value read when metrics are pulled, e.g. queue length
+	 *
+	 * @param name
+	 *            name of value
+	 * @param value
+	 *            current value
+	 */
+	void gauge(String name, LongSupplier value);
+
+}
@@ -0,0 +1,105 @@
+package libs.java.extension.distributedmap.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DefaultMapMetrics}, registered as
+ * "libs.java.extension.distributedmap:type=DistributedMap,name=&lt;map&gt;"
+ *
+ * @author Kuldeep
+ *
+ */
+public interface MapMetricsMXBean {
+
+	/**
+	 * Reads served from local map
+	 *
+	 * @return count
+	 */
+	long getLocalHits();
+
+	/**
+	 * Reads not available in local map
+	 *
+	 * @return count
+	 */
+	long getLocalMisses();
+
+	/**
+	 * Local hits / (hits + misses)
+	 *
+	 * @return ratio, 0 if no read
+	 */
+	double getLocalHitRatio();
+
+	/**
+	 * Values or events which could not be decoded
+	 *
+	 * @return count
+	 */
+	long getDecodeErrors();
+
+	/**
+	 * Failed operations per operation name
+	 *
+	 * @return operation to count
+	 */
+	Map<String, Long> getErrors();
+
+	/**
+	 * Completed operations per operation name
+	 *
+	 * @return operation to count
+	 */
+	Map<String, Long> getOperationCounts();
+
+	/**
+	 * Median latency per operation name
+	 *
+	 * @return operation to microseconds
+	 */
+	Map<String, Long> getOperationP50Micros();
+
+	/**
+	 * 99th percentile latency per operation name
+	 *
+	 * @return operation to microseconds
+	 */
+	Map<String, Long> getOperationP99Micros();
+
+	/**
+	 * Events of other processes applied
+	 *
+	 * @return count
+	 */
+	long getEventsApplied();
+
+	/**
+	 * Median time from publish of an event to its apply
+	 *
+	 * @return milliseconds
+	 */
+	long getEventLagP50Millis();
+
+	/**
+	 * 99th percentile time from publish of an event to its apply
+	 *
+	 * @return milliseconds
+	 */
+	long getEventLagP99Millis();
+
+	/**
+	 * Largest time from publish of an event to its apply
+	 *
+	 * @return milliseconds
+	 */
+	long getEventLagMaxMillis();
+
+	/**
+	 * Current values of gauges, e.g. queue lengths
+	 *
+	 * @return name to value
+	 */
+	Map<String, Long> getGauges();
+
+}
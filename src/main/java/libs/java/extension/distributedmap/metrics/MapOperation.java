@@ -0,0 +1,46 @@
+package libs.java.extension.distributedmap.metrics;
+
+/**
+ * Map operation measured by {@link MapMetrics}
+ *
+ * @author Kuldeep
+ *
+ */
+public enum MapOperation {
+	/**
+	 * Read of a key from shared memory
+	 */
+	GET,
+	/**
+	 * Read of many keys from shared memory
+	 */
+	GET_ALL,
+	/**
+	 * Write of a key
+	 */
+	PUT,
+	/**
+	 * Write of many keys
+	 */
+	PUT_ALL,
+	/**
+	 * Remove of a key
+	 */
+	REMOVE,
+	/**
+	 * Conditional update (putIfAbsent, replace, compute, merge)
+	 */
+	ATOMIC,
+	/**
+	 * Clear of map
+	 */
+	CLEAR,
+	/**
+	 * Count of keys in shared memory
+	 */
+	SIZE,
+	/**
+	 * Publish of an event message
+	 */
+	PUBLISH
+}
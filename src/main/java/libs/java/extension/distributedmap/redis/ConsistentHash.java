@@ -0,0 +1,99 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import redis.clients.util.Hashing;
+
+/**
+ * Consistent hash ring of nodes. Each node is placed on ring at a number of
+ * points (hash of node id and point number), a key belongs to node of first
+ * point at or after hash of key. Position of a node depends only on its id, so
+ * all processes with same nodes (in any order) route a key to same node, and
+ * adding/removing a node moves only keys of neighbouring points.
+ *
+ * Ring is immutable, lookups are a binary search over sorted arrays.
+ *
+ * @author Kuldeep
+ *
+ */
+public class ConsistentHash {
+
+	/**
+	 * Points of each node on ring
+	 */
+	public static final int POINTS_PER_NODE = 160;
+
+	/**
+	 * Hash of ring and keys, 64 bit murmur hash
+	 */
+	private static final Hashing HASHING = Hashing.MURMUR_HASH;
+
+	/**
+	 * Sorted points of ring
+	 */
+	private final long[] points;
+
+	/**
+	 * Node index of each point
+	 */
+	private final int[] owners;
+
+	/**
+	 * Constructor
+	 *
+	 * @param nodes
+	 *            ids of nodes (e.g. "host:port"), index of node in list is
+	 *            returned by {@link #node(String)}
+	 */
+	public ConsistentHash(List<String> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalStateException("No node in ring");
+		}
+		int size = nodes.size() == 1 ? 0 : nodes.size() * POINTS_PER_NODE;
+		long[][] ring = new long[size][];
+		int p = 0;
+		for (int i = 0; i < nodes.size() && size > 0; i++) {
+			for (int n = 0; n < POINTS_PER_NODE; n++) {
+				ring[p++] = new long[] { HASHING.hash(nodes.get(i) + "#" + n), i };
+			}
+		}
+		Arrays.sort(ring, new Comparator<long[]>() {
+
+			@Override
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		points = new long[size];
+		owners = new int[size];
+		for (int i = 0; i < size; i++) {
+			points[i] = ring[i][0];
+			owners[i] = (int) ring[i][1];
+		}
+	}
+
+	/**
+	 * Node of key
+	 *
+	 * @param key
+	 *            key
+	 * @return index of node in list given to constructor
+	 */
+	public int node(String key) {
+		if (points.length == 0) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(points, HASHING.hash(key));
+		if (i < 0) {
+			i = -i - 1;
+			if (i == points.length) {
+				// wraps to first point
+				i = 0;
+			}
+		}
+		return owners[i];
+	}
+
+}
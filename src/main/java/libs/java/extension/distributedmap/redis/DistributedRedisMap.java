@@ -1,24 +1,58 @@
 package libs.java.extension.distributedmap.redis;
 
-import java.util.AbstractMap;
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
-
+import libs.java.extension.distributedmap.AsyncDistributedMap;
 import libs.java.extension.distributedmap.DistributedMap;
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.codec.CompressingValueCodec;
+import libs.java.extension.distributedmap.codec.JsonValueCodec;
+import libs.java.extension.distributedmap.codec.LazyEntry;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.local.OffHeapLocalMap;
+import libs.java.extension.distributedmap.metrics.DefaultMapMetrics;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import libs.java.extension.distributedmap.metrics.MapOperation;
+import libs.java.extension.distributedmap.redis.RedisAtomicUpdate.Expect;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
 
 /**
  * An implementation of {@link DistributedMap} using redis as shared storage.
- * See Dis
+ * Redis commands are run on connections taken from a pool, so the map can be
+ * used from multiple threads, and each thread runs its command in parallel
+ * with others (up to pool size). Local map is updated by caller threads and
+ * event subscriber in parallel, keys are counted atomically against local key
+ * limit. Local map passed should be a concurrent map (e.g. ConcurrentHashMap,
+ * or null for one), other maps are synchronized.
+ * 
+ * Map can be sharded over multiple redis nodes (See
+ * {@link DistributedMapConfig#setShardNodes(List)}), each node is a
+ * {@link RedisShard}. Single key operations go to shard of the key, bulk
+ * operations are split per shard and views iterate shards one after another.
  *
  * @see DistributedMap
  * 
@@ -30,24 +64,59 @@ import redis.clients.jedis.Jedis;
 public class DistributedRedisMap<K, V> extends DistributedMap<String, V> {
 
 	/**
-	 * Jedis client for redis
+	 * Shards of map, one per redis node
+	 */
+	private RedisShard<V>[] shards;
+
+	/**
+	 * Ring routing keys to shards
+	 */
+	private ConsistentHash ring;
+
+	/**
+	 * Async view
+	 */
+	private RedisAsyncMap<V> async;
+
+	/**
+	 * Value codec, shared with publisher and subscriber
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Redis hash keys of map
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Serve reads from local map when key is available locally
+	 */
+	private boolean nearCache;
+
+	/**
+	 * Time to live of keys put without time to live, 0 if keys don't expire
+	 */
+	private long defaultTtlMillis;
+
+	/**
+	 * Fields fetched per HSCAN by views
 	 */
-	private Jedis jedis;
+	private int scanPageSize;
 
 	/**
-	 * JSON writer
+	 * File local keys are saved to on close, null if not saved
 	 */
-	private ObjectWriter writer;
+	private File hotKeysFile;
 
 	/**
-	 * JSON reader
+	 * Snapshot of local map, null if not enabled
 	 */
-	private ObjectReader reader;
+	private RedisLocalSnapshot<V> snapshot;
 
 	/**
-	 * Publisher of map event to redis
+	 * Measurements of map
 	 */
-	private RedisMapEventPublisher<V> publisher;
+	private MapMetrics metrics;
 
 	/**
 	 * Creates Distributed map
@@ -69,159 +138,722 @@ public class DistributedRedisMap<K, V> extends DistributedMap<String, V> {
 	 */
 	public DistributedRedisMap(String mapName, Map<String, V> rootMap, int localKeyLimit, Class<V> type,
 			final String host, int port, String password) {
-		super(mapName, rootMap, localKeyLimit);
-		jedis = new Jedis(host, port);
-		if (password != null) {
-			jedis.auth(password);
-		}
-		ObjectMapper mapper = new ObjectMapper();
-		writer = mapper.writer();
-		reader = mapper.reader();
-		reader = reader.forType(type);
-		jedis.connect();
-		this.name = mapName;
-		super.localKeyLimit = localKeyLimit;
-
-		initPubSubs(host, port, password, rootMap, type);
+		this(mapName, rootMap, localKeyLimit, type, host, port, password, new DistributedMapConfig());
 	}
 
 	/**
-	 * Initialized pub/subs
+	 * Creates Distributed map
 	 * 
+	 * @param mapName
+	 *            name of map
+	 * @param rootMap
+	 *            underlying map
+	 * @param localKeyLimit
+	 *            local key limit
+	 * @param type
+	 *            class type of V
 	 * @param host
 	 *            redis host
 	 * @param port
 	 *            redis port
 	 * @param password
-	 *            redis password
-	 * @param rootMap
-	 *            underlying map
+	 *            password of redis if any
+	 * @param config
+	 *            optional settings of map
+	 */
+	public DistributedRedisMap(String mapName, Map<String, V> rootMap, int localKeyLimit, Class<V> type,
+			final String host, int port, String password, DistributedMapConfig config) {
+		super(mapName, rootMap, localKeyLimit, config.getEvictionPolicy());
+		this.nearCache = config.isNearCache();
+		this.codec = codec(config, type);
+		this.name = mapName;
+		this.buckets = new RedisBuckets(mapName, config.getHashBuckets());
+		super.localKeyLimit = localKeyLimit;
+
+		this.defaultTtlMillis = config.getDefaultTtlMillis();
+		this.scanPageSize = config.getScanPageSize();
+
+		List<String> nodes = config.getShardNodes();
+		if (nodes == null || nodes.isEmpty()) {
+			nodes = Collections.singletonList(host + ":" + port);
+		}
+		metrics = config.getMetrics() != null ? config.getMetrics() : new DefaultMapMetrics();
+		if (underlyingMap instanceof OffHeapLocalMap) {
+			((OffHeapLocalMap<?>) underlyingMap).setMetrics(metrics);
+		}
+		// identifies events of this instance, which subscribers ignore
+		long origin = new SecureRandom().nextLong();
+		Map<String, String> positions = null;
+		if (config.getSnapshotFile() != null) {
+			if (!config.isStreamEvents()) {
+				throw new IllegalStateException("Snapshot needs stream events");
+			}
+			// loaded before subscribers start, events after snapshot are
+			// replayed over it
+			snapshot = new RedisLocalSnapshot<V>(mapName, new File(config.getSnapshotFile()), this, codec);
+			positions = snapshot.load(nodes);
+		}
+		shards = newShards(nodes.size());
+		for (int i = 0; i < shards.length; i++) {
+			String node = nodes.get(i);
+			int colon = node.lastIndexOf(':');
+			if (colon < 0) {
+				throw new IllegalStateException("Shard node not host:port " + node);
+			}
+			shards[i] = new RedisShard<V>(name, buckets, this, codec, node.substring(0, colon),
+					Integer.parseInt(node.substring(colon + 1)), password, config, origin,
+					positions != null ? positions.get(node) : null, metrics);
+		}
+		registerGauges();
+		if (config.isJmxEnabled() && metrics instanceof DefaultMapMetrics) {
+			((DefaultMapMetrics) metrics).register(mapName);
+		}
+		if (snapshot != null) {
+			snapshot.start(shards, config.getSnapshotIntervalMillis());
+		}
+		ring = new ConsistentHash(nodes);
+		Executor executor = config.getAsyncExecutor();
+		async = new RedisAsyncMap<V>(this, buckets, codec, executor != null ? executor : ForkJoinPool.commonPool());
+		if (config.getHotKeysFile() != null) {
+			hotKeysFile = new File(config.getHotKeysFile());
+		}
+		if (config.isPreloadOnStart()) {
+			try {
+				preload(hotKeysFile != null ? RedisPreloader.loadKeys(hotKeysFile) : null);
+			} catch (Exception e) {
+				// map works without, keys are read on first access
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Register queue lengths and local key count as gauges
+	 */
+	private void registerGauges() {
+		metrics.gauge("publisherQueue", new LongSupplier() {
+
+			@Override
+			public long getAsLong() {
+				long depth = 0;
+				for (RedisShard<V> shard : shards) {
+					depth += shard.getPublisher().getQueueDepth();
+				}
+				return depth;
+			}
+		});
+		metrics.gauge("subscriberQueue", new LongSupplier() {
+
+			@Override
+			public long getAsLong() {
+				long depth = 0;
+				for (RedisShard<V> shard : shards) {
+					depth += shard.getSubscriber().getQueueDepth();
+				}
+				return depth;
+			}
+		});
+		metrics.gauge("localKeys", new LongSupplier() {
+
+			@Override
+			public long getAsLong() {
+				return sizeLocal();
+			}
+		});
+	}
+
+	/**
+	 * Measurements of map
+	 * 
+	 * @return metrics
+	 */
+	public MapMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Codec from config, JSON if not set. Wrapped by
+	 * {@link CompressingValueCodec} if compression is enabled, so values are
+	 * compressed in redis and in events alike
+	 * 
+	 * @param config
+	 *            settings of map
 	 * @param type
 	 *            class type of V
+	 * @return codec
 	 */
-	private void initPubSubs(String host, int port, String password, Map<String, V> rootMap, Class<V> type) {
-		// New jedis client
-		Jedis subscriber = new Jedis(host, port);
-
-		if (password != null) {
-			subscriber.auth(password);
+	@SuppressWarnings("unchecked")
+	private static <V> ValueCodec<V> codec(DistributedMapConfig config, Class<V> type) {
+		ValueCodec<V> codec = config.getCodec() != null ? (ValueCodec<V>) config.getCodec()
+				: new JsonValueCodec<V>(type);
+		if (config.getCompressionThresholdBytes() > 0) {
+			if (config.isLegacyEvents()) {
+				// legacy events carry values as text
+				throw new IllegalStateException("Compression needs binary events");
+			}
+			codec = new CompressingValueCodec<V>(codec, config.getCompressionThresholdBytes());
 		}
-		Jedis publisher = new Jedis(host, port);
+		return codec;
+	}
+
+	/**
+	 * Array of shards
+	 * 
+	 * @param size
+	 *            number of shards
+	 * @return array
+	 */
+	@SuppressWarnings("unchecked")
+	private static <V> RedisShard<V>[] newShards(int size) {
+		return (RedisShard<V>[]) new RedisShard<?>[size];
+	}
+
+	/**
+	 * Shard storing key
+	 * 
+	 * @param key
+	 *            key
+	 * @return shard
+	 */
+	RedisShard<V> shard(String key) {
+		return shards.length == 1 ? shards[0] : shards[ring.node(key)];
+	}
+
+	/**
+	 * If reads are served from local map when key is available locally
+	 * 
+	 * @return true/false
+	 */
+	boolean isNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Time to live of keys put without time to live
+	 * 
+	 * @return time to live in milliseconds, 0 if keys don't expire
+	 */
+	long getDefaultTtlMillis() {
+		return defaultTtlMillis;
+	}
+
+	/**
+	 * Non blocking view of map, commands are pipelined per shard (See
+	 * {@link RedisAsyncMap})
+	 * 
+	 * @return async view
+	 */
+	public AsyncDistributedMap<V> async() {
+		return async;
+	}
+
+	/**
+	 * Index of shard storing key
+	 * 
+	 * @param key
+	 *            key
+	 * @return index in shards
+	 */
+	private int shardIndex(String key) {
+		return shards.length == 1 ? 0 : ring.node(key);
+	}
+
+	/**
+	 * Fills local map from redis (See {@link RedisPreloader})
+	 * 
+	 * @param priorityKeys
+	 *            keys read first, can be null
+	 * @return keys put in local map
+	 */
+	public int preload(Collection<String> priorityKeys) {
+		flush();
+		return new RedisPreloader<V>(this, shards, buckets, codec, localKeyLimit, scanPageSize).preload(priorityKeys);
+	}
 
-		if (password != null) {
-			subscriber.auth(password);
+	/**
+	 * Stops event publishers and subscribers and closes redis connections. Map
+	 * should not be used after close. Local keys are saved to hot keys file if
+	 * set
+	 */
+	public void close() {
+		if (hotKeysFile != null) {
+			RedisPreloader.saveKeys(hotKeysFile, keySetLocal());
+		}
+		if (snapshot != null) {
+			snapshot.close();
+		}
+		if (metrics instanceof DefaultMapMetrics) {
+			((DefaultMapMetrics) metrics).unregister();
 		}
+		for (RedisShard<V> shard : shards) {
+			shard.close();
+		}
+	}
 
-		new RedisMapEventSubscriber<V>(name, this, type, subscriber).init();
-		this.publisher = new RedisMapEventPublisher<V>(name, publisher);
+	/**
+	 * Writes buffered mutations to redis in write behind mode
+	 */
+	public void flush() {
+		for (RedisShard<V> shard : shards) {
+			shard.flush();
+		}
 	}
 
 	/**
-	 * Clears local as well redis
+	 * Clears local as well redis, shard by shard
 	 */
 	public void clear() {
+		for (RedisShard<V> shard : shards) {
+			if (shard.getWriteBehind() != null) {
+				shard.getWriteBehind().clear();
+			}
+			// delete the keys, one DEL per bucket so redis is not blocked
+			// for whole map
+			long start = System.nanoTime();
+			try (Jedis jedis = shard.getPool().getResource()) {
+				Pipeline pipeline = jedis.pipelined();
+				for (int bucket = 0; bucket < buckets.size(); bucket++) {
+					pipeline.del(buckets.key(bucket));
+					shard.getExpiry().clear(pipeline, bucket);
+				}
+				pipeline.sync();
+			} catch (RuntimeException e) {
+				metrics.error(MapOperation.CLEAR);
+				throw e;
+			}
+			metrics.operation(MapOperation.CLEAR, System.nanoTime() - start);
+		}
+		// after redis, a concurrent read can't copy old value afterwards
 		super.clearLocal();
-
-		// delete the key
-		jedis.del(name);
 		// publish event
-		publisher.publish(RedisCommand.CLEAR, null, null);
-
+		for (RedisShard<V> shard : shards) {
+			shard.getPublisher().publish(RedisCommand.CLEAR, null, null);
+		}
 	}
 
 	/**
-	 * Expected all keys always in redis, only redis is checked
+	 * Expected all keys always in redis, only redis is checked. In near cache
+	 * mode local map is checked first.
 	 * 
 	 * @return true/false
 	 */
 	public boolean containsKey(Object key) {
-		return jedis.hexists(name, String.valueOf(key));
+		RedisShard<V> shard = shard(String.valueOf(key));
+		if (shard.getWriteBehind() != null) {
+			RedisWriteBehindBuffer.Pending<V> pending = shard.getWriteBehind().get(String.valueOf(key));
+			if (pending != null) {
+				return !pending.isRemoved();
+			}
+		}
+		if (nearCache && containsKeyLocal(key)) {
+			return true;
+		}
+		try (Jedis jedis = shard.getPool().getResource()) {
+			String k = String.valueOf(key);
+			return jedis.hexists(buckets.keyOf(k), SafeEncoder.encode(k));
+		}
 	}
 
 	/**
-	 * Expected all values always in redis, only redis is checked
+	 * Expected all values always in redis, only redis is checked. In near
+	 * cache mode local map is checked first.
 	 * 
 	 * @return true/false
 	 */
 	public boolean containsValue(Object value) {
-		List<String> values = jedis.hvals(name);
-		for (String aValue : values) {
-			try {
-				V v = reader.readValue(aValue);
-				if (v != null && v.equals(value)) {
-					return true;
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+		if (nearCache && containsValueLocal(value)) {
+			return true;
+		}
+		for (V v : values()) {
+			if (v != null && v.equals(value)) {
+				return true;
 			}
 		}
 		return false;
 	}
 
 	/**
-	 * Return entry set from redis, all the data created by all process
+	 * Return entry set of redis, all the data created by all process. Set is a
+	 * view, entries are read from redis page by page while iterating (See
+	 * {@link RedisHashScanIterator}) and remove from set or iterator removes
+	 * key from map. Values are decoded while iterating, entries of values
+	 * which can't be decoded are skipped. Contains and remove read or update
+	 * only key of entry
 	 * 
 	 * @return entry set
 	 */
 	public Set<java.util.Map.Entry<String, V>> entrySet() {
-		Map<String, String> map = jedis.hgetAll(name);
-		if (map == null) {
-			return null;
-		}
-		Set<Entry<String, V>> entrySet = new HashSet<>();
-		for (String key : map.keySet()) {
-			try {
-				Entry<String, V> e = new AbstractMap.SimpleEntry<String, V>(key, reader.readValue(map.get(key)));
-				entrySet.add(e);
-			} catch (Exception e) {
-				e.printStackTrace();
+		return new AbstractSet<Entry<String, V>>() {
+
+			@Override
+			public Iterator<Entry<String, V>> iterator() {
+				return new ScanIterator<Entry<String, V>>() {
+
+					@Override
+					protected Entry<String, V> element(String key, byte[] value) {
+						LazyEntry<V> entry = new LazyEntry<V>(key, value, codec, DistributedRedisMap.this, metrics);
+						return entry.getValue() == null ? null : entry;
+					}
+				};
 			}
-		}
-		return entrySet;
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof Entry)) {
+					return false;
+				}
+				Entry<?, ?> entry = (Entry<?, ?>) o;
+				V value = DistributedRedisMap.this.get(entry.getKey());
+				return value != null && value.equals(entry.getValue());
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!(o instanceof Entry)) {
+					return false;
+				}
+				Entry<?, ?> entry = (Entry<?, ?>) o;
+				return DistributedRedisMap.this.remove(entry.getKey(), entry.getValue());
+			}
+
+			@Override
+			public int size() {
+				return DistributedRedisMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return DistributedRedisMap.this.isEmpty();
+			}
+
+			@Override
+			public void clear() {
+				DistributedRedisMap.this.clear();
+			}
+		};
 	}
 
 	/**
-	 * Return value from redis
+	 * Return value from redis. In near cache mode value available locally is
+	 * returned without going to redis.
 	 * 
 	 * @return value from redis
 	 */
 	public V get(Object key) {
-
+		String k = String.valueOf(key);
+		// taken before any read, a update after it prevents stale copy
+		long version = localVersion(k);
+		RedisShard<V> shard = shard(k);
+		if (shard.getWriteBehind() != null) {
+			RedisWriteBehindBuffer.Pending<V> pending = shard.getWriteBehind().get(k);
+			if (pending != null) {
+				return pending.getValue();
+			}
+		}
+		if (nearCache) {
+			V local = getLocal(k);
+			if (local != null) {
+				metrics.localHit();
+				return local;
+			}
+			metrics.localMiss();
+		}
 		// get latest updated value
-		String s = jedis.hget(name, String.valueOf(key));
+		byte[] s;
+		long start = System.nanoTime();
+		try (Jedis jedis = shard.getPool().getResource()) {
+			s = jedis.hget(buckets.keyOf(k), SafeEncoder.encode(k));
+		} catch (RuntimeException e) {
+			metrics.error(MapOperation.GET);
+			throw e;
+		}
+		metrics.operation(MapOperation.GET, System.nanoTime() - start);
 		if (s == null) {
 			return null;
 		}
 		try {
-			V value = reader.readValue(s);
+			V value = codec.decode(s);
 			if (value != null) { // update localy as well, should not cause
 									// redis update
-				super.putLocal(String.valueOf(key), value);
+				super.putLocalIfCurrent(k, value, version);
 				return value;
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
+			metrics.decodeError();
 		}
 		return null;
 
 	}
 
 	/**
-	 * Return if map is empty or has elements
+	 * Return values of keys using one HMGET per shard for keys not served locally. In
+	 * near cache mode values available locally are returned without going to
+	 * redis.
+	 * 
+	 * @param keys
+	 *            keys to read
+	 * @return map of key to value, keys not available are not part of map
+	 */
+	public Map<String, V> getAll(Collection<String> keys) {
+		Map<String, V> out = new HashMap<>();
+		List<Long> versions = new ArrayList<>();
+		List<String> misses = getAllLocal(keys, out, versions);
+		if (misses.isEmpty()) {
+			return out;
+		}
+		if (shards.length == 1) {
+			hmget(shards[0], misses, versions, out);
+			return out;
+		}
+		List<List<String>> shardMisses = new ArrayList<>();
+		List<List<Long>> shardVersions = new ArrayList<>();
+		groupByShard(misses, versions, shardMisses, shardVersions);
+		for (int i = 0; i < shards.length; i++) {
+			if (!shardMisses.get(i).isEmpty()) {
+				hmget(shards[i], shardMisses.get(i), shardVersions.get(i), out);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Read keys available in write behind buffer or (in near cache mode)
+	 * local map
+	 * 
+	 * @param keys
+	 *            keys to read
+	 * @param out
+	 *            values read are put to it
+	 * @param versions
+	 *            local version of each key not read is added to it, taken
+	 *            before any read
+	 * @return keys not read, to be read from redis
+	 */
+	List<String> getAllLocal(Collection<String> keys, Map<String, V> out, List<Long> versions) {
+		List<String> misses = new ArrayList<>();
+		for (String key : keys) {
+			// taken before any read, a update after it prevents stale copy
+			long version = localVersion(key);
+			RedisWriteBehindBuffer<V> writeBehind = shard(key).getWriteBehind();
+			if (writeBehind != null) {
+				RedisWriteBehindBuffer.Pending<V> pending = writeBehind.get(key);
+				if (pending != null) {
+					if (!pending.isRemoved()) {
+						out.put(key, pending.getValue());
+					}
+					continue;
+				}
+			}
+			if (nearCache) {
+				V local = getLocal(key);
+				if (local != null) {
+					metrics.localHit();
+					out.put(key, local);
+					continue;
+				}
+				metrics.localMiss();
+			}
+			misses.add(key);
+			versions.add(version);
+		}
+		return misses;
+	}
+
+	/**
+	 * Split keys and their versions by shard
+	 * 
+	 * @param keys
+	 *            keys
+	 * @param versions
+	 *            version of each key
+	 * @param shardKeys
+	 *            keys of each shard are added to it
+	 * @param shardVersions
+	 *            versions of each shard are added to it
+	 */
+	void groupByShard(List<String> keys, List<Long> versions, List<List<String>> shardKeys,
+			List<List<Long>> shardVersions) {
+		for (int i = 0; i < shards.length; i++) {
+			shardKeys.add(new ArrayList<String>());
+			shardVersions.add(new ArrayList<Long>());
+		}
+		for (int i = 0; i < keys.size(); i++) {
+			int shard = shardIndex(keys.get(i));
+			shardKeys.get(shard).add(keys.get(i));
+			shardVersions.get(shard).add(versions.get(i));
+		}
+	}
+
+	/**
+	 * Read keys of a shard with one HMGET, copy values to local
+	 * 
+	 * @param shard
+	 *            shard storing keys
+	 * @param misses
+	 *            keys
+	 * @param versions
+	 *            local version of each key taken before read
+	 * @param out
+	 *            values read are put to it
+	 */
+	private void hmget(RedisShard<V> shard, List<String> misses, List<Long> versions, Map<String, V> out) {
+		byte[][] fields = new byte[misses.size()][];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = SafeEncoder.encode(misses.get(i));
+		}
+		List<byte[]> values;
+		long start = System.nanoTime();
+		try (Jedis jedis = shard.getPool().getResource()) {
+			if (buckets.size() == 1) {
+				values = jedis.hmget(buckets.key(0), fields);
+			} else {
+				RedisBucketRead read = new RedisBucketRead(buckets, misses);
+				Pipeline pipeline = jedis.pipelined();
+				read.send(pipeline);
+				pipeline.sync();
+				values = read.values();
+			}
+		} catch (RuntimeException e) {
+			metrics.error(MapOperation.GET_ALL);
+			throw e;
+		}
+		metrics.operation(MapOperation.GET_ALL, System.nanoTime() - start);
+		putRead(misses, versions, values, out);
+	}
+
+	/**
+	 * Decode values read from redis, copy them to local
+	 * 
+	 * @param keys
+	 *            keys read
+	 * @param versions
+	 *            local version of each key taken before read
+	 * @param values
+	 *            encoded value of each key, null if not available
+	 * @param out
+	 *            values are put to it
+	 */
+	void putRead(List<String> keys, List<Long> versions, List<byte[]> values, Map<String, V> out) {
+		for (int i = 0; i < keys.size(); i++) {
+			byte[] s = values.get(i);
+			if (s == null) {
+				continue;
+			}
+			try {
+				V value = codec.decode(s);
+				if (value != null) {
+					super.putLocalIfCurrent(keys.get(i), value, versions.get(i));
+					out.put(keys.get(i), value);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				metrics.decodeError();
+			}
+		}
+	}
+
+	/**
+	 * Number of keys of shard, sum of HLEN of buckets
+	 * 
+	 * @param shard
+	 *            shard
+	 * @return keys
+	 */
+	private long size(RedisShard<V> shard) {
+		long start = System.nanoTime();
+		long size = 0;
+		try (Jedis jedis = shard.getPool().getResource()) {
+			if (buckets.size() == 1) {
+				size = jedis.hlen(buckets.key(0));
+			} else {
+				Pipeline pipeline = jedis.pipelined();
+				List<Response<Long>> lengths = new ArrayList<>();
+				for (int bucket = 0; bucket < buckets.size(); bucket++) {
+					lengths.add(pipeline.hlen(buckets.key(bucket)));
+				}
+				pipeline.sync();
+				for (Response<Long> length : lengths) {
+					size += length.get();
+				}
+			}
+		} catch (RuntimeException e) {
+			metrics.error(MapOperation.SIZE);
+			throw e;
+		}
+		metrics.operation(MapOperation.SIZE, System.nanoTime() - start);
+		return size;
+	}
+
+	/**
+	 * Return if map is empty or has elements. In near cache mode map with
+	 * local elements is not empty.
 	 * 
 	 * @return true/false
 	 */
 	public boolean isEmpty() {
-		return jedis.hlen(name).intValue() < 1;
+		if (nearCache && !isEmptyLocal()) {
+			return false;
+		}
+		flush();
+		for (RedisShard<V> shard : shards) {
+			if (size(shard) > 0) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
-	 * Returns key set from redis
+	 * Returns key set of redis. Set is a view, keys are read from redis page
+	 * by page while iterating and remove from set or iterator removes key from
+	 * map
 	 * 
 	 * @return key {@link Set}
 	 */
 	public Set<String> keySet() {
-		return jedis.hkeys(name);
+		return new AbstractSet<String>() {
+
+			@Override
+			public Iterator<String> iterator() {
+				return new ScanIterator<String>() {
+
+					@Override
+					protected String element(String key, byte[] value) {
+						return key;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return DistributedRedisMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return DistributedRedisMap.this.isEmpty();
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return DistributedRedisMap.this.containsKey(o);
+			}
+
+			@Override
+			public boolean remove(Object o) {
+				if (!DistributedRedisMap.this.containsKey(o)) {
+					return false;
+				}
+				DistributedRedisMap.this.remove(o);
+				return true;
+			}
+
+			@Override
+			public void clear() {
+				DistributedRedisMap.this.clear();
+			}
+		};
 	}
 
 	/**
@@ -235,22 +867,79 @@ public class DistributedRedisMap<K, V> extends DistributedMap<String, V> {
 	 *         excess operation to go to redis as of now
 	 */
 	public V put(String key, V value) {
-		V old = null;
-		old = super.putLocal(key, value);
-		String val = null;
+		return put(key, value, defaultTtlMillis);
+	}
+
+	/**
+	 * Put value to redis with time to live, key is removed by expiry sweep
+	 * after time to live
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @param ttlMillis
+	 *            time to live in milliseconds, 0 if key does not expire
+	 * @return Returns old value only when available in local map
+	 */
+	public V put(String key, V value, long ttlMillis) {
+		long expireAt = 0;
+		RedisShard<V> shard = shard(key);
+		RedisWriteBehindBuffer<V> writeBehind = shard.getWriteBehind();
+		RedisExpiry expiry = shard.getExpiry();
+		if (ttlMillis > 0) {
+			// only shard of key keeps expiry of it, enable() is not called
+			// once enabled as it is synchronized
+			if (!expiry.isEnabled()) {
+				expiry.enable();
+			}
+			expireAt = System.currentTimeMillis() + ttlMillis;
+		}
+		// shared copy (redis or write behind buffer) is updated first, then
+		// key is marked updated, then local. A concurrent read can't leave
+		// old value in local, own event is not received to correct it
+		if (writeBehind != null) {
+			writeBehind.put(key, value, expireAt);
+			super.markUpdated(key);
+			V old = super.putLocal(key, value, expireAt);
+			// local is updated even if flush fails, buffer retries it
+			writeBehind.flushIfFull();
+			return old;
+		}
+		byte[] val = null;
 		try {
-			val = writer.writeValueAsString(value);
+			val = codec.encode(value);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 
 		// put to redis, need to serialize, value
-		// put json value
+		// put encoded value
+		if (val != null) {
+			byte[] field = SafeEncoder.encode(key);
+			long start = System.nanoTime();
+			try (Jedis jedis = shard.getPool().getResource()) {
+				int bucket = buckets.bucket(key);
+				if (expiry.isEnabled()) {
+					Transaction t = jedis.multi();
+					t.hset(buckets.key(bucket), field, val);
+					expiry.onPut(t, bucket, field, expireAt);
+					t.exec();
+				} else {
+					jedis.hset(buckets.key(bucket), field, val);
+				}
+			} catch (RuntimeException e) {
+				metrics.error(MapOperation.PUT);
+				throw e;
+			}
+			metrics.operation(MapOperation.PUT, System.nanoTime() - start);
+		}
+		super.markUpdated(key);
+		V old = super.putLocal(key, value, expireAt);
 		if (val != null) {
-			jedis.hset(name, key, val);
 			// generate event to update other processes to update value if
-			// cached locally
-			publisher.publish(RedisCommand.PUT, key, value);
+			// cached locally, encoded value is reused
+			shard.getPublisher().publish(RedisCommand.PUT, key, val);
 		}
 		return old;
 	}
@@ -262,18 +951,116 @@ public class DistributedRedisMap<K, V> extends DistributedMap<String, V> {
 	 *            map from which to put element to root map
 	 */
 	public void putAll(Map<? extends String, ? extends V> m) {
-		super.putAllLocal(m);
-		Map<String, String> toPut = new HashMap<>();
+		long expireAt = defaultTtlMillis > 0 ? System.currentTimeMillis() + defaultTtlMillis : 0;
+		if (shards[0].getWriteBehind() != null) {
+			// local is updated per key, a rejected key leaves previous keys
+			// buffered and local alike
+			for (Map.Entry<? extends String, ? extends V> entry : m.entrySet()) {
+				shard(entry.getKey()).getWriteBehind().put(entry.getKey(), entry.getValue(), expireAt);
+				super.markUpdated(entry.getKey());
+				super.putLocal(entry.getKey(), entry.getValue(), expireAt);
+			}
+			for (RedisShard<V> shard : shards) {
+				shard.getWriteBehind().flushIfFull();
+			}
+			return;
+		}
+		// shard to bucket to fields
+		List<Map<Integer, Map<byte[], byte[]>>> toPut = new ArrayList<>();
+		List<Map<String, byte[]>> events = new ArrayList<>();
+		for (int i = 0; i < shards.length; i++) {
+			toPut.add(new HashMap<Integer, Map<byte[], byte[]>>());
+			events.add(new HashMap<String, byte[]>());
+		}
 		for (String key : m.keySet()) {
 			try {
-				String value = writer.writeValueAsString(m.get(key));
-				toPut.put(key, value);
+				byte[] value = codec.encode(m.get(key));
+				int shard = shardIndex(key);
+				Map<byte[], byte[]> fields = toPut.get(shard).get(buckets.bucket(key));
+				if (fields == null) {
+					fields = new HashMap<>();
+					toPut.get(shard).put(buckets.bucket(key), fields);
+				}
+				fields.put(SafeEncoder.encode(key), value);
+				events.get(shard).put(key, value);
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
 		}
-		jedis.hmset(name, toPut);
-		publisher.publishMultiple(RedisCommand.PUT, m);
+		for (int i = 0; i < shards.length; i++) {
+			if (toPut.get(i).isEmpty()) {
+				continue;
+			}
+			RedisExpiry expiry = shards[i].getExpiry();
+			long start = System.nanoTime();
+			try (Jedis jedis = shards[i].getPool().getResource()) {
+				if (expiry.isEnabled()) {
+					Transaction t = jedis.multi();
+					hmset(t, toPut.get(i), expiry, expireAt);
+					t.exec();
+				} else if (toPut.get(i).size() > 1) {
+					Pipeline pipeline = jedis.pipelined();
+					hmset(pipeline, toPut.get(i), expiry, expireAt);
+					pipeline.sync();
+				} else {
+					Map.Entry<Integer, Map<byte[], byte[]>> bucket = toPut.get(i).entrySet().iterator().next();
+					jedis.hmset(buckets.key(bucket.getKey()), bucket.getValue());
+				}
+			} catch (RuntimeException e) {
+				metrics.error(MapOperation.PUT_ALL);
+				throw e;
+			}
+			metrics.operation(MapOperation.PUT_ALL, System.nanoTime() - start);
+		}
+		putAllLocalUpdated(m, expireAt);
+		for (int i = 0; i < shards.length; i++) {
+			if (!events.get(i).isEmpty()) {
+				shards[i].getPublisher().publishMultiple(RedisCommand.PUT, events.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Add HMSET of each bucket and expiry of fields to pipeline/transaction
+	 * 
+	 * @param pipeline
+	 *            pipeline or transaction
+	 * @param toPut
+	 *            bucket to fields
+	 * @param expiry
+	 *            expiry of shard
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds, 0 if keys don't expire
+	 */
+	private void hmset(PipelineBase pipeline, Map<Integer, Map<byte[], byte[]>> toPut, RedisExpiry expiry,
+			long expireAt) {
+		for (Map.Entry<Integer, Map<byte[], byte[]>> bucket : toPut.entrySet()) {
+			pipeline.hmset(buckets.key(bucket.getKey()), bucket.getValue());
+			for (byte[] field : bucket.getValue().keySet()) {
+				expiry.onPut(pipeline, bucket.getKey(), field, expireAt);
+			}
+		}
+	}
+
+	/**
+	 * Mark keys updated and put to local, after shared copy is updated
+	 * 
+	 * @param m
+	 *            elements put
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds, 0 if keys don't expire
+	 */
+	private void putAllLocalUpdated(Map<? extends String, ? extends V> m, long expireAt) {
+		for (String key : m.keySet()) {
+			super.markUpdated(key);
+		}
+		if (expireAt == 0) {
+			super.putAllLocal(m);
+			return;
+		}
+		for (Map.Entry<? extends String, ? extends V> entry : m.entrySet()) {
+			super.putLocal(entry.getKey(), entry.getValue(), expireAt);
+		}
 	}
 
 	/**
@@ -282,38 +1069,532 @@ public class DistributedRedisMap<K, V> extends DistributedMap<String, V> {
 	 * @return element removed
 	 */
 	public V remove(Object key) {
-		V out = super.removeLocal(key);
-		jedis.hdel(name, String.valueOf(key));
+		String k = String.valueOf(key);
+		RedisShard<V> shard = shard(k);
+		if (shard.getWriteBehind() != null) {
+			shard.getWriteBehind().remove(k);
+			super.markUpdated(k);
+			V out = super.removeLocal(k);
+			shard.getWriteBehind().flushIfFull();
+			return out;
+		}
+		RedisExpiry expiry = shard.getExpiry();
+		long start = System.nanoTime();
+		try (Jedis jedis = shard.getPool().getResource()) {
+			byte[] field = SafeEncoder.encode(k);
+			int bucket = buckets.bucket(k);
+			if (expiry.isEnabled()) {
+				Transaction t = jedis.multi();
+				t.hdel(buckets.key(bucket), field);
+				expiry.onRemove(t, bucket, field);
+				t.exec();
+			} else {
+				jedis.hdel(buckets.key(bucket), field);
+			}
+		} catch (RuntimeException e) {
+			metrics.error(MapOperation.REMOVE);
+			throw e;
+		}
+		metrics.operation(MapOperation.REMOVE, System.nanoTime() - start);
+		super.markUpdated(k);
+		V out = super.removeLocal(k);
 		// publish delete event
-		publisher.publish(RedisCommand.DELETE, String.valueOf(key), null);
+		shard.getPublisher().publish(RedisCommand.DELETE, k, null);
 		return out;
 	}
 
+	/**
+	 * Put value if key is not available, atomically in redis
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @return current value, null if value was put
+	 */
+	@Override
+	public V putIfAbsent(String key, V value) {
+		RedisAtomicUpdate result = update(key, Expect.ABSENT, null, value);
+		return result.isUpdated() ? null : decode(result.getPrevious());
+	}
+
+	/**
+	 * Replace value if key is available, atomically in redis
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            new value
+	 * @return previous value, null if key was not available
+	 */
+	@Override
+	public V replace(String key, V value) {
+		RedisAtomicUpdate result = update(key, Expect.PRESENT, null, value);
+		return result.isUpdated() ? decode(result.getPrevious()) : null;
+	}
+
+	/**
+	 * Replace value if key has old value, atomically in redis. Values are
+	 * compared encoded, uncompressed
+	 * 
+	 * @param key
+	 *            key
+	 * @param oldValue
+	 *            expected value
+	 * @param newValue
+	 *            new value
+	 * @return true if replaced
+	 */
+	@Override
+	public boolean replace(String key, V oldValue, V newValue) {
+		return updateIfEqual(key, encode(oldValue), newValue);
+	}
+
+	/**
+	 * Remove key if it has value, atomically in redis. Values are compared
+	 * encoded, uncompressed
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            expected value
+	 * @return true if removed
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public boolean remove(Object key, Object value) {
+		byte[] expected;
+		try {
+			expected = codec.encode((V) value);
+		} catch (Exception e) {
+			// not a value of map
+			return false;
+		}
+		return updateIfEqual(String.valueOf(key), expected, null);
+	}
+
+	/**
+	 * Put or remove key if it has expected value. Value in redis may be
+	 * compressed or not, e.g. written before compression was enabled or with
+	 * other threshold, then update is tried again expecting bytes in redis if
+	 * they are same value
+	 * 
+	 * @param key
+	 *            key
+	 * @param expected
+	 *            expected encoded value
+	 * @param value
+	 *            value to put, null to remove key
+	 * @return true if updated
+	 */
+	private boolean updateIfEqual(String key, byte[] expected, V value) {
+		RedisAtomicUpdate result = update(key, Expect.EQUAL, expected, value);
+		while (!result.isUpdated() && isSameValue(result.getPrevious(), expected)) {
+			expected = result.getPrevious();
+			result = update(key, Expect.EQUAL, expected, value);
+		}
+		return result.isUpdated();
+	}
+
+	/**
+	 * If encoded values are equal once uncompressed
+	 * 
+	 * @param current
+	 *            encoded value in redis, may be null
+	 * @param expected
+	 *            expected encoded value
+	 * @return true/false
+	 */
+	private boolean isSameValue(byte[] current, byte[] expected) {
+		if (current == null || Arrays.equals(current, expected)) {
+			// equal bytes are matched by script, a mismatch is a change
+			return false;
+		}
+		try {
+			return Arrays.equals(CompressingValueCodec.uncompressed(current),
+					CompressingValueCodec.uncompressed(expected));
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.decodeError();
+			return false;
+		}
+	}
+
+	/**
+	 * Put value computed by function if key is not available. Function may be
+	 * called even if other process puts key meanwhile, its value is then not
+	 * put
+	 * 
+	 * @param key
+	 *            key
+	 * @param mappingFunction
+	 *            computes value
+	 * @return current value
+	 */
+	@Override
+	public V computeIfAbsent(String key, Function<? super String, ? extends V> mappingFunction) {
+		V current = get(key);
+		if (current != null) {
+			return current;
+		}
+		V value = mappingFunction.apply(key);
+		if (value == null) {
+			return null;
+		}
+		V previous = putIfAbsent(key, value);
+		return previous == null ? value : previous;
+	}
+
+	/**
+	 * Compute new value of available key, applied atomically in redis by
+	 * compare and set, function is called again if key is changed meanwhile
+	 * 
+	 * @param key
+	 *            key
+	 * @param remappingFunction
+	 *            computes new value from current value, null to remove key
+	 * @return new value
+	 * @throws IllegalStateException
+	 *             if current value can't be decoded
+	 */
+	@Override
+	public V computeIfPresent(String key, final BiFunction<? super String, ? super V, ? extends V> remappingFunction) {
+		return compareAndSet(key, true, remappingFunction);
+	}
+
+	/**
+	 * Compute new value of key, applied atomically in redis by compare and
+	 * set, function is called again if key is changed meanwhile
+	 * 
+	 * @param key
+	 *            key
+	 * @param remappingFunction
+	 *            computes new value from current value (null if not
+	 *            available), null to remove key
+	 * @return new value
+	 * @throws IllegalStateException
+	 *             if current value can't be decoded
+	 */
+	@Override
+	public V compute(String key, BiFunction<? super String, ? super V, ? extends V> remappingFunction) {
+		return compareAndSet(key, false, remappingFunction);
+	}
+
+	/**
+	 * Put value if key is not available, else merge it with current value,
+	 * applied atomically in redis by compare and set, function is called again
+	 * if key is changed meanwhile
+	 * 
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @param remappingFunction
+	 *            merges current and given value, null to remove key
+	 * @return new value
+	 * @throws IllegalStateException
+	 *             if current value can't be decoded
+	 */
+	@Override
+	public V merge(String key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+		return compareAndSet(key, false, new BiFunction<String, V, V>() {
+
+			@Override
+			public V apply(String k, V current) {
+				return current == null ? value : remappingFunction.apply(current, value);
+			}
+		});
+	}
+
+	/**
+	 * Optimistic update loop, current value is read, new value computed and
+	 * set only if value in redis is still same, else repeated with value
+	 * returned by failed set
+	 * 
+	 * @param key
+	 *            key
+	 * @param onlyIfPresent
+	 *            do nothing if key is not available
+	 * @param function
+	 *            computes new value from key and current value, null to remove
+	 * @return new value
+	 * @throws IllegalStateException
+	 *             if current value can't be decoded, it is not taken as
+	 *             absent
+	 */
+	private V compareAndSet(String key, boolean onlyIfPresent,
+			BiFunction<? super String, ? super V, ? extends V> function) {
+		RedisShard<V> shard = shard(key);
+		shard.flush();
+		byte[] current;
+		try (Jedis jedis = shard.getPool().getResource()) {
+			current = jedis.hget(buckets.keyOf(key), SafeEncoder.encode(key));
+		}
+		while (true) {
+			if (current == null && onlyIfPresent) {
+				return null;
+			}
+			V value = function.apply(key, current == null ? null : decodeCurrent(current));
+			RedisAtomicUpdate result;
+			if (value == null) {
+				if (current == null) {
+					return null;
+				}
+				result = update(key, Expect.EQUAL, current, null);
+			} else {
+				result = update(key, current == null ? Expect.ABSENT : Expect.EQUAL, current, value);
+			}
+			if (result.isUpdated()) {
+				return value;
+			}
+			current = result.getPrevious();
+		}
+	}
+
+	/**
+	 * Decode value read for update
+	 * 
+	 * @param value
+	 *            encoded value
+	 * @return value
+	 * @throws IllegalStateException
+	 *             if value can't be decoded
+	 */
+	private V decodeCurrent(byte[] value) {
+		try {
+			return codec.decode(value);
+		} catch (Exception e) {
+			metrics.decodeError();
+			throw new IllegalStateException("Value can't be decoded", e);
+		}
+	}
+
+	/**
+	 * Put or remove key in redis if it is in expected state (See
+	 * {@link RedisAtomicUpdate}), then update local and publish event. In
+	 * write behind mode buffered mutations are written first
+	 * 
+	 * @param key
+	 *            key
+	 * @param expect
+	 *            expected state
+	 * @param expected
+	 *            expected encoded value
+	 * @param value
+	 *            value to put, null to remove key
+	 * @return result
+	 */
+	private RedisAtomicUpdate update(String key, Expect expect, byte[] expected, V value) {
+		byte[] val = value == null ? null : encode(value);
+		long expireAt = value != null && defaultTtlMillis > 0 ? System.currentTimeMillis() + defaultTtlMillis : 0;
+		RedisShard<V> shard = shard(key);
+		shard.flush();
+		RedisAtomicUpdate result;
+		long start = System.nanoTime();
+		try (Jedis jedis = shard.getPool().getResource()) {
+			result = RedisAtomicUpdate.run(jedis, buckets, shard.getExpiry(), key, expect, expected, val, expireAt);
+		} catch (RuntimeException e) {
+			metrics.error(MapOperation.ATOMIC);
+			throw e;
+		}
+		metrics.operation(MapOperation.ATOMIC, System.nanoTime() - start);
+		if (!result.isUpdated()) {
+			return result;
+		}
+		super.markUpdated(key);
+		if (value == null) {
+			super.removeLocal(key);
+			shard.getPublisher().publish(RedisCommand.DELETE, key, null);
+		} else {
+			super.putLocal(key, value, expireAt);
+			shard.getPublisher().publish(RedisCommand.PUT, key, val);
+		}
+		return result;
+	}
+
+	/**
+	 * Encode value, atomic operations can't run without encoded value
+	 * 
+	 * @param value
+	 *            value
+	 * @return encoded value
+	 */
+	private byte[] encode(V value) {
+		try {
+			return codec.encode(value);
+		} catch (Exception e) {
+			throw new IllegalStateException("Value can't be encoded", e);
+		}
+	}
+
+	/**
+	 * Decode value
+	 * 
+	 * @param value
+	 *            encoded value, may be null
+	 * @return value, null if not available or can't be decoded
+	 */
+	private V decode(byte[] value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return codec.decode(value);
+		} catch (Exception e) {
+			e.printStackTrace();
+			metrics.decodeError();
+			return null;
+		}
+	}
+
 	/**
 	 * size from redis
 	 * @return size
 	 */
 	public int size() {
-		return jedis.hlen(name).intValue();
+		flush();
+		long size = 0;
+		for (RedisShard<V> shard : shards) {
+			size += size(shard);
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
 	}
 
 	/**
-	 * Values from redis
+	 * Values of redis. Collection is a view, values are read from redis page
+	 * by page while iterating and remove from iterator removes key from map.
+	 * Values which can't be decoded are skipped
 	 * @return values
 	 */
 	public Collection<V> values() {
-		List<String> values = jedis.hvals(name);
-		Collection<V> collection = new ArrayList<>();
+		return new AbstractCollection<V>() {
 
-		for (String value : values) {
-			try {
-				collection.add(reader.readValue(value));
-			} catch (Exception e) {
-				e.printStackTrace();
+			@Override
+			public Iterator<V> iterator() {
+				return new ScanIterator<V>() {
+
+					@Override
+					protected V element(String key, byte[] value) {
+						return decode(value);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return DistributedRedisMap.this.size();
+			}
+
+			@Override
+			public boolean isEmpty() {
+				return DistributedRedisMap.this.isEmpty();
+			}
+
+			@Override
+			public void clear() {
+				DistributedRedisMap.this.clear();
 			}
+		};
+	}
+
+	/**
+	 * Iterator of a view, reads fields with HSCAN, hash after hash of each
+	 * shard, and converts each field to element, fields without element (e.g.
+	 * value can't be decoded) are skipped. Pending write behind mutations are
+	 * flushed first, so they are visible
+	 *
+	 * @param <T>
+	 *            element of view
+	 */
+	private abstract class ScanIterator<T> implements Iterator<T> {
+
+		/**
+		 * Fields of current hash
+		 */
+		private RedisHashScanIterator fields;
+
+		/**
+		 * Index of current shard
+		 */
+		private int shard;
+
+		/**
+		 * Current bucket of shard
+		 */
+		private int bucket;
+
+		/**
+		 * Key of element last returned, null if removed or none returned
+		 */
+		private String current;
+
+		/**
+		 * Element returned by next, null if not yet converted
+		 */
+		private T next;
+
+		/**
+		 * Key of next element
+		 */
+		private String nextKey;
+
+		/**
+		 * Constructor, flushes pending writes
+		 */
+		ScanIterator() {
+			flush();
+			fields = new RedisHashScanIterator(shards[0].getPool(), buckets.key(0), scanPageSize);
+		}
+
+		/**
+		 * Convert field to element
+		 *
+		 * @param key
+		 *            key
+		 * @param value
+		 *            encoded value
+		 * @return element, null to skip field
+		 */
+		protected abstract T element(String key, byte[] value);
+
+		@Override
+		public boolean hasNext() {
+			while (next == null) {
+				while (!fields.hasNext()) {
+					if (++bucket >= buckets.size()) {
+						bucket = 0;
+						if (++shard >= shards.length) {
+							return false;
+						}
+					}
+					fields = new RedisHashScanIterator(shards[shard].getPool(), buckets.key(bucket), scanPageSize);
+				}
+				Entry<byte[], byte[]> field = fields.next();
+				nextKey = SafeEncoder.encode(field.getKey());
+				next = element(nextKey, field.getValue());
+			}
+			return true;
 		}
 
-		return collection;
+		@Override
+		public T next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			T out = next;
+			current = nextKey;
+			next = null;
+			return out;
+		}
+
+		@Override
+		public void remove() {
+			if (current == null) {
+				throw new IllegalStateException();
+			}
+			DistributedRedisMap.this.remove(current);
+			current = null;
+		}
 	}
 
 }
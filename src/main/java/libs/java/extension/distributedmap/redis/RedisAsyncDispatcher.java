@@ -0,0 +1,202 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+/**
+ * Sends operations of async map to redis. Callers only queue operations, a
+ * dispatcher thread takes all queued operations (up to {@link #MAX_BATCH}),
+ * sends them in one pipeline over one connection and completes them in order
+ * of submit. So few threads keep many operations in flight, one round trip
+ * serves a whole batch.
+ *
+ * Callers never block on a monitor (queue is guarded by a
+ * {@link ReentrantLock}), so operations can be submitted from virtual
+ * threads.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisAsyncDispatcher implements Runnable {
+
+	/**
+	 * Max operations sent in one pipeline
+	 */
+	public static final int MAX_BATCH = 1024;
+
+	/**
+	 * Operation sent by dispatcher
+	 */
+	public abstract static class Operation {
+
+		/**
+		 * Add commands of operation to pipeline, runs on dispatcher thread
+		 *
+		 * @param pipeline
+		 *            pipeline of batch
+		 */
+		protected abstract void send(Pipeline pipeline);
+
+		/**
+		 * Responses of commands are available, runs on dispatcher thread in
+		 * order of submit
+		 *
+		 * @throws Exception
+		 *             if response is an error
+		 */
+		protected abstract void complete() throws Exception;
+
+		/**
+		 * Operation failed, runs on dispatcher thread, or on submitting
+		 * thread if dispatcher is closed
+		 *
+		 * @param e
+		 *            cause
+		 */
+		protected abstract void fail(Exception e);
+	}
+
+	/**
+	 * Redis connection pool, a connection is taken per batch
+	 */
+	private JedisPool pool;
+
+	/**
+	 * Queued operations, guarded by lock
+	 */
+	private ArrayDeque<Operation> queue = new ArrayDeque<>();
+
+	/**
+	 * Guards queue
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when operation is queued or dispatcher is closed
+	 */
+	private final Condition queued = lock.newCondition();
+
+	/**
+	 * Set when dispatcher is closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Dispatcher thread
+	 */
+	private Thread thread;
+
+	/**
+	 * Constructor, starts dispatcher thread
+	 *
+	 * @param name
+	 *            map name, used in thread name
+	 * @param pool
+	 *            redis connection pool
+	 */
+	public RedisAsyncDispatcher(String name, JedisPool pool) {
+		this.pool = pool;
+		thread = new Thread(this, "async-" + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queue operation. Operation submitted after close fails with
+	 * {@link IllegalStateException}, so future of caller completes
+	 * exceptionally
+	 *
+	 * @param operation
+	 *            operation
+	 */
+	public void submit(Operation operation) {
+		lock.lock();
+		try {
+			if (!closed) {
+				queue.add(operation);
+				queued.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		operation.fail(new IllegalStateException("Map is closed"));
+	}
+
+	@Override
+	public void run() {
+		List<Operation> batch = new ArrayList<>();
+		while (true) {
+			lock.lock();
+			try {
+				while (queue.isEmpty() && !closed) {
+					queued.awaitUninterruptibly();
+				}
+				if (queue.isEmpty()) {
+					return;
+				}
+				while (!queue.isEmpty() && batch.size() < MAX_BATCH) {
+					batch.add(queue.poll());
+				}
+			} finally {
+				lock.unlock();
+			}
+			dispatch(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Send batch in one pipeline and complete operations
+	 *
+	 * @param batch
+	 *            operations
+	 */
+	private void dispatch(List<Operation> batch) {
+		try (Jedis jedis = pool.getResource()) {
+			Pipeline pipeline = jedis.pipelined();
+			for (Operation operation : batch) {
+				operation.send(pipeline);
+			}
+			pipeline.sync();
+		} catch (Exception e) {
+			for (Operation operation : batch) {
+				operation.fail(e);
+			}
+			return;
+		}
+		for (Operation operation : batch) {
+			try {
+				operation.complete();
+			} catch (Exception e) {
+				operation.fail(e);
+			}
+		}
+	}
+
+	/**
+	 * Stops dispatcher, operations already queued are sent first
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			queued.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			thread.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,334 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import libs.java.extension.distributedmap.AsyncDistributedMap;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import libs.java.extension.distributedmap.metrics.MapOperation;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Async view of {@link DistributedRedisMap}. Operations are queued to
+ * {@link RedisAsyncDispatcher} of shard of key, which sends them pipelined.
+ * Local map is updated and events are published on dispatcher thread in
+ * order, same as blocking operations do, then future is completed on
+ * executor, so dependent actions of caller never run on dispatcher thread.
+ * Local hits, latency (from submit to response), errors and decode failures
+ * are recorded to metrics of map, same as blocking operations. A value which
+ * can't be decoded is returned as null, as by blocking get.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class RedisAsyncMap<V> implements AsyncDistributedMap<V> {
+
+	/**
+	 * Map
+	 */
+	private DistributedRedisMap<?, V> map;
+
+	/**
+	 * Hash keys of map
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Value codec
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Completes futures
+	 */
+	private Executor executor;
+
+	/**
+	 * Constructor
+	 *
+	 * @param map
+	 *            map
+	 * @param buckets
+	 *            hash keys of map
+	 * @param codec
+	 *            value codec
+	 * @param executor
+	 *            executor completing futures
+	 */
+	public RedisAsyncMap(DistributedRedisMap<?, V> map, RedisBuckets buckets, ValueCodec<V> codec,
+			Executor executor) {
+		this.map = map;
+		this.buckets = buckets;
+		this.codec = codec;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<V> getAsync(final String key) {
+		// taken before any read, a update after it prevents stale copy
+		final long version = map.localVersion(key);
+		RedisShard<V> shard = map.shard(key);
+		if (shard.getWriteBehind() != null) {
+			RedisWriteBehindBuffer.Pending<V> pending = shard.getWriteBehind().get(key);
+			if (pending != null) {
+				return CompletableFuture.completedFuture(pending.getValue());
+			}
+		}
+		final MapMetrics metrics = map.getMetrics();
+		if (map.isNearCache()) {
+			V local = map.getLocal(key);
+			if (local != null) {
+				metrics.localHit();
+				return CompletableFuture.completedFuture(local);
+			}
+			metrics.localMiss();
+		}
+		final CompletableFuture<V> out = new CompletableFuture<>();
+		final long start = System.nanoTime();
+		shard.getDispatcher().submit(new RedisAsyncDispatcher.Operation() {
+
+			private Response<byte[]> response;
+
+			@Override
+			protected void send(Pipeline pipeline) {
+				response = pipeline.hget(buckets.keyOf(key), SafeEncoder.encode(key));
+			}
+
+			@Override
+			protected void complete() throws Exception {
+				byte[] s = response.get();
+				metrics.operation(MapOperation.GET, System.nanoTime() - start);
+				V value = null;
+				if (s != null) {
+					try {
+						value = codec.decode(s);
+					} catch (Exception e) {
+						// not a failure of redis, null as blocking get
+						e.printStackTrace();
+						metrics.decodeError();
+					}
+					if (value != null) {
+						map.putLocalIfCurrent(key, value, version);
+					}
+				}
+				completeLater(out, value);
+			}
+
+			@Override
+			protected void fail(Exception e) {
+				metrics.error(MapOperation.GET);
+				failLater(out, e);
+			}
+		});
+		return out;
+	}
+
+	@Override
+	public CompletableFuture<V> putAsync(final String key, final V value) {
+		final RedisShard<V> shard = map.shard(key);
+		if (shard.getWriteBehind() != null) {
+			// buffered locally, does not wait for redis
+			return CompletableFuture.completedFuture(map.put(key, value));
+		}
+		final CompletableFuture<V> out = new CompletableFuture<>();
+		final MapMetrics metrics = map.getMetrics();
+		final byte[] val;
+		try {
+			val = codec.encode(value);
+		} catch (Exception e) {
+			out.completeExceptionally(e);
+			return out;
+		}
+		final long expireAt = map.getDefaultTtlMillis() > 0
+				? System.currentTimeMillis() + map.getDefaultTtlMillis() : 0;
+		final RedisExpiry expiry = shard.getExpiry();
+		final int bucket = buckets.bucket(key);
+		final byte[] field = SafeEncoder.encode(key);
+		final long start = System.nanoTime();
+		shard.getDispatcher().submit(new RedisAsyncDispatcher.Operation() {
+
+			private Response<?> response;
+
+			@Override
+			protected void send(Pipeline pipeline) {
+				if (expiry.isEnabled()) {
+					pipeline.multi();
+					pipeline.hset(buckets.key(bucket), field, val);
+					expiry.onPut(pipeline, bucket, field, expireAt);
+					response = pipeline.exec();
+				} else {
+					response = pipeline.hset(buckets.key(bucket), field, val);
+				}
+			}
+
+			@Override
+			protected void complete() {
+				// throws if redis returned error
+				response.get();
+				metrics.operation(MapOperation.PUT, System.nanoTime() - start);
+				// same order as blocking put, redis, version, local
+				map.markUpdated(key);
+				V old = map.putLocal(key, value, expireAt);
+				shard.getPublisher().publish(RedisCommand.PUT, key, val);
+				completeLater(out, old);
+			}
+
+			@Override
+			protected void fail(Exception e) {
+				metrics.error(MapOperation.PUT);
+				failLater(out, e);
+			}
+		});
+		return out;
+	}
+
+	@Override
+	public CompletableFuture<V> removeAsync(final String key) {
+		final RedisShard<V> shard = map.shard(key);
+		if (shard.getWriteBehind() != null) {
+			return CompletableFuture.completedFuture(map.remove(key));
+		}
+		final CompletableFuture<V> out = new CompletableFuture<>();
+		final MapMetrics metrics = map.getMetrics();
+		final RedisExpiry expiry = shard.getExpiry();
+		final int bucket = buckets.bucket(key);
+		final byte[] field = SafeEncoder.encode(key);
+		final long start = System.nanoTime();
+		shard.getDispatcher().submit(new RedisAsyncDispatcher.Operation() {
+
+			private Response<?> response;
+
+			@Override
+			protected void send(Pipeline pipeline) {
+				if (expiry.isEnabled()) {
+					pipeline.multi();
+					pipeline.hdel(buckets.key(bucket), field);
+					expiry.onRemove(pipeline, bucket, field);
+					response = pipeline.exec();
+				} else {
+					response = pipeline.hdel(buckets.key(bucket), field);
+				}
+			}
+
+			@Override
+			protected void complete() {
+				response.get();
+				metrics.operation(MapOperation.REMOVE, System.nanoTime() - start);
+				map.markUpdated(key);
+				V old = map.removeLocal(key);
+				shard.getPublisher().publish(RedisCommand.DELETE, key, null);
+				completeLater(out, old);
+			}
+
+			@Override
+			protected void fail(Exception e) {
+				metrics.error(MapOperation.REMOVE);
+				failLater(out, e);
+			}
+		});
+		return out;
+	}
+
+	@Override
+	public CompletableFuture<Map<String, V>> getAllAsync(Collection<String> keys) {
+		final Map<String, V> values = new ConcurrentHashMap<>();
+		List<Long> versions = new ArrayList<>();
+		List<String> misses = map.getAllLocal(keys, values, versions);
+		if (misses.isEmpty()) {
+			return CompletableFuture.completedFuture(values);
+		}
+		List<List<String>> shardMisses = new ArrayList<>();
+		List<List<Long>> shardVersions = new ArrayList<>();
+		map.groupByShard(misses, versions, shardMisses, shardVersions);
+		int shards = 0;
+		for (List<String> shardKeys : shardMisses) {
+			if (!shardKeys.isEmpty()) {
+				shards++;
+			}
+		}
+		final CompletableFuture<Map<String, V>> out = new CompletableFuture<>();
+		final AtomicInteger remaining = new AtomicInteger(shards);
+		final MapMetrics metrics = map.getMetrics();
+		final long start = System.nanoTime();
+		for (int i = 0; i < shardMisses.size(); i++) {
+			final List<String> shardKeys = shardMisses.get(i);
+			final List<Long> keyVersions = shardVersions.get(i);
+			if (shardKeys.isEmpty()) {
+				continue;
+			}
+			final RedisBucketRead read = new RedisBucketRead(buckets, shardKeys);
+			map.shard(shardKeys.get(0)).getDispatcher().submit(new RedisAsyncDispatcher.Operation() {
+
+				@Override
+				protected void send(Pipeline pipeline) {
+					read.send(pipeline);
+				}
+
+				@Override
+				protected void complete() {
+					// hits, misses and decode failures are recorded by map
+					map.putRead(shardKeys, keyVersions, read.values(), values);
+					if (remaining.decrementAndGet() == 0) {
+						metrics.operation(MapOperation.GET_ALL, System.nanoTime() - start);
+						completeLater(out, values);
+					}
+				}
+
+				@Override
+				protected void fail(Exception e) {
+					metrics.error(MapOperation.GET_ALL);
+					failLater(out, e);
+				}
+			});
+		}
+		return out;
+	}
+
+	/**
+	 * Complete future on executor
+	 *
+	 * @param future
+	 *            future
+	 * @param value
+	 *            result
+	 */
+	private <T> void completeLater(final CompletableFuture<T> future, final T value) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				future.complete(value);
+			}
+		});
+	}
+
+	/**
+	 * Fail future on executor
+	 *
+	 * @param future
+	 *            future
+	 * @param e
+	 *            cause
+	 */
+	private <T> void failLater(final CompletableFuture<T> future, final Exception e) {
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				future.completeExceptionally(e);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,156 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Conditional update of a key in one round trip. A script compares current
+ * encoded value of key with expected state and, only if it matches, puts or
+ * deletes key (and updates its expiry). Values are compared as encoded bytes,
+ * so codec must encode equal values to equal bytes.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisAtomicUpdate {
+
+	/**
+	 * Expected state of key
+	 */
+	public enum Expect {
+		/**
+		 * Key is not available
+		 */
+		ABSENT("0"),
+		/**
+		 * Key has expected value
+		 */
+		EQUAL("1"),
+		/**
+		 * Key is available, any value
+		 */
+		PRESENT("2");
+
+		/**
+		 * Code of state in script
+		 */
+		private final byte[] code;
+
+		/**
+		 * Constructor
+		 *
+		 * @param code
+		 *            code of state in script
+		 */
+		Expect(String code) {
+			this.code = SafeEncoder.encode(code);
+		}
+	}
+
+	/**
+	 * KEYS[1] hash, KEYS[2] expiry set. ARGV[1] field, ARGV[2] expected state
+	 * (0 absent, 1 equal to ARGV[3], 2 present), ARGV[4] "d" to delete else
+	 * put ARGV[5], ARGV[6] expiry time (0 none), ARGV[7] "1" if expiry is
+	 * enabled. Returns {1 if updated else 0, value before}
+	 */
+	static final RedisScript SCRIPT = new RedisScript("local cur = redis.call('HGET', KEYS[1], ARGV[1]) "
+			+ "local m = ARGV[2] "
+			+ "if (m == '0' and cur) or (m == '1' and cur ~= ARGV[3]) or (m == '2' and not cur) then return {0, cur} end "
+			+ "if ARGV[4] == 'd' then "
+			+ "redis.call('HDEL', KEYS[1], ARGV[1]) "
+			+ "if ARGV[7] == '1' then redis.call('ZREM', KEYS[2], ARGV[1]) end "
+			+ "else "
+			+ "redis.call('HSET', KEYS[1], ARGV[1], ARGV[5]) "
+			+ "if ARGV[7] == '1' then "
+			+ "if ARGV[6] ~= '0' then redis.call('ZADD', KEYS[2], ARGV[6], ARGV[1]) "
+			+ "else redis.call('ZREM', KEYS[2], ARGV[1]) end "
+			+ "end "
+			+ "end "
+			+ "return {1, cur}");
+
+	/**
+	 * Empty argument
+	 */
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * If key was updated
+	 */
+	private final boolean updated;
+
+	/**
+	 * Encoded value of key before, null if not available
+	 */
+	private final byte[] previous;
+
+	/**
+	 * Constructor
+	 *
+	 * @param updated
+	 *            if key was updated
+	 * @param previous
+	 *            encoded value before
+	 */
+	private RedisAtomicUpdate(boolean updated, byte[] previous) {
+		this.updated = updated;
+		this.previous = previous;
+	}
+
+	/**
+	 * Put or delete key if its state is as expected
+	 *
+	 * @param jedis
+	 *            connection to shard of key
+	 * @param buckets
+	 *            hash keys of map
+	 * @param expiry
+	 *            expiry of shard
+	 * @param key
+	 *            key
+	 * @param expect
+	 *            expected state
+	 * @param expected
+	 *            expected encoded value for {@link Expect#EQUAL}
+	 * @param value
+	 *            encoded value to put, null to delete key
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds of put key, 0 if key does
+	 *            not expire
+	 * @return result
+	 */
+	@SuppressWarnings("unchecked")
+	public static RedisAtomicUpdate run(Jedis jedis, RedisBuckets buckets, RedisExpiry expiry, String key,
+			Expect expect, byte[] expected, byte[] value, long expireAt) {
+		int bucket = buckets.bucket(key);
+		List<Object> reply = (List<Object>) SCRIPT.eval(jedis,
+				Arrays.asList(buckets.key(bucket), buckets.ttlKey(bucket)),
+				Arrays.asList(SafeEncoder.encode(key), expect.code,
+						expected == null ? EMPTY : expected, SafeEncoder.encode(value == null ? "d" : "p"),
+						value == null ? EMPTY : value, SafeEncoder.encode(String.valueOf(expireAt)),
+						SafeEncoder.encode(expiry.isEnabled() ? "1" : "0")));
+		return new RedisAtomicUpdate(((Long) reply.get(0)) == 1, reply.size() > 1 ? (byte[]) reply.get(1) : null);
+	}
+
+	/**
+	 * If key was updated
+	 *
+	 * @return true/false
+	 */
+	public boolean isUpdated() {
+		return updated;
+	}
+
+	/**
+	 * Encoded value of key before script, current value if key was not
+	 * updated
+	 *
+	 * @return encoded value or null if key was not available
+	 */
+	public byte[] getPrevious() {
+		return previous;
+	}
+
+}
@@ -0,0 +1,96 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import redis.clients.jedis.PipelineBase;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Read of keys of different buckets of a shard, one HMGET per bucket, sent in
+ * a pipeline
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisBucketRead {
+
+	/**
+	 * Hash keys of map
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Bucket to indexes of its keys
+	 */
+	private Map<Integer, List<Integer>> byBucket = new HashMap<>();
+
+	/**
+	 * Encoded keys
+	 */
+	private byte[][] fields;
+
+	/**
+	 * Bucket to response of HMGET
+	 */
+	private Map<Integer, Response<List<byte[]>>> responses = new HashMap<>();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param buckets
+	 *            hash keys of map
+	 * @param keys
+	 *            keys to read
+	 */
+	public RedisBucketRead(RedisBuckets buckets, List<String> keys) {
+		this.buckets = buckets;
+		fields = new byte[keys.size()][];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = SafeEncoder.encode(keys.get(i));
+			int bucket = buckets.bucket(keys.get(i));
+			List<Integer> indexes = byBucket.get(bucket);
+			if (indexes == null) {
+				indexes = new ArrayList<>();
+				byBucket.put(bucket, indexes);
+			}
+			indexes.add(i);
+		}
+	}
+
+	/**
+	 * Add HMGET of each bucket to pipeline
+	 * 
+	 * @param pipeline
+	 *            pipeline
+	 */
+	public void send(PipelineBase pipeline) {
+		for (Map.Entry<Integer, List<Integer>> entry : byBucket.entrySet()) {
+			byte[][] bucketFields = new byte[entry.getValue().size()][];
+			for (int i = 0; i < bucketFields.length; i++) {
+				bucketFields[i] = fields[entry.getValue().get(i)];
+			}
+			responses.put(entry.getKey(), pipeline.hmget(buckets.key(entry.getKey()), bucketFields));
+		}
+	}
+
+	/**
+	 * Values read, after pipeline is synced
+	 * 
+	 * @return values in order of keys, null if not available
+	 */
+	public List<byte[]> values() {
+		byte[][] values = new byte[fields.length][];
+		for (Map.Entry<Integer, List<Integer>> entry : byBucket.entrySet()) {
+			List<byte[]> bucketValues = responses.get(entry.getKey()).get();
+			for (int i = 0; i < bucketValues.size(); i++) {
+				values[entry.getValue().get(i)] = bucketValues.get(i);
+			}
+		}
+		return Arrays.asList(values);
+	}
+}
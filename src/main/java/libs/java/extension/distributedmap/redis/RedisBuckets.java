@@ -0,0 +1,110 @@
+package libs.java.extension.distributedmap.redis;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Redis hash keys of a map. By default a map is one hash "name". With
+ * buckets, keys are split over hashes "name:{bucket}" by hash code of key, so
+ * each hash stays small. Small hashes use compact encoding of redis
+ * (ziplist/listpack up to hash-max-ziplist-entries fields), and deleting or
+ * scanning one bucket does not block redis for whole map.
+ *
+ * Expiry sorted set of a hash is hash key + ":ttl".
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisBuckets {
+
+	/**
+	 * Number of buckets, 0 if map is one hash
+	 */
+	private final int count;
+
+	/**
+	 * Encoded hash keys, one per bucket
+	 */
+	private final byte[][] keys;
+
+	/**
+	 * Encoded expiry set keys, one per bucket
+	 */
+	private final byte[][] ttlKeys;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            map name
+	 * @param count
+	 *            number of buckets, 0 for one hash "name"
+	 */
+	public RedisBuckets(String name, int count) {
+		if (count < 0) {
+			throw new IllegalStateException("Negative bucket count " + count);
+		}
+		this.count = count;
+		int size = Math.max(count, 1);
+		keys = new byte[size][];
+		ttlKeys = new byte[size][];
+		for (int i = 0; i < size; i++) {
+			String key = count == 0 ? name : name + ":{" + i + "}";
+			keys[i] = SafeEncoder.encode(key);
+			ttlKeys[i] = SafeEncoder.encode(key + RedisExpiry.TTL_SUFFIX);
+		}
+	}
+
+	/**
+	 * Number of hashes, 1 if map is not bucketed
+	 *
+	 * @return hashes
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Bucket of key
+	 *
+	 * @param key
+	 *            key
+	 * @return bucket index
+	 */
+	public int bucket(String key) {
+		return count == 0 ? 0 : (key.hashCode() & 0x7FFFFFFF) % count;
+	}
+
+	/**
+	 * Hash key of bucket
+	 *
+	 * @param bucket
+	 *            bucket index
+	 * @return encoded hash key
+	 */
+	public byte[] key(int bucket) {
+		return keys[bucket];
+	}
+
+	/**
+	 * Hash key storing key
+	 *
+	 * @param key
+	 *            key
+	 * @return encoded hash key
+	 */
+	public byte[] keyOf(String key) {
+		return keys[bucket(key)];
+	}
+
+	/**
+	 * Expiry set key of bucket
+	 *
+	 * @param bucket
+	 *            bucket index
+	 * @return encoded sorted set key
+	 */
+	public byte[] ttlKey(int bucket) {
+		return ttlKeys[bucket];
+	}
+
+}
@@ -6,5 +6,5 @@ package libs.java.extension.distributedmap.redis;
  *
  */
 public enum RedisCommand {
-	PUT, DELETE, CLEAR;
+	PUT, DELETE, CLEAR, EXPIRE;
 }
@@ -0,0 +1,233 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Binary frame of a map event. All numbers are big endian.
+ *
+ * <pre>
+ * magic     1 byte  (0xE7, legacy text events start with a letter)
+ * version   1 byte
+ * command   1 byte  (1 put, 2 delete, 3 clear, 4 expire)
+ * origin    8 bytes id of publishing map instance
+ * timestamp 8 bytes epoch milliseconds of publish
+ * count     4 bytes number of elements
+ * elements  count times:
+ *   key length    4 bytes
+ *   key           UTF-8 bytes
+ *   value length  4 bytes, -1 if element has no value
+ *   value         encoded value bytes
+ * </pre>
+ *
+ * Keys and values are length prefixed, so they can contain any character.
+ * Subscriber reads frames of {@link #VERSION} and legacy text events, so
+ * processes publishing legacy events can share a map during rollout. Frames
+ * of other versions are ignored.
+ *
+ * @author Kuldeep
+ *
+ */
+public final class RedisEventFrame {
+
+	/**
+	 * First byte of every frame
+	 */
+	public static final byte MAGIC = (byte) 0xE7;
+
+	/**
+	 * Current frame version
+	 */
+	public static final byte VERSION = 1;
+
+	/**
+	 * Size of magic, version, command, origin, timestamp and count
+	 */
+	static final int HEADER_SIZE = 23;
+
+	private RedisEventFrame() {
+	}
+
+	/**
+	 * If message is a binary frame, not a legacy text event
+	 *
+	 * @param message
+	 *            received message
+	 * @return true/false
+	 */
+	public static boolean isFrame(byte[] message) {
+		return message.length >= HEADER_SIZE && message[0] == MAGIC;
+	}
+
+	/**
+	 * Origin of frame, id of publishing map instance
+	 *
+	 * @param frame
+	 *            frame
+	 * @return origin
+	 */
+	static long origin(byte[] frame) {
+		return ((long) readInt(frame, 3) << 32) | (readInt(frame, 7) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Time frame was published
+	 *
+	 * @param frame
+	 *            frame
+	 * @return epoch milliseconds
+	 */
+	static long timestamp(byte[] frame) {
+		return ((long) readInt(frame, 11) << 32) | (readInt(frame, 15) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Number of elements in frame
+	 *
+	 * @param frame
+	 *            frame
+	 * @return count
+	 */
+	static int count(byte[] frame) {
+		return readInt(frame, HEADER_SIZE - 4);
+	}
+
+	/**
+	 * Code of command in frame
+	 *
+	 * @param command
+	 *            command
+	 * @return code
+	 */
+	static byte code(RedisCommand command) {
+		switch (command) {
+		case PUT:
+			return 1;
+		case DELETE:
+			return 2;
+		case EXPIRE:
+			return 4;
+		default:
+			return 3;
+		}
+	}
+
+	/**
+	 * Command of code in frame
+	 *
+	 * @param code
+	 *            code
+	 * @return command or null if unknown
+	 */
+	static RedisCommand command(byte code) {
+		switch (code) {
+		case 1:
+			return RedisCommand.PUT;
+		case 2:
+			return RedisCommand.DELETE;
+		case 3:
+			return RedisCommand.CLEAR;
+		case 4:
+			return RedisCommand.EXPIRE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Encode event
+	 *
+	 * @param command
+	 *            command
+	 * @param origin
+	 *            id of publishing map instance
+	 * @param elements
+	 *            key to encoded value (null for no value), null for clear
+	 * @return frame
+	 */
+	public static byte[] encode(RedisCommand command, long origin, Map<String, byte[]> elements) {
+		int count = elements == null ? 0 : elements.size();
+		byte[][] keys = new byte[count][];
+		int size = HEADER_SIZE;
+		if (count > 0) {
+			int i = 0;
+			for (Map.Entry<String, byte[]> element : elements.entrySet()) {
+				keys[i] = element.getKey().getBytes(StandardCharsets.UTF_8);
+				size += 8 + keys[i].length + (element.getValue() == null ? 0 : element.getValue().length);
+				i++;
+			}
+		}
+		byte[] frame = new byte[size];
+		frame[0] = MAGIC;
+		frame[1] = VERSION;
+		frame[2] = code(command);
+		writeInt(frame, 3, (int) (origin >>> 32));
+		writeInt(frame, 7, (int) origin);
+		long now = System.currentTimeMillis();
+		writeInt(frame, 11, (int) (now >>> 32));
+		writeInt(frame, 15, (int) now);
+		int pos = writeInt(frame, 19, count);
+		if (count > 0) {
+			int i = 0;
+			for (byte[] value : elements.values()) {
+				pos = writeBytes(frame, pos, keys[i++]);
+				pos = writeBytes(frame, pos, value);
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Write length prefixed bytes
+	 *
+	 * @param frame
+	 *            frame
+	 * @param pos
+	 *            position
+	 * @param bytes
+	 *            bytes, null written as length -1
+	 * @return next position
+	 */
+	private static int writeBytes(byte[] frame, int pos, byte[] bytes) {
+		if (bytes == null) {
+			return writeInt(frame, pos, -1);
+		}
+		pos = writeInt(frame, pos, bytes.length);
+		System.arraycopy(bytes, 0, frame, pos, bytes.length);
+		return pos + bytes.length;
+	}
+
+	/**
+	 * Write int
+	 *
+	 * @param frame
+	 *            frame
+	 * @param pos
+	 *            position
+	 * @param value
+	 *            value
+	 * @return next position
+	 */
+	static int writeInt(byte[] frame, int pos, int value) {
+		frame[pos] = (byte) (value >>> 24);
+		frame[pos + 1] = (byte) (value >>> 16);
+		frame[pos + 2] = (byte) (value >>> 8);
+		frame[pos + 3] = (byte) value;
+		return pos + 4;
+	}
+
+	/**
+	 * Read int
+	 *
+	 * @param frame
+	 *            frame
+	 * @param pos
+	 *            position
+	 * @return value
+	 */
+	static int readInt(byte[] frame, int pos) {
+		return ((frame[pos] & 0xFF) << 24) | ((frame[pos + 1] & 0xFF) << 16) | ((frame[pos + 2] & 0xFF) << 8)
+				| (frame[pos + 3] & 0xFF);
+	}
+
+}
@@ -0,0 +1,262 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import libs.java.extension.distributedmap.DistributedMap;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.PipelineBase;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Expiry of map keys. Redis hash fields can't expire, so expiry time of keys
+ * put with time to live is kept in sorted set "name:ttl" (score is expiry
+ * time in epoch milliseconds), one set per hash if map is bucketed (See
+ * {@link RedisBuckets}). Every process using expiry sweeps the set
+ * periodically, expired fields are removed atomically by a script, so each
+ * expired key is removed and published (EXPIRE event) by one process only.
+ * Local keys of the process which put them expire exactly, other processes
+ * and redis reads see expired keys up to sweep interval.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisExpiry {
+
+	/**
+	 * Removes expired fields of hash KEYS[1] listed in sorted set KEYS[2],
+	 * score up to ARGV[1], at most ARGV[2] fields. Returns removed fields
+	 */
+	static final RedisScript SWEEP_SCRIPT = new RedisScript("local keys = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) "
+			+ "if #keys > 0 then redis.call('HDEL', KEYS[1], unpack(keys)) redis.call('ZREM', KEYS[2], unpack(keys)) end "
+			+ "return keys");
+
+	/**
+	 * Max keys removed by one script call
+	 */
+	private static final int SWEEP_BATCH = 1000;
+
+	/**
+	 * Suffix of sorted set key
+	 */
+	public static final String TTL_SUFFIX = ":ttl";
+
+	/**
+	 * Map name
+	 */
+	private String name;
+
+	/**
+	 * Hash and sorted set keys
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Redis connection pool
+	 */
+	private JedisPool pool;
+
+	/**
+	 * Map, local keys are expired
+	 */
+	private DistributedMap<String, ?> map;
+
+	/**
+	 * Publisher of expire events
+	 */
+	private RedisMapEventPublisher<?> publisher;
+
+	/**
+	 * Sweep interval in milliseconds
+	 */
+	private long sweepMillis;
+
+	/**
+	 * Sweeper, null until expiry is enabled
+	 */
+	private ScheduledExecutorService sweeper;
+
+	/**
+	 * If expiry is enabled
+	 */
+	private volatile boolean enabled;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            map name
+	 * @param buckets
+	 *            hash and sorted set keys
+	 * @param pool
+	 *            redis connection pool
+	 * @param map
+	 *            map
+	 * @param publisher
+	 *            publisher of expire events
+	 * @param sweepMillis
+	 *            sweep interval in milliseconds
+	 */
+	public RedisExpiry(String name, RedisBuckets buckets, JedisPool pool, DistributedMap<String, ?> map,
+			RedisMapEventPublisher<?> publisher, long sweepMillis) {
+		this.name = name;
+		this.buckets = buckets;
+		this.pool = pool;
+		this.map = map;
+		this.publisher = publisher;
+		this.sweepMillis = sweepMillis;
+	}
+
+	/**
+	 * If expiry is enabled, writes then maintain expiry set
+	 *
+	 * @return true/false
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enable expiry and start sweeper, does nothing if already enabled
+	 */
+	public synchronized void enable() {
+		if (enabled) {
+			return;
+		}
+		sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "expiry-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					sweep();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+		enabled = true;
+	}
+
+	/**
+	 * Add expiry update of key to pipeline/transaction, if expiry is enabled
+	 *
+	 * @param pipeline
+	 *            pipeline or transaction writing key
+	 * @param bucket
+	 *            bucket of key
+	 * @param key
+	 *            encoded key
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds, 0 if key does not expire
+	 */
+	public void onPut(PipelineBase pipeline, int bucket, byte[] key, long expireAt) {
+		if (!enabled) {
+			return;
+		}
+		if (expireAt > 0) {
+			pipeline.zadd(buckets.ttlKey(bucket), expireAt, key);
+		} else {
+			pipeline.zrem(buckets.ttlKey(bucket), key);
+		}
+	}
+
+	/**
+	 * Add expiry removal of keys to pipeline/transaction, if expiry is enabled
+	 *
+	 * @param pipeline
+	 *            pipeline or transaction removing keys
+	 * @param bucket
+	 *            bucket of keys
+	 * @param keys
+	 *            encoded keys
+	 */
+	public void onRemove(PipelineBase pipeline, int bucket, byte[]... keys) {
+		if (enabled && keys.length > 0) {
+			pipeline.zrem(buckets.ttlKey(bucket), keys);
+		}
+	}
+
+	/**
+	 * Delete expiry set of bucket, on clear of map
+	 *
+	 * @param pipeline
+	 *            pipeline deleting bucket
+	 * @param bucket
+	 *            bucket
+	 */
+	public void clear(PipelineBase pipeline, int bucket) {
+		if (enabled) {
+			pipeline.del(buckets.ttlKey(bucket));
+		}
+	}
+
+	/**
+	 * Remove expired local keys and expired redis keys, publishing expire
+	 * event of redis keys removed by this process
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		map.expireLocal(now);
+		for (int bucket = 0; bucket < buckets.size(); bucket++) {
+			sweep(bucket, now);
+		}
+	}
+
+	/**
+	 * Remove expired redis keys of a bucket
+	 *
+	 * @param bucket
+	 *            bucket
+	 * @param now
+	 *            current time in epoch milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	private void sweep(int bucket, long now) {
+		List<byte[]> expired;
+		do {
+			try (Jedis jedis = pool.getResource()) {
+				expired = (List<byte[]>) SWEEP_SCRIPT.eval(jedis,
+						Arrays.asList(buckets.key(bucket), buckets.ttlKey(bucket)),
+						Arrays.asList(SafeEncoder.encode(String.valueOf(now)),
+								SafeEncoder.encode(String.valueOf(SWEEP_BATCH))));
+			}
+			if (expired.isEmpty()) {
+				return;
+			}
+			Map<String, byte[]> events = new HashMap<>();
+			for (byte[] key : expired) {
+				String k = SafeEncoder.encode(key);
+				map.markUpdated(k);
+				map.removeLocal(k);
+				events.put(k, null);
+			}
+			publisher.publishMultiple(RedisCommand.EXPIRE, events);
+		} while (expired.size() >= SWEEP_BATCH);
+	}
+
+	/**
+	 * Stop sweeper
+	 */
+	public synchronized void close() {
+		if (sweeper != null) {
+			sweeper.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Iterator over fields of a redis hash using HSCAN. Fields are fetched one
+ * page at a time, a connection is taken from pool for each page only, so
+ * iteration holds at most one page in memory and does not block redis or the
+ * pool for the whole hash.
+ *
+ * As HSCAN, fields present for the whole iteration are returned at least
+ * once, fields added or removed during iteration may or may not be returned,
+ * and a field can be returned more than once if redis rehashes the hash.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisHashScanIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+
+	/**
+	 * Redis connection pool
+	 */
+	private JedisPool pool;
+
+	/**
+	 * Redis hash key
+	 */
+	private byte[] key;
+
+	/**
+	 * Scan parameters, page size
+	 */
+	private ScanParams params;
+
+	/**
+	 * Cursor of next page, null when last page is fetched
+	 */
+	private byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+
+	/**
+	 * Current page
+	 */
+	private Iterator<Map.Entry<byte[], byte[]>> page;
+
+	/**
+	 * Constructor
+	 *
+	 * @param pool
+	 *            redis connection pool
+	 * @param key
+	 *            redis hash key
+	 * @param pageSize
+	 *            fields fetched per HSCAN, a hint to redis
+	 */
+	public RedisHashScanIterator(JedisPool pool, byte[] key, int pageSize) {
+		this.pool = pool;
+		this.key = key;
+		this.params = new ScanParams().count(pageSize);
+	}
+
+	/**
+	 * Fetch pages until a non empty page or end of scan
+	 */
+	private void fetch() {
+		while ((page == null || !page.hasNext()) && cursor != null) {
+			ScanResult<Map.Entry<byte[], byte[]>> result;
+			try (Jedis jedis = pool.getResource()) {
+				result = jedis.hscan(key, cursor, params);
+			}
+			List<Map.Entry<byte[], byte[]>> fields = result.getResult();
+			page = fields.iterator();
+			cursor = result.getCursorAsBytes();
+			if (Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY)) {
+				cursor = null;
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		fetch();
+		return page.hasNext();
+	}
+
+	@Override
+	public Map.Entry<byte[], byte[]> next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.next();
+	}
+
+}
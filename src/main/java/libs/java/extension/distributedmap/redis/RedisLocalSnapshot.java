@@ -0,0 +1,306 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import libs.java.extension.distributedmap.DistributedMap;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+
+/**
+ * Snapshot of local map in a file, so a restarted process
+ * starts with local map of previous run without reading redis. Snapshot keeps
+ * encoded keys and values and, per shard, stream id of last event applied to
+ * local map. After load, subscribers replay events after these ids from
+ * stream (See {@link RedisMapEventSubscriber}), so only keys changed since
+ * snapshot are updated. If events are already trimmed from stream, local map
+ * is cleared by subscriber as usual.
+ *
+ * Snapshot is written to a temporary file and renamed, a crash while writing
+ * leaves previous snapshot. Entries are encoded and written one by one
+ * through a buffer, and read back the same way, so a snapshot of a large
+ * local map needs no copy of it on heap and is not limited to 2 GB. Expiry times of local keys are not kept, expired
+ * keys are removed by expiry events.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class RedisLocalSnapshot<V> {
+
+	/**
+	 * Start of file, "DMS1"
+	 */
+	private static final int MAGIC = 0x444D5331;
+
+	/**
+	 * Bytes buffered while reading or writing file
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Snapshot file
+	 */
+	private File file;
+
+	/**
+	 * Map name, used in thread name
+	 */
+	private String name;
+
+	/**
+	 * Map, local keys are saved
+	 */
+	private DistributedMap<String, V> map;
+
+	/**
+	 * Value codec
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Shards of map, stream positions are taken from their subscribers
+	 */
+	private RedisShard<V>[] shards;
+
+	/**
+	 * Writes snapshot periodically, null if not started
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Constructor
+	 *
+	 * @param name
+	 *            map name
+	 * @param file
+	 *            snapshot file
+	 * @param map
+	 *            map
+	 * @param codec
+	 *            value codec
+	 */
+	public RedisLocalSnapshot(String name, File file, DistributedMap<String, V> map, ValueCodec<V> codec) {
+		this.name = name;
+		this.file = file;
+		this.map = map;
+		this.codec = codec;
+	}
+
+	/**
+	 * Load snapshot to local map. Snapshot is used only if it was taken for
+	 * same nodes
+	 *
+	 * @param nodes
+	 *            nodes of map, "host:port"
+	 * @return stream id of last applied event per node, null if no snapshot is
+	 *         loaded
+	 */
+	public Map<String, String> load(Collection<String> nodes) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			Map<String, String> positions = new HashMap<>();
+			int shardCount = in.readInt();
+			for (int i = 0; i < shardCount; i++) {
+				positions.put(readString(in), readString(in));
+			}
+			if (!positions.keySet().equals(new HashSet<>(nodes))) {
+				// map is sharded differently now
+				return null;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String key = readString(in);
+				byte[] value = new byte[in.readInt()];
+				in.readFully(value);
+				try {
+					V decoded = codec.decode(value);
+					if (decoded != null) {
+						map.putLocal(key, decoded);
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					map.getMetrics().decodeError();
+				}
+			}
+			return positions;
+		} catch (Exception e) {
+			// unreadable snapshot, start without it
+			e.printStackTrace();
+			map.clearLocal();
+			return null;
+		}
+	}
+
+	/**
+	 * Start writing snapshot periodically
+	 *
+	 * @param shards
+	 *            shards of map
+	 * @param intervalMillis
+	 *            time between snapshots
+	 */
+	public synchronized void start(RedisShard<V>[] shards, long intervalMillis) {
+		this.shards = shards;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "snapshot-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					save();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Write snapshot of local map. Stream positions are taken before local
+	 * keys are copied, so events after them are at most applied twice on load.
+	 * Nothing is written while a stream position is not known
+	 *
+	 * @throws IOException
+	 *             if file can't be written
+	 */
+	public synchronized void save() throws IOException {
+		if (shards == null) {
+			return;
+		}
+		Map<String, String> positions = new LinkedHashMap<>();
+		for (RedisShard<V> shard : shards) {
+			String position = shard.getSubscriber().getAppliedPosition();
+			if (position == null) {
+				return;
+			}
+			positions.put(shard.getId(), position);
+		}
+		save(positions);
+	}
+
+	/**
+	 * Write snapshot of local map with given stream positions
+	 *
+	 * @param positions
+	 *            stream id of last applied event per node, "host:port"
+	 * @throws IOException
+	 *             if file can't be written
+	 */
+	synchronized void save(Map<String, String> positions) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, BUFFER_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(positions.size());
+			for (Map.Entry<String, String> position : positions.entrySet()) {
+				writeBytes(out, position.getKey().getBytes(StandardCharsets.UTF_8));
+				writeBytes(out, position.getValue().getBytes(StandardCharsets.UTF_8));
+			}
+			// entry count is not known before local keys are written
+			long countOffset = out.size();
+			out.writeInt(0);
+			int count = 0;
+			for (Map.Entry<String, V> entry : map.entrySetLocal()) {
+				byte[] value;
+				try {
+					value = codec.encode(entry.getValue());
+				} catch (Exception e) {
+					e.printStackTrace();
+					continue;
+				}
+				if (value == null) {
+					continue;
+				}
+				writeBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+				writeBytes(out, value);
+				count++;
+			}
+			out.flush();
+			ByteBuffer countBytes = ByteBuffer.allocate(4);
+			countBytes.putInt(0, count);
+			fos.getChannel().write(countBytes, countOffset);
+			fos.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write length prefixed bytes
+	 *
+	 * @param out
+	 *            stream
+	 * @param bytes
+	 *            bytes
+	 * @throws IOException
+	 *             if bytes can't be written
+	 */
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read length prefixed UTF-8 string
+	 *
+	 * @param in
+	 *            stream
+	 * @return string
+	 * @throws IOException
+	 *             if string can't be read
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Stop periodic snapshot and write last snapshot
+	 */
+	public synchronized void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+		try {
+			save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -1,18 +1,38 @@
 package libs.java.extension.distributedmap.redis;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import libs.java.extension.distributedmap.metrics.MapOperation;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Event publisher for redis. It runs on a separate thread, which does not block
- * caller/operation thread
+ * caller/operation thread. Values are published as encoded by the map codec,
+ * so a value is encoded only once for redis and event. Events are published
+ * as {@link RedisEventFrame}, or as legacy text events if configured (See
+ * {@link libs.java.extension.distributedmap.DistributedMapConfig#setLegacyEvents(boolean)}).
  * 
+ * If a publish window is set, PUT/DELETE events are collected for the window
+ * (or until batch size keys are collected), only last event of a key is kept,
+ * and all are published together, one message per command.
+ * 
+ * If a stream length is set, each message is also appended to capped redis
+ * stream "name:events" (See {@link #STREAM_SCRIPT}), so subscribers can replay
+ * messages they missed. Message is then published on channel "name:events"
+ * prefixed with stream ids of previous and own message, "previd id message".
+ *
  * @author Kuldeep
  *
  * @param <V>
@@ -21,112 +41,384 @@ import redis.clients.jedis.Jedis;
 public class RedisMapEventPublisher<V> {
 
 	/**
-	 * Executor, not block caller
+	 * Legacy event command/elements separator
+	 */
+	static final byte[] COMMAND_SEPARATOR = SafeEncoder.encode("<>");
+	/**
+	 * Legacy event element separator
+	 */
+	static final byte[] ELEMENT_SEPARATOR = SafeEncoder.encode("><");
+	/**
+	 * Legacy event key/value separator
+	 */
+	static final byte[] VALUE_SEPARATOR = SafeEncoder.encode("~~");
+
+	/**
+	 * Suffix of stream key and channel in stream mode
+	 */
+	public static final String STREAM_SUFFIX = ":events";
+
+	/**
+	 * Suffix of key holding id of last message of stream
+	 */
+	public static final String LAST_ID_SUFFIX = ":last";
+
+	/**
+	 * KEYS[1] stream, KEYS[2] last id key, ARGV[1] max stream length, ARGV[2]
+	 * message. Appends message to stream and publishes it on channel KEYS[1]
+	 * prefixed with ids of previous and appended message, returns id
+	 */
+	static final RedisScript STREAM_SCRIPT = new RedisScript("redis.replicate_commands() "
+			+ "local prev = redis.call('GET', KEYS[2]) or '0-0' "
+			+ "local id = redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'f', ARGV[2]) "
+			+ "redis.call('SET', KEYS[2], id) "
+			+ "redis.call('PUBLISH', KEYS[1], prev .. ' ' .. id .. ' ' .. ARGV[2]) "
+			+ "return id");
+
+	/**
+	 * Marks a deleted key in pending events
 	 */
-	private Executor ex = null;
+	private static final byte[] DELETED = new byte[0];
+
 	/**
-	 * JSON data writer
+	 * Executor, not block caller, also runs window timer
 	 */
-	private ObjectWriter writer;
+	private ScheduledThreadPoolExecutor ex = null;
 	/**
-	 * Redis connection
+	 * Redis connection pool
 	 */
-	private Jedis publisher;
+	private JedisPool pool;
 	/**
 	 * Channel = map name, to identify event are for which map
 	 */
-	private String channel;
+	private byte[] channel;
+	/**
+	 * Publish legacy text events instead of frames
+	 */
+	private boolean legacyEvents;
+	/**
+	 * Id of publishing map instance, set in frames so the instance can ignore
+	 * its own events
+	 */
+	private long origin;
+	/**
+	 * Time in milliseconds events are collected before publish, 0 to publish
+	 * each event immediately
+	 */
+	private long windowMillis;
+	/**
+	 * Max keys collected before publish
+	 */
+	private int batchSize;
+	/**
+	 * Guards collected events
+	 */
+	private final Object lock = new Object();
+	/**
+	 * Collected events, key to encoded value or {@link #DELETED}
+	 */
+	private Map<String, byte[]> pending = new LinkedHashMap<>();
+	/**
+	 * If publish of collected events is scheduled at end of window
+	 */
+	private boolean scheduled;
+	/**
+	 * If publish of collected events is submitted as batch size is reached
+	 */
+	private boolean submitted;
+	/**
+	 * Max length of event stream, 0 if events are only published
+	 */
+	private long streamMaxLength;
+	/**
+	 * Stream key and last id key
+	 */
+	private List<byte[]> streamKeys;
+	/**
+	 * Measurements of map
+	 */
+	private MapMetrics metrics;
+
+	/**
+	 * Constructor
+	 *
+	 * @param channel
+	 *            channel/mapname
+	 * @param pool
+	 *            redis connection pool, a connection is taken for each publish
+	 * @param legacyEvents
+	 *            publish legacy text events instead of frames
+	 * @param origin
+	 *            id of publishing map instance
+	 * @param windowMillis
+	 *            time in milliseconds events are collected before publish, 0
+	 *            to publish each event immediately
+	 * @param batchSize
+	 *            max keys collected before publish
+	 * @param streamMaxLength
+	 *            approximate max length of event stream, 0 to only publish
+	 *            events
+	 * @param metrics
+	 *            measurements of map, publish latency and errors are recorded
+	 */
+	public RedisMapEventPublisher(String channel, JedisPool pool, boolean legacyEvents, long origin,
+			long windowMillis, int batchSize, long streamMaxLength, MapMetrics metrics) {
+		this.metrics = metrics;
+		this.streamMaxLength = streamMaxLength;
+		if (streamMaxLength > 0) {
+			String stream = channel + STREAM_SUFFIX;
+			streamKeys = Arrays.asList(SafeEncoder.encode(stream), SafeEncoder.encode(stream + LAST_ID_SUFFIX));
+		}
+		this.legacyEvents = legacyEvents;
+		this.origin = origin;
+		this.windowMillis = windowMillis;
+		this.batchSize = batchSize;
+		ex = new ScheduledThreadPoolExecutor(1);
+		this.pool = pool;
+		this.channel = SafeEncoder.encode(channel);
+	}
+
+	/**
+	 * Publish message to channel
+	 *
+	 * @param message
+	 *            message
+	 */
+	private void send(byte[] message) {
+		long start = System.nanoTime();
+		try (Jedis publisher = pool.getResource()) {
+			if (streamKeys != null) {
+				STREAM_SCRIPT.eval(publisher, streamKeys,
+						Arrays.asList(SafeEncoder.encode(String.valueOf(streamMaxLength)), message));
+			} else {
+				publisher.publish(channel, message);
+			}
+			metrics.operation(MapOperation.PUBLISH, System.nanoTime() - start);
+		} catch (Exception e) {
+			e.printStackTrace();
+			metrics.error(MapOperation.PUBLISH);
+		}
+	}
+
+	/**
+	 * Number of publish tasks waiting in executor (including end of window
+	 * timer), grows if events are produced faster than redis takes them
+	 *
+	 * @return tasks waiting
+	 */
+	public int getQueueDepth() {
+		return ex.getQueue().size();
+	}
+
+	/**
+	 * Stops publisher, events already submitted or collected are published
+	 * before executor thread stops
+	 */
+	public void close() {
+		if (windowMillis > 0) {
+			ex.execute(new Runnable() {
 
-	public RedisMapEventPublisher(String channel, Jedis publisher) {
-		ex = Executors.newFixedThreadPool(1);
-		ObjectMapper mapper = new ObjectMapper();
-		writer = mapper.writer();
-		this.publisher = publisher;
-		this.channel = channel;
+				@Override
+				public void run() {
+					publishPending();
+				}
+			});
+		}
+		ex.shutdown();
+		try {
+			ex.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 
 	/**
 	 * Publish to redis
 	 * @param command command
 	 * @param key key
-	 * @param element data
+	 * @param element encoded data
 	 */
-	public void publish(RedisCommand command, String key, V element) {
+	public void publish(RedisCommand command, String key, byte[] element) {
 		if (command == null) {
 			return;
 		}
-		ex.execute(new Runnable() {
-
-			@Override
-			public void run() {
-				if (command == RedisCommand.CLEAR) {
-					publisher.publish(channel, "clear");
-					return;
-				}
-				if (command == RedisCommand.DELETE) {
-					publisher.publish(channel, "delete<>" + key);
-					return;
-				}
-				if (command == RedisCommand.PUT) {
-					StringBuffer values = new StringBuffer();
-					try {
-						String value = writer.writeValueAsString(element);
-						values.append(key + "~~" + value);
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-					publisher.publish(channel, "put<>" + values.toString());
-				}
-
-			}
-		});
+		if (windowMillis > 0) {
+			collect(command, command == RedisCommand.CLEAR ? null : Collections.singletonMap(key, element));
+			return;
+		}
+		submit(command, command == RedisCommand.CLEAR ? null : Collections.singletonMap(key, element));
 	}
 
 	/**
 	 * Publish event to redis
 	 * @param command command
-	 * @param elements elements
+	 * @param elements key to encoded data
 	 */
-	public void publishMultiple(RedisCommand command, Map<? extends String, ? extends V> elements) {
+	public void publishMultiple(RedisCommand command, Map<String, byte[]> elements) {
 		if (command == null) {
 			return;
 		}
-		ex.execute(new Runnable() {
+		if (windowMillis > 0) {
+			collect(command, command == RedisCommand.CLEAR ? null : elements);
+			return;
+		}
+		submit(command, command == RedisCommand.CLEAR ? null : elements);
+	}
 
-			@Override
-			public void run() {
-				if (command == RedisCommand.CLEAR) {
-					publisher.publish(channel, "clear");
+	/**
+	 * Collect events for window. Clear drops collected events, they are
+	 * overridden by clear anyway, and is published immediately
+	 *
+	 * @param command
+	 *            command
+	 * @param elements
+	 *            key to encoded data, null for clear
+	 */
+	private void collect(RedisCommand command, Map<String, byte[]> elements) {
+		synchronized (lock) {
+			if (command == RedisCommand.CLEAR) {
+				pending.clear();
+				submit(command, null);
+				return;
+			}
+			for (Map.Entry<String, byte[]> element : elements.entrySet()) {
+				// remove first, keeps order of last event of key
+				pending.remove(element.getKey());
+				// expire is collected as delete, same effect on other processes
+				pending.put(element.getKey(), command == RedisCommand.PUT ? element.getValue() : DELETED);
+			}
+			if (pending.size() >= batchSize) {
+				if (submitted) {
 					return;
 				}
-				if (command == RedisCommand.DELETE) {
-					StringBuffer values = new StringBuffer();
-					for (String key : elements.keySet()) {
-						try {
-							values.append(key + "><");
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+				submitted = true;
+				ex.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						publishPending();
 					}
-					publisher.publish(channel, "delete<>" + values.toString());
-					return;
-				}
-				if (command == RedisCommand.PUT) {
-					StringBuffer values = new StringBuffer();
-					for (String key : elements.keySet()) {
-						try {
-							String value = writer.writeValueAsString(elements.get(key));
-							values.append(key + "~~" + value + "><");
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
+				});
+			} else if (!scheduled) {
+				scheduled = true;
+				ex.schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						publishPending();
 					}
-					System.out.println(values.toString());
-					publisher.publish(channel, "put<>" + values.toString());
-				}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
 
+	/**
+	 * Publish collected events, one message for puts and one for deletes. Runs
+	 * on executor thread
+	 */
+	private void publishPending() {
+		Map<String, byte[]> events;
+		synchronized (lock) {
+			scheduled = false;
+			submitted = false;
+			if (pending.isEmpty()) {
+				return;
+			}
+			events = pending;
+			pending = new LinkedHashMap<>();
+		}
+		Map<String, byte[]> puts = new HashMap<>();
+		Map<String, byte[]> deletes = new HashMap<>();
+		for (Map.Entry<String, byte[]> event : events.entrySet()) {
+			if (event.getValue() == DELETED) {
+				deletes.put(event.getKey(), null);
+			} else {
+				puts.put(event.getKey(), event.getValue());
+			}
+		}
+		// keys are distinct, order of the two messages does not matter
+		if (!puts.isEmpty()) {
+			send(message(RedisCommand.PUT, puts));
+		}
+		if (!deletes.isEmpty()) {
+			send(message(RedisCommand.DELETE, deletes));
+		}
+	}
+
+	/**
+	 * Build message and publish on executor thread
+	 *
+	 * @param command
+	 *            command
+	 * @param elements
+	 *            key to encoded data, null for clear
+	 */
+	private void submit(RedisCommand command, Map<String, byte[]> elements) {
+		ex.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				send(message(command, elements));
 			}
 		});
 	}
 
+	/**
+	 * Build message in configured format
+	 *
+	 * @param command
+	 *            command
+	 * @param elements
+	 *            key to encoded data, null for clear
+	 * @return message
+	 */
+	private byte[] message(RedisCommand command, Map<String, byte[]> elements) {
+		if (legacyEvents) {
+			return legacyMessage(command, elements);
+		}
+		return RedisEventFrame.encode(command, origin, elements);
+	}
+
+	/**
+	 * Build legacy text event, "clear", "delete&lt;&gt;key&gt;&lt;..." or
+	 * "put&lt;&gt;key~~value&gt;&lt;..."
+	 *
+	 * @param command
+	 *            command
+	 * @param elements
+	 *            key to encoded data, null for clear
+	 * @return message
+	 */
+	private static byte[] legacyMessage(RedisCommand command, Map<String, byte[]> elements) {
+		if (command == RedisCommand.CLEAR) {
+			return SafeEncoder.encode("clear");
+		}
+		ByteArrayOutputStream values = new ByteArrayOutputStream();
+		// expire is published as delete, understood by all versions
+		write(values, command == RedisCommand.PUT ? "put" : "delete");
+		values.write(COMMAND_SEPARATOR, 0, COMMAND_SEPARATOR.length);
+		for (Map.Entry<String, byte[]> element : elements.entrySet()) {
+			write(values, element.getKey());
+			if (command == RedisCommand.PUT) {
+				values.write(VALUE_SEPARATOR, 0, VALUE_SEPARATOR.length);
+				values.write(element.getValue(), 0, element.getValue().length);
+			}
+			values.write(ELEMENT_SEPARATOR, 0, ELEMENT_SEPARATOR.length);
+		}
+		return values.toByteArray();
+	}
+
+	/**
+	 * Write UTF-8 string to message
+	 *
+	 * @param out
+	 *            message
+	 * @param s
+	 *            string
+	 */
+	private static void write(ByteArrayOutputStream out, String s) {
+		byte[] bytes = SafeEncoder.encode(s);
+		out.write(bytes, 0, bytes.length);
+	}
+
 }
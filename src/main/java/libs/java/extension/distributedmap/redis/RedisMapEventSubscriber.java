@@ -1,40 +1,80 @@
 package libs.java.extension.distributedmap.redis;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import libs.java.extension.distributedmap.DistributedMap;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisPool;
+import redis.clients.util.SafeEncoder;
 
 /**
  * Listen for event from redis and updates local map. Call map in separate
  * thread
  * 
+ * Subscription is renewed if connection is lost. Events published meanwhile
+ * are lost, so local map is cleared, unless events are also kept in a stream
+ * (See {@link RedisMapEventPublisher}). Then subscriber tracks id of last
+ * message received, and when a message does not follow it (or after
+ * reconnect) missed messages are replayed from stream. Local map is cleared
+ * only if missed messages are already trimmed from stream.
+ * 
  * @author Kuldeep
  *
  * @param <V>
  *            value
  */
-public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable {
+public class RedisMapEventSubscriber<V> extends BinaryJedisPubSub implements Runnable {
+
+	/**
+	 * KEYS[1] stream, ARGV[1] id of last message received, ARGV[2] next id,
+	 * ARGV[3] max messages. Returns messages after last message, or false if
+	 * last message is trimmed from stream
+	 */
+	static final RedisScript REPLAY_SCRIPT = new RedisScript(
+			"if ARGV[1] ~= '0-0' and #redis.call('XRANGE', KEYS[1], ARGV[1], ARGV[1]) == 0 then return false end "
+					+ "return redis.call('XRANGE', KEYS[1], ARGV[2], '+', 'COUNT', ARGV[3])");
+
+	/**
+	 * Max messages read per replay script call
+	 */
+	private static final int REPLAY_BATCH = 1000;
+
+	/**
+	 * Wait before subscribing again after connection is lost
+	 */
+	private static final long RECONNECT_MILLIS = 1000;
+
+	/**
+	 * Separator of stream ids and event in stream mode message
+	 */
+	private static final byte[] SPACE = { ' ' };
 
 	/**
 	 * Executor with single thread
 	 */
-	private Executor ex = null;
+	private ThreadPoolExecutor ex = null;
+	/**
+	 * Measurements of map
+	 */
+	private MapMetrics metrics;
 	/**
 	 * Distributed map to update
 	 */
 	private DistributedMap<String, V> map;
 	/**
-	 * JSON reader
+	 * Value codec, shared with map
 	 */
-	private ObjectReader reader;
+	private ValueCodec<V> codec;
 	/**
 	 * Redis connection
 	 */
@@ -43,6 +83,40 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 	 * Channel/map name
 	 */
 	private String channel;
+	/**
+	 * Set when subscriber is closed
+	 */
+	private volatile boolean closed;
+	/**
+	 * Id of map instance, own events are ignored
+	 */
+	private long origin;
+	/**
+	 * Redis connection pool, for replay from stream, null if events are not
+	 * kept in stream
+	 */
+	private JedisPool pool;
+	/**
+	 * Stream key, also channel in stream mode
+	 */
+	private byte[] streamKey;
+	/**
+	 * Key holding id of last message of stream
+	 */
+	private byte[] lastIdKey;
+	/**
+	 * Stream id of last message received, null until known
+	 */
+	private volatile String position;
+	/**
+	 * Stream id of last message applied to local map, behind position while
+	 * messages wait in executor
+	 */
+	private volatile String appliedPosition;
+	/**
+	 * If subscribed before, next subscription is a reconnect
+	 */
+	private boolean subscribed;
 
 	/**
 	 * Constructor
@@ -51,21 +125,45 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 	 *            channel/mapname
 	 * @param map
 	 *            distributed map
-	 * @param type
-	 *            value type
+	 * @param codec
+	 *            value codec
 	 * @param subscriber
 	 *            redis connection
+	 * @param origin
+	 *            id of map instance, events with same origin are ignored
+	 * @param pool
+	 *            redis connection pool to replay missed events from stream,
+	 *            null if events are not kept in stream
+	 * @param metrics
+	 *            measurements of map, applied events and decode errors are
+	 *            recorded
 	 */
-	public RedisMapEventSubscriber(String channel, DistributedMap<String, V> map, Class<V> type, Jedis subscriber) {
+	public RedisMapEventSubscriber(String channel, DistributedMap<String, V> map, ValueCodec<V> codec,
+			Jedis subscriber, long origin, JedisPool pool, MapMetrics metrics) {
+		this.metrics = metrics;
+		this.pool = pool;
+		if (pool != null) {
+			String stream = channel + RedisMapEventPublisher.STREAM_SUFFIX;
+			streamKey = SafeEncoder.encode(stream);
+			lastIdKey = SafeEncoder.encode(stream + RedisMapEventPublisher.LAST_ID_SUFFIX);
+		}
 		this.map = map;
-		ex = Executors.newFixedThreadPool(1);
-		ObjectMapper mapper = new ObjectMapper();
-		reader = mapper.reader();
-		reader = reader.forType(type);
+		this.origin = origin;
+		ex = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+		this.codec = codec;
 		this.subscriber = subscriber;
 		this.channel = channel;
 	}
 
+	/**
+	 * Number of events received and not yet applied to local map
+	 * 
+	 * @return events waiting
+	 */
+	public int getQueueDepth() {
+		return ex.getQueue().size();
+	}
+
 	/**
 	 * Initializes subscriber
 	 */
@@ -80,8 +178,9 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 	 * 
 	 * Redis callback on publish event
 	 * 
-	 * TO-DO ignore event generated from same process, ignore for now, not that
-	 * much costly
+	 * Events published by same map instance are ignored, local map is updated
+	 * by the operation itself. Legacy text events carry no origin, they are
+	 * always applied.
 	 * 
 	 * @param channel
 	 *            channel/map name
@@ -89,46 +188,325 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 	 *            received message
 	 */
 	@Override
-	public void onMessage(String channel, String message) {
+	public void onMessage(byte[] channel, byte[] message) {
 		if (message == null) {
 			return;
 		}
-		String result[] = message.split("<>");
-		if (result == null || result.length != 2) {
+		if (streamKey != null) {
+			onStreamMessage(message);
 			return;
 		}
-		RedisCommand c = RedisCommand.valueOf(result[0].toUpperCase());
-		if (c == RedisCommand.PUT) {
-			String elements[] = result[1].split("><");
-			Map<String, V> elementsMap = new HashMap<>();
-			for (String element : elements) {
-				try {
-					String keyValue[] = element.split("~~");
-					elementsMap.put(keyValue[0], reader.readValue(keyValue[1]));
-				} catch (Exception e) {
-					e.printStackTrace();
+		onEvent(message);
+	}
+
+	/**
+	 * Parse event in any format
+	 * 
+	 * @param message
+	 *            frame or legacy text event
+	 */
+	private void onEvent(byte[] message) {
+		if (RedisEventFrame.isFrame(message)) {
+			onFrame(message);
+		} else {
+			onLegacyMessage(message);
+		}
+	}
+
+	/**
+	 * Message of stream mode, "previd id event". Event is applied if message
+	 * follows last message received, else missed messages are replayed first.
+	 * Messages already replayed are ignored
+	 * 
+	 * @param message
+	 *            message
+	 */
+	private void onStreamMessage(byte[] message) {
+		int first = indexOf(message, SPACE, 0, message.length);
+		int second = first < 0 ? -1 : indexOf(message, SPACE, first + 1, message.length);
+		if (second < 0) {
+			return;
+		}
+		String previous = new String(message, 0, first, StandardCharsets.US_ASCII);
+		String id = new String(message, first + 1, second - first - 1, StandardCharsets.US_ASCII);
+		if (position != null && !previous.equals(position)) {
+			replay();
+		}
+		if (position != null && compareIds(id, position) <= 0) {
+			// already applied by replay
+			return;
+		}
+		onEvent(Arrays.copyOfRange(message, second + 1, message.length));
+		advance(id);
+	}
+
+	/**
+	 * Set position, applied position is set after messages already queued
+	 * are applied
+	 * 
+	 * @param id
+	 *            stream id of last message queued, can be null
+	 */
+	private void advance(final String id) {
+		position = id;
+		ex.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				appliedPosition = id;
+			}
+		});
+	}
+
+	/**
+	 * Apply messages of stream after position. If message at position is
+	 * trimmed from stream, messages are lost, local map is cleared. Runs on
+	 * subscription thread, so messages received meanwhile wait
+	 */
+	@SuppressWarnings("unchecked")
+	private void replay() {
+		try (Jedis jedis = pool.getResource()) {
+			if (position == null) {
+				// nothing received yet, first message sets position. After
+				// reconnect missed messages can not be found, drop local map
+				if (subscribed) {
+					ex.execute(new SubscriberThread(RedisCommand.CLEAR, null));
 				}
+				return;
 			}
-			ex.execute(new SubscriberThread(c, elementsMap));
+			while (true) {
+				List<Object> entries = (List<Object>) REPLAY_SCRIPT.eval(jedis, Arrays.asList(streamKey),
+						Arrays.asList(SafeEncoder.encode(position), SafeEncoder.encode(nextId(position)),
+								SafeEncoder.encode(String.valueOf(REPLAY_BATCH))));
+				if (entries == null) {
+					// missed messages are trimmed
+					ex.execute(new SubscriberThread(RedisCommand.CLEAR, null));
+					byte[] last = jedis.get(lastIdKey);
+					advance(last == null ? "0-0" : SafeEncoder.encode(last));
+					return;
+				}
+				for (Object entry : entries) {
+					List<Object> idAndFields = (List<Object>) entry;
+					List<Object> fields = (List<Object>) idAndFields.get(1);
+					onEvent((byte[]) fields.get(1));
+					advance(SafeEncoder.encode((byte[]) idAndFields.get(0)));
+				}
+				if (entries.size() < REPLAY_BATCH) {
+					return;
+				}
+			}
+		} catch (Exception e) {
+			// stream not readable, events may be missed
+			e.printStackTrace();
+			ex.execute(new SubscriberThread(RedisCommand.CLEAR, null));
+			advance(null);
 		}
-		if (c == RedisCommand.CLEAR) {
-			ex.execute(new SubscriberThread(c, null));
+	}
 
+	/**
+	 * Stream id of last message received
+	 * 
+	 * @return id or null if not known
+	 */
+	public String getPosition() {
+		return position;
+	}
+
+	/**
+	 * Set stream id of last message applied to local map, before
+	 * {@link #init()}, so messages after it are replayed on subscribe
+	 * 
+	 * @param position
+	 *            stream id
+	 */
+	public void setPosition(String position) {
+		this.position = position;
+		this.appliedPosition = position;
+	}
+
+	/**
+	 * Stream id of last message applied to local map, local map has all
+	 * messages up to it
+	 * 
+	 * @return id or null if not known
+	 */
+	public String getAppliedPosition() {
+		return appliedPosition;
+	}
+
+	/**
+	 * Compare stream ids "ms-seq"
+	 * 
+	 * @param a
+	 *            id
+	 * @param b
+	 *            id
+	 * @return negative, zero or positive as a is before, same or after b
+	 */
+	static int compareIds(String a, String b) {
+		int c = Long.compare(idPart(a, 0), idPart(b, 0));
+		return c != 0 ? c : Long.compare(idPart(a, 1), idPart(b, 1));
+	}
+
+	/**
+	 * Id right after given id, first id a later message can have
+	 * 
+	 * @param id
+	 *            stream id
+	 * @return next id
+	 */
+	static String nextId(String id) {
+		return idPart(id, 0) + "-" + (idPart(id, 1) + 1);
+	}
+
+	/**
+	 * Part of stream id
+	 * 
+	 * @param id
+	 *            stream id "ms-seq"
+	 * @param part
+	 *            0 for ms, 1 for seq
+	 * @return part
+	 */
+	private static long idPart(String id, int part) {
+		int dash = id.indexOf('-');
+		if (dash < 0) {
+			return part == 0 ? Long.parseLong(id) : 0;
 		}
+		return Long.parseLong(part == 0 ? id.substring(0, dash) : id.substring(dash + 1));
+	}
 
-		if (c == RedisCommand.DELETE) {
-			String elements[] = result[1].split("><");
-			Map<String, V> elementsMap = new HashMap<>();
-			for (String element : elements) {
-				try {
-					elementsMap.put(element, null); // only key is there
-				} catch (Exception e) {
-					e.printStackTrace();
+	/**
+	 * Parse binary event frame, values are decoded directly from message
+	 * 
+	 * @param message
+	 *            frame
+	 */
+	private void onFrame(byte[] message) {
+		if (message[1] != RedisEventFrame.VERSION) {
+			// other layout, can't be understood
+			return;
+		}
+		if (RedisEventFrame.origin(message) == origin) {
+			// own event, nothing to decode or apply
+			return;
+		}
+		RedisCommand c = RedisEventFrame.command(message[2]);
+		if (c == null) {
+			return;
+		}
+		long timestamp = RedisEventFrame.timestamp(message);
+		if (c == RedisCommand.CLEAR) {
+			ex.execute(new SubscriberThread(c, null, timestamp));
+			return;
+		}
+		int count = RedisEventFrame.count(message);
+		int pos = RedisEventFrame.HEADER_SIZE;
+		Map<String, V> elementsMap = new HashMap<>(count * 2);
+		try {
+			for (int i = 0; i < count; i++) {
+				int keyLength = RedisEventFrame.readInt(message, pos);
+				pos += 4;
+				String key = new String(message, pos, keyLength, StandardCharsets.UTF_8);
+				pos += keyLength;
+				int valueLength = RedisEventFrame.readInt(message, pos);
+				pos += 4;
+				V value = null;
+				if (valueLength >= 0) {
+					if (c == RedisCommand.PUT) {
+						try {
+							value = codec.decode(message, pos, valueLength);
+						} catch (Exception e) {
+							e.printStackTrace();
+							metrics.decodeError();
+							pos += valueLength;
+							continue;
+						}
+					}
+					pos += valueLength;
+				}
+				elementsMap.put(key, value);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// truncated frame, apply elements read so far
+			e.printStackTrace();
+			metrics.decodeError();
+		}
+		ex.execute(new SubscriberThread(c, elementsMap, timestamp));
+	}
+
+	/**
+	 * Parse legacy text event, sent by processes publishing legacy events
+	 * 
+	 * @param message
+	 *            text event
+	 */
+	private void onLegacyMessage(byte[] message) {
+		int separator = indexOf(message, RedisMapEventPublisher.COMMAND_SEPARATOR, 0, message.length);
+		// clear has no elements
+		int commandEnd = separator < 0 ? message.length : separator;
+		RedisCommand c;
+		try {
+			c = RedisCommand.valueOf(new String(message, 0, commandEnd, StandardCharsets.UTF_8).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return;
+		}
+		if (c == RedisCommand.CLEAR) {
+			ex.execute(new SubscriberThread(c, null, -1));
+			return;
+		}
+		if (separator < 0) {
+			return;
+		}
+		Map<String, V> elementsMap = new HashMap<>();
+		int start = separator + RedisMapEventPublisher.COMMAND_SEPARATOR.length;
+		while (start < message.length) {
+			int end = indexOf(message, RedisMapEventPublisher.ELEMENT_SEPARATOR, start, message.length);
+			if (end < 0) {
+				end = message.length;
+			}
+			try {
+				if (c == RedisCommand.PUT) {
+					int valueStart = indexOf(message, RedisMapEventPublisher.VALUE_SEPARATOR, start, end);
+					String key = new String(message, start, valueStart - start, StandardCharsets.UTF_8);
+					valueStart += RedisMapEventPublisher.VALUE_SEPARATOR.length;
+					elementsMap.put(key, codec.decode(message, valueStart, end - valueStart));
+				} else {
+					// only key is there
+					elementsMap.put(new String(message, start, end - start, StandardCharsets.UTF_8), null);
 				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				metrics.decodeError();
 			}
-			ex.execute(new SubscriberThread(c, elementsMap));
+			start = end + RedisMapEventPublisher.ELEMENT_SEPARATOR.length;
+		}
+		ex.execute(new SubscriberThread(c, elementsMap, -1));
+	}
 
+	/**
+	 * Find pattern in part of message
+	 * 
+	 * @param message
+	 *            message
+	 * @param pattern
+	 *            pattern to find
+	 * @param from
+	 *            start index, inclusive
+	 * @param to
+	 *            end index, exclusive
+	 * @return index of pattern or -1 if not found
+	 */
+	private static int indexOf(byte[] message, byte[] pattern, int from, int to) {
+		outer: for (int i = from; i <= to - pattern.length; i++) {
+			for (int j = 0; j < pattern.length; j++) {
+				if (message[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
 		}
+		return -1;
 	}
 
 	/**
@@ -140,6 +518,11 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 
 		private RedisCommand command;
 		private Map<String, V> elements;
+		/**
+		 * Publish time of event, -1 if not known, null for local commands
+		 * (e.g. clear after lost events) which are not events
+		 */
+		private Long timestamp;
 
 		public SubscriberThread(RedisCommand command, Map<String, V> elements) {
 			this.command = command;
@@ -147,23 +530,27 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 
 		}
 
+		public SubscriberThread(RedisCommand command, Map<String, V> elements, long timestamp) {
+			this(command, elements);
+			this.timestamp = timestamp;
+		}
+
 		@Override
 		public void run() {
 			if (command == RedisCommand.PUT) {
 				for (String key : elements.keySet()) {
-					if (map.containsKeyLocal(key)) {
-						// update if contain same key with new value
-						map.putLocal(key, elements.get(key));
-					}
+					// mark first, a read in progress must not copy old value
+					map.markUpdated(key);
+					// update if contain same key with new value
+					map.replaceLocal(key, elements.get(key));
 				}
 			}
 
-			if (command == RedisCommand.DELETE) {
+			if (command == RedisCommand.DELETE || command == RedisCommand.EXPIRE) {
 				for (String key : elements.keySet()) {
-					if (map.containsKey(key)) {
-						// update if contain same key with new value
-						map.removeLocal(key);
-					}
+					map.markUpdated(key);
+					// removes expired key too, containsKeyLocal hides it
+					map.removeLocal(key);
 				}
 			}
 
@@ -171,12 +558,73 @@ public class RedisMapEventSubscriber<V> extends JedisPubSub implements Runnable
 				map.clearLocal();
 			}
 
+			if (timestamp != null) {
+				metrics.eventApplied(timestamp < 0 ? -1 : Math.max(0, System.currentTimeMillis() - timestamp));
+			}
+		}
+	}
+
+	/**
+	 * Subscribed, on start and after reconnect. Missed events are replayed
+	 * from stream, or without stream local map is cleared after reconnect
+	 * 
+	 * @param channel
+	 *            channel
+	 * @param subscribedChannels
+	 *            number of channels
+	 */
+	@Override
+	public void onSubscribe(byte[] channel, int subscribedChannels) {
+		if (streamKey != null) {
+			replay();
+		} else if (subscribed) {
+			ex.execute(new SubscriberThread(RedisCommand.CLEAR, null));
 		}
+		subscribed = true;
 	}
 
 	@Override
 	public void run() {
-		subscriber.subscribe(this, channel);
+		byte[] subscribeChannel = streamKey != null ? streamKey : SafeEncoder.encode(channel);
+		while (!closed) {
+			try {
+				subscriber.subscribe(this, subscribeChannel);
+			} catch (Exception e) {
+				if (!closed) {
+					e.printStackTrace();
+				}
+			}
+			if (closed) {
+				return;
+			}
+			// connection lost, subscribe again on new connection
+			try {
+				subscriber.disconnect();
+			} catch (Exception e) {
+				// connection is broken anyway
+			}
+			try {
+				Thread.sleep(RECONNECT_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Stops listening for events and closes redis connection
+	 */
+	public void close() {
+		closed = true;
+		try {
+			if (isSubscribed()) {
+				unsubscribe();
+			}
+		} catch (Exception e) {
+			// connection is closed below anyway
+		}
+		subscriber.close();
+		ex.shutdown();
 	}
 
 }
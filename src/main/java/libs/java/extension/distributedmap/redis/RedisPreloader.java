@@ -0,0 +1,430 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * Fills local map of a {@link DistributedRedisMap} from redis. Priority keys
+ * are read with HMGET, then hashes are read with HSCAN page by page, shard by
+ * shard, until local map is full. Values of a page are decoded on a fork join
+ * pool while next page is read, and put to local map by calling thread.
+ *
+ * A key updated by another process after its page is read is not put (same
+ * version check as a single get), so preload runs while map is in use.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class RedisPreloader<V> {
+
+	/**
+	 * Values decoded by one task without splitting
+	 */
+	private static final int DECODE_THRESHOLD = 64;
+
+	/**
+	 * Map
+	 */
+	private DistributedRedisMap<?, V> map;
+
+	/**
+	 * Shards of map
+	 */
+	private RedisShard<V>[] shards;
+
+	/**
+	 * Hash keys of map
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Value codec
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Max keys in local map
+	 */
+	private int localKeyLimit;
+
+	/**
+	 * Keys read per HSCAN/HMGET
+	 */
+	private int pageSize;
+
+	/**
+	 * Pool decoding values
+	 */
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Constructor
+	 *
+	 * @param map
+	 *            map
+	 * @param shards
+	 *            shards of map
+	 * @param buckets
+	 *            hash keys of map
+	 * @param codec
+	 *            value codec
+	 * @param localKeyLimit
+	 *            max keys in local map
+	 * @param pageSize
+	 *            keys read per HSCAN/HMGET
+	 */
+	public RedisPreloader(DistributedRedisMap<?, V> map, RedisShard<V>[] shards, RedisBuckets buckets,
+			ValueCodec<V> codec, int localKeyLimit, int pageSize) {
+		this.map = map;
+		this.shards = shards;
+		this.buckets = buckets;
+		this.codec = codec;
+		this.localKeyLimit = localKeyLimit;
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Fill local map
+	 *
+	 * @param priorityKeys
+	 *            keys read first, can be null
+	 * @return keys put in local map
+	 */
+	public int preload(Collection<String> priorityKeys) {
+		int loaded = 0;
+		if (priorityKeys != null && !priorityKeys.isEmpty()) {
+			loaded += loadKeys(new ArrayList<>(priorityKeys));
+		}
+		for (RedisShard<V> shard : shards) {
+			for (int bucket = 0; bucket < buckets.size() && !isFull(); bucket++) {
+				loaded += scan(shard, buckets.key(bucket));
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * If local map has reached local key limit
+	 *
+	 * @return true/false
+	 */
+	private boolean isFull() {
+		return map.sizeLocal() >= localKeyLimit;
+	}
+
+	/**
+	 * Read keys page by page with HMGET, per shard
+	 *
+	 * @param keys
+	 *            keys
+	 * @return keys put in local map
+	 */
+	private int loadKeys(List<String> keys) {
+		int loaded = 0;
+		for (int from = 0; from < keys.size() && !isFull(); from += pageSize) {
+			List<String> page = keys.subList(from, Math.min(keys.size(), from + pageSize));
+			List<Long> versions = new ArrayList<>();
+			for (String key : page) {
+				// taken before read, a update after it prevents stale copy
+				versions.add(map.localVersion(key));
+			}
+			List<List<String>> shardKeys = new ArrayList<>();
+			List<List<Long>> shardVersions = new ArrayList<>();
+			map.groupByShard(page, versions, shardKeys, shardVersions);
+			for (int i = 0; i < shardKeys.size(); i++) {
+				List<String> read = shardKeys.get(i);
+				if (read.isEmpty()) {
+					continue;
+				}
+				RedisBucketRead bucketRead = new RedisBucketRead(buckets, read);
+				try (Jedis jedis = shards[i].getPool().getResource()) {
+					Pipeline pipeline = jedis.pipelined();
+					bucketRead.send(pipeline);
+					pipeline.sync();
+				}
+				List<byte[]> values = bucketRead.values();
+				Page<V> decoded = new Page<V>(codec, map.getMetrics(), read.toArray(new String[read.size()]),
+						values.toArray(new byte[values.size()][]), 0, values.size());
+				pool.invoke(decoded);
+				List<Long> readVersions = shardVersions.get(i);
+				for (int j = 0; j < decoded.keys.length && !isFull(); j++) {
+					if (decoded.decoded[j] != null
+							&& map.putLocalIfCurrent(decoded.keys[j], decoded.decoded[j], readVersions.get(j))) {
+						loaded++;
+					}
+				}
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Read a hash with HSCAN, decoding a page while next page is read
+	 *
+	 * @param shard
+	 *            shard
+	 * @param key
+	 *            hash key
+	 * @return keys put in local map
+	 */
+	private int scan(RedisShard<V> shard, byte[] key) {
+		int loaded = 0;
+		ScanParams params = new ScanParams().count(pageSize);
+		byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+		Page<V> decoding = null;
+		long[] decodingVersions = null;
+		try (Jedis jedis = shard.getPool().getResource()) {
+			do {
+				// taken before read, a update after it prevents stale copy
+				long[] versions = map.localVersions();
+				ScanResult<Map.Entry<byte[], byte[]>> result = jedis.hscan(key, cursor, params);
+				cursor = result.getCursorAsBytes();
+				Page<V> page = Page.of(codec, map.getMetrics(), result.getResult());
+				ForkJoinTask<Void> task = pool.submit(page);
+				if (decoding != null) {
+					loaded += put(decoding, decodingVersions);
+				}
+				task.join();
+				decoding = page;
+				decodingVersions = versions;
+			} while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY) && !isFull());
+		}
+		if (decoding != null) {
+			loaded += put(decoding, decodingVersions);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Put decoded values of page to local map, until local map is full
+	 *
+	 * @param page
+	 *            decoded page
+	 * @param versions
+	 *            local versions taken before page was read
+	 * @return keys put
+	 */
+	private int put(Page<V> page, long[] versions) {
+		int loaded = 0;
+		for (int i = 0; i < page.keys.length && !isFull(); i++) {
+			V value = page.decoded[i];
+			String key = page.keys[i];
+			if (value != null && map.putLocalIfCurrent(key, value, map.localVersion(versions, key))) {
+				loaded++;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Save keys to file, e.g. keys of local map on close, to be preloaded first
+	 * by next run
+	 *
+	 * @param file
+	 *            file
+	 * @param keys
+	 *            keys
+	 */
+	public static void saveKeys(File file, Collection<String> keys) {
+		List<String> copy = new ArrayList<>(keys);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(copy.size());
+			for (String key : copy) {
+				byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Load keys saved by {@link #saveKeys(File, Collection)}
+	 *
+	 * @param file
+	 *            file
+	 * @return keys, empty if file is not available
+	 */
+	public static List<String> loadKeys(File file) {
+		if (!file.isFile()) {
+			return Collections.emptyList();
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int count = in.readInt();
+			List<String> keys = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				keys.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+			return keys;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Keys and encoded values of a page, decoded in parallel by splitting page
+	 *
+	 * @param <V>
+	 *            value
+	 */
+	private static class Page<V> extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Value codec
+		 */
+		private final ValueCodec<V> codec;
+
+		/**
+		 * Measurements of map, decode failures are recorded
+		 */
+		private final MapMetrics metrics;
+
+		/**
+		 * Keys of page
+		 */
+		private final String[] keys;
+
+		/**
+		 * Encoded values, null if key is not available
+		 */
+		private final byte[][] values;
+
+		/**
+		 * Decoded values, null if not available or not decodable
+		 */
+		private final V[] decoded;
+
+		/**
+		 * Range decoded by this task
+		 */
+		private final int from, to;
+
+		/**
+		 * Constructor
+		 *
+		 * @param codec
+		 *            value codec
+		 * @param metrics
+		 *            measurements of map
+		 * @param keys
+		 *            keys
+		 * @param values
+		 *            encoded values
+		 * @param from
+		 *            first index decoded
+		 * @param to
+		 *            index after last decoded
+		 */
+		@SuppressWarnings("unchecked")
+		Page(ValueCodec<V> codec, MapMetrics metrics, String[] keys, byte[][] values, int from, int to) {
+			this(codec, metrics, keys, values, (V[]) new Object[keys.length], from, to);
+		}
+
+		/**
+		 * Constructor of sub task
+		 *
+		 * @param codec
+		 *            value codec
+		 * @param metrics
+		 *            measurements of map
+		 * @param keys
+		 *            keys
+		 * @param values
+		 *            encoded values
+		 * @param decoded
+		 *            decoded values, shared by sub tasks
+		 * @param from
+		 *            first index decoded
+		 * @param to
+		 *            index after last decoded
+		 */
+		private Page(ValueCodec<V> codec, MapMetrics metrics, String[] keys, byte[][] values, V[] decoded,
+				int from, int to) {
+			this.codec = codec;
+			this.metrics = metrics;
+			this.keys = keys;
+			this.values = values;
+			this.decoded = decoded;
+			this.from = from;
+			this.to = to;
+		}
+
+		/**
+		 * Page of HSCAN result
+		 *
+		 * @param codec
+		 *            value codec
+		 * @param metrics
+		 *            measurements of map
+		 * @param fields
+		 *            fields and values
+		 * @return page
+		 */
+		static <V> Page<V> of(ValueCodec<V> codec, MapMetrics metrics, List<Map.Entry<byte[], byte[]>> fields) {
+			String[] keys = new String[fields.size()];
+			byte[][] values = new byte[fields.size()][];
+			Iterator<Map.Entry<byte[], byte[]>> it = fields.iterator();
+			for (int i = 0; i < keys.length; i++) {
+				Map.Entry<byte[], byte[]> field = it.next();
+				keys[i] = new String(field.getKey(), StandardCharsets.UTF_8);
+				values[i] = field.getValue();
+			}
+			return new Page<V>(codec, metrics, keys, values, 0, keys.length);
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > DECODE_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Page<V>(codec, metrics, keys, values, decoded, from, middle),
+						new Page<V>(codec, metrics, keys, values, decoded, middle, to));
+				return;
+			}
+			for (int i = from; i < to; i++) {
+				if (values[i] == null) {
+					continue;
+				}
+				try {
+					decoded[i] = codec.decode(values[i]);
+				} catch (Exception e) {
+					e.printStackTrace();
+					metrics.decodeError();
+				}
+			}
+		}
+	}
+
+}
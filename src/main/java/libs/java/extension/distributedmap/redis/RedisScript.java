@@ -0,0 +1,85 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Lua script run by EVALSHA. SHA1 of script is computed once, script body is
+ * sent to a node only when node does not have it (NOSCRIPT reply, e.g. first
+ * run or after restart of node), so each run sends only SHA1 and arguments.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisScript {
+
+	/**
+	 * Script body
+	 */
+	private final byte[] script;
+
+	/**
+	 * Hex SHA1 of script
+	 */
+	private final byte[] sha;
+
+	/**
+	 * Constructor
+	 *
+	 * @param script
+	 *            Lua script
+	 */
+	public RedisScript(String script) {
+		this.script = SafeEncoder.encode(script);
+		this.sha = SafeEncoder.encode(sha1(this.script));
+	}
+
+	/**
+	 * Run script
+	 *
+	 * @param jedis
+	 *            redis connection
+	 * @param keys
+	 *            KEYS of script
+	 * @param args
+	 *            ARGV of script
+	 * @return reply of script
+	 */
+	public Object eval(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+		try {
+			return jedis.evalsha(sha, keys, args);
+		} catch (JedisDataException e) {
+			if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+				throw e;
+			}
+			jedis.scriptLoad(script);
+			return jedis.evalsha(sha, keys, args);
+		}
+	}
+
+	/**
+	 * Hex SHA1 of bytes
+	 *
+	 * @param bytes
+	 *            bytes
+	 * @return lower case hex
+	 */
+	private static String sha1(byte[] bytes) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import libs.java.extension.distributedmap.DistributedMap;
+import libs.java.extension.distributedmap.DistributedMapConfig;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Part of a map stored on one redis node. A shard keeps its keys in hash
+ * "name" (or bucket hashes, See {@link RedisBuckets}) of its node and has its
+ * own connection pool, event publisher and subscriber (events of a key go
+ * through the node storing it), expiry and write behind buffer. A map not
+ * sharded has one shard.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class RedisShard<V> {
+
+	/**
+	 * Node id, "host:port"
+	 */
+	private String id;
+
+	/**
+	 * Pool of jedis clients for node
+	 */
+	private JedisPool pool;
+
+	/**
+	 * Subscriber of map events from node
+	 */
+	private RedisMapEventSubscriber<V> subscriber;
+
+	/**
+	 * Publisher of map events to node
+	 */
+	private RedisMapEventPublisher<V> publisher;
+
+	/**
+	 * Expiry of keys of shard
+	 */
+	private RedisExpiry expiry;
+
+	/**
+	 * Buffer of writes in write behind mode, null otherwise
+	 */
+	private RedisWriteBehindBuffer<V> writeBehind;
+
+	/**
+	 * Sender of async operations, null until async view is used
+	 */
+	private volatile RedisAsyncDispatcher dispatcher;
+
+	/**
+	 * Guards creation of dispatcher
+	 */
+	private final ReentrantLock dispatcherLock = new ReentrantLock();
+
+	/**
+	 * Map name
+	 */
+	private String name;
+
+	/**
+	 * Creates shard and connects to node
+	 *
+	 * @param name
+	 *            map name, channel
+	 * @param buckets
+	 *            hash keys of map
+	 * @param map
+	 *            map, local keys are updated by events
+	 * @param codec
+	 *            value codec
+	 * @param host
+	 *            redis host
+	 * @param port
+	 *            redis port
+	 * @param password
+	 *            password of redis if any
+	 * @param config
+	 *            settings of map
+	 * @param origin
+	 *            id of map instance, set in published events
+	 * @param position
+	 *            stream id of last event applied to local map (e.g. of a
+	 *            snapshot), events after it are replayed, null if not known
+	 * @param metrics
+	 *            measurements of map
+	 */
+	public RedisShard(String name, RedisBuckets buckets, DistributedMap<String, V> map, ValueCodec<V> codec,
+			String host, int port, String password, DistributedMapConfig config, long origin, String position,
+			MapMetrics metrics) {
+		this.id = host + ":" + port;
+		this.name = name;
+		JedisPoolConfig poolConfig = new JedisPoolConfig();
+		poolConfig.setMaxTotal(config.getPoolMaxTotal());
+		poolConfig.setMaxIdle(config.getPoolMaxIdle());
+		poolConfig.setMinIdle(config.getPoolMinIdle());
+		pool = new JedisPool(poolConfig, host, port, config.getTimeout(), password);
+
+		// New jedis client, subscription keeps connection for itself, so it
+		// is not taken from pool
+		Jedis subscriberJedis = new Jedis(host, port, config.getTimeout());
+		if (password != null) {
+			subscriberJedis.auth(password);
+		}
+		subscriber = new RedisMapEventSubscriber<V>(name, map, codec, subscriberJedis, origin,
+				config.isStreamEvents() ? pool : null, metrics);
+		subscriber.setPosition(position);
+		subscriber.init();
+		publisher = new RedisMapEventPublisher<V>(name, pool, config.isLegacyEvents(), origin,
+				config.getPublishWindowMillis(), config.getPublishBatchSize(),
+				config.isStreamEvents() ? config.getStreamMaxLength() : 0, metrics);
+
+		expiry = new RedisExpiry(name, buckets, pool, map, publisher, config.getExpirySweepMillis());
+		if (config.isExpiryEnabled() || config.getDefaultTtlMillis() > 0) {
+			expiry.enable();
+		}
+		if (config.isWriteBehind()) {
+			writeBehind = new RedisWriteBehindBuffer<V>(name, buckets, pool, codec, publisher, expiry,
+					config.getWriteBehindMaxEntries(), config.getWriteBehindFlushMillis(), metrics);
+		}
+	}
+
+	/**
+	 * Subscriber of map events from node
+	 *
+	 * @return subscriber
+	 */
+	public RedisMapEventSubscriber<V> getSubscriber() {
+		return subscriber;
+	}
+
+	/**
+	 * Node id
+	 *
+	 * @return "host:port"
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Pool of jedis clients for node
+	 *
+	 * @return pool
+	 */
+	public JedisPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Publisher of map events to node
+	 *
+	 * @return publisher
+	 */
+	public RedisMapEventPublisher<V> getPublisher() {
+		return publisher;
+	}
+
+	/**
+	 * Expiry of keys of shard
+	 *
+	 * @return expiry
+	 */
+	public RedisExpiry getExpiry() {
+		return expiry;
+	}
+
+	/**
+	 * Buffer of writes
+	 *
+	 * @return buffer or null if not in write behind mode
+	 */
+	public RedisWriteBehindBuffer<V> getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Sender of async operations to node, started on first call
+	 *
+	 * @return dispatcher
+	 */
+	public RedisAsyncDispatcher getDispatcher() {
+		RedisAsyncDispatcher out = dispatcher;
+		if (out != null) {
+			return out;
+		}
+		dispatcherLock.lock();
+		try {
+			if (dispatcher == null) {
+				dispatcher = new RedisAsyncDispatcher(name + "-" + id, pool);
+			}
+			return dispatcher;
+		} finally {
+			dispatcherLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes buffered mutations to node in write behind mode
+	 */
+	public void flush() {
+		if (writeBehind != null) {
+			writeBehind.flush();
+		}
+	}
+
+	/**
+	 * Stops async operations, writes, expiry, event publisher and subscriber and closes
+	 * connections
+	 */
+	public void close() {
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+		if (writeBehind != null) {
+			writeBehind.close();
+		}
+		expiry.close();
+		subscriber.close();
+		publisher.close();
+		pool.close();
+	}
+
+}
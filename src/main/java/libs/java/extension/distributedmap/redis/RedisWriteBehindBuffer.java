@@ -0,0 +1,488 @@
+package libs.java.extension.distributedmap.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+import libs.java.extension.distributedmap.metrics.MapOperation;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Buffer of pending map mutations for write behind mode. Mutations are
+ * coalesced per key (only last put/remove of a key is kept) and written to
+ * redis in a single pipeline (HMSET + HDEL per hash of map), followed by one event per command
+ * for all keys of the flush. Flush happens when buffer reaches max entries,
+ * every flush interval, or on explicit {@link #flush()}.
+ *
+ * Mutations of a failed flush are kept and retried by timer. While redis is
+ * not available, buffer does not grow beyond max entries (twice max entries
+ * counting mutations of failed flush), mutations of new keys are rejected.
+ *
+ * @author Kuldeep
+ *
+ * @param <V>
+ *            value
+ */
+public class RedisWriteBehindBuffer<V> {
+
+	/**
+	 * Pending mutation of a key
+	 *
+	 * @param <V>
+	 *            value
+	 */
+	public static class Pending<V> {
+		/**
+		 * Value to put
+		 */
+		private final V value;
+
+		/**
+		 * Key is removed
+		 */
+		private final boolean removed;
+
+		/**
+		 * Expiry time of put key, 0 if key does not expire
+		 */
+		private final long expireAt;
+
+		/**
+		 * Constructor
+		 *
+		 * @param value
+		 *            value to put
+		 * @param removed
+		 *            true if key is removed
+		 * @param expireAt
+		 *            expiry time in epoch milliseconds, 0 if key does not
+		 *            expire
+		 */
+		Pending(V value, boolean removed, long expireAt) {
+			this.value = value;
+			this.removed = removed;
+			this.expireAt = expireAt;
+		}
+
+		/**
+		 * If key is removed
+		 *
+		 * @return true/false
+		 */
+		public boolean isRemoved() {
+			return removed;
+		}
+
+		/**
+		 * Value to put, null if removed
+		 *
+		 * @return value
+		 */
+		public V getValue() {
+			return value;
+		}
+	}
+
+	/**
+	 * Mutations not yet taken by flush, guarded by lock
+	 */
+	private Map<String, Pending<V>> pending = new LinkedHashMap<>();
+
+	/**
+	 * Mutations being written by flush, visible to readers until written
+	 */
+	private volatile Map<String, Pending<V>> flushing = new HashMap<>();
+
+	/**
+	 * Guards pending
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Only one flush at a time, keeps order of writes of a key
+	 */
+	private final ReentrantLock flushLock = new ReentrantLock();
+
+	/**
+	 * Map name
+	 */
+	private String name;
+
+	/**
+	 * Redis hash keys
+	 */
+	private RedisBuckets buckets;
+
+	/**
+	 * Redis connection pool
+	 */
+	private JedisPool pool;
+
+	/**
+	 * Value codec
+	 */
+	private ValueCodec<V> codec;
+
+	/**
+	 * Event publisher
+	 */
+	private RedisMapEventPublisher<V> publisher;
+
+	/**
+	 * Max pending keys before caller flushes
+	 */
+	private int maxEntries;
+
+	/**
+	 * Timer flush
+	 */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * Expiry of keys
+	 */
+	private RedisExpiry expiry;
+
+	/**
+	 * Measurements of map, failed flushes and rejected mutations are recorded
+	 */
+	private MapMetrics metrics;
+
+	/**
+	 * Set when a flush fails, cleared by a successful flush
+	 */
+	private volatile boolean failed;
+
+	/**
+	 * Constructor, starts timer flush
+	 *
+	 * @param name
+	 *            map name
+	 * @param buckets
+	 *            redis hash keys
+	 * @param pool
+	 *            redis connection pool
+	 * @param codec
+	 *            value codec
+	 * @param publisher
+	 *            event publisher
+	 * @param expiry
+	 *            expiry of keys
+	 * @param maxEntries
+	 *            max pending keys, caller putting more keys flushes
+	 * @param flushMillis
+	 *            flush interval in milliseconds
+	 * @param metrics
+	 *            measurements of map
+	 */
+	public RedisWriteBehindBuffer(String name, RedisBuckets buckets, JedisPool pool, ValueCodec<V> codec,
+			RedisMapEventPublisher<V> publisher, RedisExpiry expiry, int maxEntries, long flushMillis,
+			MapMetrics metrics) {
+		this.metrics = metrics;
+		this.expiry = expiry;
+		this.name = name;
+		this.buckets = buckets;
+		this.pool = pool;
+		this.codec = codec;
+		this.publisher = publisher;
+		this.maxEntries = maxEntries;
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "write-behind-" + RedisWriteBehindBuffer.this.name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Buffer put of key. Caller updates local map and then calls
+	 * {@link #flushIfFull()}
+	 *
+	 * @param key
+	 *            key
+	 * @param value
+	 *            value
+	 * @param expireAt
+	 *            expiry time in epoch milliseconds, 0 if key does not expire
+	 */
+	public void put(String key, V value, long expireAt) {
+		add(key, new Pending<V>(value, false, expireAt));
+	}
+
+	/**
+	 * Buffer remove of key. Caller updates local map and then calls
+	 * {@link #flushIfFull()}
+	 *
+	 * @param key
+	 *            key
+	 */
+	public void remove(String key) {
+		add(key, new Pending<V>(null, true, 0));
+	}
+
+	/**
+	 * Add mutation
+	 *
+	 * @param key
+	 *            key
+	 * @param mutation
+	 *            mutation
+	 * @throws IllegalStateException
+	 *             if buffer is full and last flush failed
+	 */
+	private void add(String key, Pending<V> mutation) {
+		lock.lock();
+		try {
+			if (failed && pending.size() >= maxEntries && !pending.containsKey(key)) {
+				// redis not available, don't buffer without limit
+				metrics.error(mutation.isRemoved() ? MapOperation.REMOVE : MapOperation.PUT);
+				throw new IllegalStateException("Write behind buffer of " + name + " is full, redis not available");
+			}
+			pending.put(key, mutation);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flush in caller thread if buffer has reached max entries. After a
+	 * failed flush, flush is left to timer, failure is not thrown to callers
+	 * whose mutation is already buffered
+	 */
+	public void flushIfFull() {
+		if (failed) {
+			return;
+		}
+		boolean full;
+		lock.lock();
+		try {
+			full = pending.size() >= maxEntries;
+		} finally {
+			lock.unlock();
+		}
+		if (full) {
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				// kept for timer flush
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Pending mutation of key, not yet written to redis
+	 *
+	 * @param key
+	 *            key
+	 * @return mutation or null if nothing pending for key
+	 */
+	public Pending<V> get(String key) {
+		Pending<V> out;
+		lock.lock();
+		try {
+			out = pending.get(key);
+		} finally {
+			lock.unlock();
+		}
+		if (out == null) {
+			out = flushing.get(key);
+		}
+		return out;
+	}
+
+	/**
+	 * Drops all pending mutations, waits for flush in progress
+	 */
+	public void clear() {
+		flushLock.lock();
+		try {
+			lock.lock();
+			try {
+				pending.clear();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Write all pending mutations to redis and publish events. Mutations are
+	 * kept for next flush if write fails
+	 */
+	public void flush() {
+		flushLock.lock();
+		try {
+			Map<String, Pending<V>> batch;
+			lock.lock();
+			try {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new LinkedHashMap<>();
+				flushing = batch;
+			} finally {
+				lock.unlock();
+			}
+			try {
+				write(batch);
+				failed = false;
+			} catch (RuntimeException e) {
+				failed = true;
+				recordError(batch);
+				// keep for next flush, unless updated again meanwhile
+				lock.lock();
+				try {
+					for (Map.Entry<String, Pending<V>> entry : batch.entrySet()) {
+						if (!pending.containsKey(entry.getKey())) {
+							pending.put(entry.getKey(), entry.getValue());
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+				throw e;
+			} finally {
+				flushing = new HashMap<>();
+			}
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	/**
+	 * Record failed write of batch, per operation buffered
+	 *
+	 * @param batch
+	 *            mutations
+	 */
+	private void recordError(Map<String, Pending<V>> batch) {
+		boolean puts = false, removes = false;
+		for (Pending<V> mutation : batch.values()) {
+			if (mutation.isRemoved()) {
+				removes = true;
+			} else {
+				puts = true;
+			}
+			if (puts && removes) {
+				break;
+			}
+		}
+		if (puts) {
+			metrics.error(MapOperation.PUT);
+		}
+		if (removes) {
+			metrics.error(MapOperation.REMOVE);
+		}
+	}
+
+	/**
+	 * Write batch to redis in one pipeline and publish events
+	 *
+	 * @param batch
+	 *            mutations
+	 */
+	private void write(Map<String, Pending<V>> batch) {
+		List<Map<byte[], byte[]>> toPut = new ArrayList<>();
+		List<List<byte[]>> toRemove = new ArrayList<>();
+		for (int i = 0; i < buckets.size(); i++) {
+			toPut.add(null);
+			toRemove.add(null);
+		}
+		Map<String, byte[]> putEvents = new HashMap<>();
+		Map<String, byte[]> removeEvents = new HashMap<>();
+		for (Map.Entry<String, Pending<V>> entry : batch.entrySet()) {
+			Pending<V> mutation = entry.getValue();
+			int bucket = buckets.bucket(entry.getKey());
+			if (mutation.isRemoved()) {
+				if (toRemove.get(bucket) == null) {
+					toRemove.set(bucket, new ArrayList<byte[]>());
+				}
+				toRemove.get(bucket).add(SafeEncoder.encode(entry.getKey()));
+				removeEvents.put(entry.getKey(), null);
+				continue;
+			}
+			try {
+				byte[] value = codec.encode(mutation.getValue());
+				if (toPut.get(bucket) == null) {
+					toPut.set(bucket, new HashMap<byte[], byte[]>());
+				}
+				toPut.get(bucket).put(SafeEncoder.encode(entry.getKey()), value);
+				putEvents.put(entry.getKey(), value);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		try (Jedis jedis = pool.getResource()) {
+			Pipeline pipeline = jedis.pipelined();
+			for (int bucket = 0; bucket < buckets.size(); bucket++) {
+				if (toPut.get(bucket) != null) {
+					pipeline.hmset(buckets.key(bucket), toPut.get(bucket));
+				}
+				if (toRemove.get(bucket) != null) {
+					byte[][] keys = toRemove.get(bucket).toArray(new byte[0][]);
+					pipeline.hdel(buckets.key(bucket), keys);
+					expiry.onRemove(pipeline, bucket, keys);
+				}
+			}
+			if (expiry.isEnabled()) {
+				for (Map.Entry<String, Pending<V>> entry : batch.entrySet()) {
+					if (putEvents.containsKey(entry.getKey())) {
+						expiry.onPut(pipeline, buckets.bucket(entry.getKey()), SafeEncoder.encode(entry.getKey()),
+								entry.getValue().expireAt);
+					}
+				}
+			}
+			pipeline.sync();
+		}
+		if (!putEvents.isEmpty()) {
+			publisher.publishMultiple(RedisCommand.PUT, putEvents);
+		}
+		if (!removeEvents.isEmpty()) {
+			publisher.publishMultiple(RedisCommand.DELETE, removeEvents);
+		}
+	}
+
+	/**
+	 * Stops timer and flushes pending mutations. A failed flush is reported,
+	 * not thrown, so map is closed anyway, pending mutations are lost
+	 */
+	public void close() {
+		scheduler.shutdown();
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
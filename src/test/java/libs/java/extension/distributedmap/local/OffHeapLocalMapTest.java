@@ -0,0 +1,310 @@
+package libs.java.extension.distributedmap.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import libs.java.extension.distributedmap.codec.ValueCodec;
+
+/**
+ * Tests of index and slab handling of {@link OffHeapLocalMap}: backward shift
+ * delete on probe chains wrapping around end of index, compaction of slabs
+ * and index growth under concurrent load. Maps of one segment are used, so
+ * all keys share an index of 16 initial slots.
+ *
+ * @author Kuldeep
+ *
+ */
+public class OffHeapLocalMapTest {
+
+	/**
+	 * Initial slots of a segment index
+	 */
+	private static final int INITIAL_SLOTS = 16;
+
+	/**
+	 * UTF-8 string codec
+	 */
+	private static class StringCodec implements ValueCodec<String> {
+
+		@Override
+		public byte[] encode(String value) throws IOException {
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] data) throws IOException {
+			return new String(data, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] data, int offset, int length) throws IOException {
+			return new String(data, offset, length, StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Map of one segment
+	 *
+	 * @param slabBytes
+	 *            slab size
+	 * @return map
+	 */
+	private static OffHeapLocalMap<String> map(int slabBytes) {
+		return new OffHeapLocalMap<String>(new StringCodec(), 1, slabBytes);
+	}
+
+	/**
+	 * Home slot of key in index of initial size, same spread as map
+	 *
+	 * @param key
+	 *            key
+	 * @return slot
+	 */
+	private static int home(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (INITIAL_SLOTS - 1);
+	}
+
+	/**
+	 * Keys with home slot
+	 *
+	 * @param slot
+	 *            home slot
+	 * @param count
+	 *            keys wanted
+	 * @return keys
+	 */
+	private static List<String> keysAt(int slot, int count) {
+		List<String> keys = new ArrayList<>();
+		for (int i = 0; keys.size() < count; i++) {
+			String key = "key-" + i;
+			if (home(key) == slot) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	@Test
+	public void deleteHeadOfChainWrappingAround() {
+		OffHeapLocalMap<String> map = map(1024);
+		// three keys of last slot occupy 15, 0 and 1, a key of slot 0 goes
+		// to 2
+		List<String> last = keysAt(INITIAL_SLOTS - 1, 3);
+		String first = keysAt(0, 1).get(0);
+		for (String key : last) {
+			map.put(key, "v" + key);
+		}
+		map.put(first, "v" + first);
+
+		assertEquals("v" + last.get(0), map.remove(last.get(0)));
+
+		assertNull(map.get(last.get(0)));
+		for (String key : last.subList(1, 3)) {
+			assertEquals("v" + key, map.get(key));
+		}
+		assertEquals("v" + first, map.get(first));
+		assertEquals(3, map.size());
+	}
+
+	@Test
+	public void deleteKeyAfterWrapKeepsKeysHomedBeforeHole() {
+		OffHeapLocalMap<String> map = map(1024);
+		// slot 14: a; 15: b; 0: c (home 15); 1: d (home 14); 2: e (home 0)
+		List<String> at14 = keysAt(14, 2);
+		List<String> at15 = keysAt(15, 2);
+		String at0 = keysAt(0, 1).get(0);
+		map.put(at14.get(0), "a");
+		map.put(at15.get(0), "b");
+		map.put(at15.get(1), "c");
+		map.put(at14.get(1), "d");
+		map.put(at0, "e");
+
+		// hole at 0 after wrap, d (home 14) and e (home 0) must move back
+		map.remove(at15.get(1));
+
+		assertEquals("a", map.get(at14.get(0)));
+		assertEquals("b", map.get(at15.get(0)));
+		assertNull(map.get(at15.get(1)));
+		assertEquals("d", map.get(at14.get(1)));
+		assertEquals("e", map.get(at0));
+
+		// removing rest in any order leaves no key behind
+		map.remove(at14.get(0));
+		assertEquals("d", map.get(at14.get(1)));
+		map.remove(at0);
+		map.remove(at15.get(0));
+		assertEquals("d", map.get(at14.get(1)));
+		map.remove(at14.get(1));
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.offHeapBytes());
+	}
+
+	@Test
+	public void deleteEveryPositionOfWrappedChain() {
+		List<String> keys = new ArrayList<>(keysAt(13, 4));
+		keys.addAll(keysAt(15, 3));
+		keys.addAll(keysAt(0, 2));
+		for (int removed = 0; removed < keys.size(); removed++) {
+			OffHeapLocalMap<String> map = map(1024);
+			for (String key : keys) {
+				map.put(key, "v" + key);
+			}
+			map.remove(keys.get(removed));
+			for (int i = 0; i < keys.size(); i++) {
+				if (i == removed) {
+					assertFalse(map.containsKey(keys.get(i)));
+				} else {
+					assertEquals("v" + keys.get(i), map.get(keys.get(i)));
+				}
+			}
+			assertEquals(keys.size() - 1, map.size());
+		}
+	}
+
+	@Test
+	public void compactionAfterReplaceAndRemove() {
+		int slabBytes = 1024;
+		OffHeapLocalMap<String> map = map(slabBytes);
+		Map<String, String> expected = new HashMap<>();
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			value.append('x');
+		}
+		for (int round = 0; round < 1000; round++) {
+			for (int i = 0; i < 10; i++) {
+				String key = "key-" + i;
+				String v = round + value.toString();
+				map.put(key, v);
+				expected.put(key, v);
+			}
+			String removed = "key-" + (round % 10);
+			map.remove(removed);
+			expected.remove(removed);
+		}
+		// about 1 MB written, live data is less than one slab
+		assertTrue("Allocated " + map.offHeapBytes(), map.offHeapBytes() <= 4 * slabBytes);
+		assertEquals(expected, new HashMap<>(map));
+
+		for (String key : expected.keySet()) {
+			map.remove(key);
+		}
+		assertTrue(map.isEmpty());
+		assertEquals(0, map.offHeapBytes());
+	}
+
+	@Test
+	public void compactionKeepsRecordsLargerThanSlab() {
+		OffHeapLocalMap<String> map = map(64);
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 500; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		map.put("large", large.toString());
+		for (int i = 0; i < 200; i++) {
+			map.put("small", "value-" + i);
+		}
+		assertEquals(large.toString(), map.get("large"));
+		assertEquals("value-199", map.get("small"));
+	}
+
+	@Test
+	public void randomOperationsMatchHashMap() {
+		OffHeapLocalMap<String> map = map(512);
+		Map<String, String> expected = new HashMap<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 200000; i++) {
+			String key = "key-" + random.nextInt(2000);
+			switch (random.nextInt(4)) {
+			case 0:
+			case 1:
+				String value = "value-" + i;
+				assertEquals(expected.put(key, value), map.put(key, value));
+				break;
+			case 2:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(expected.get(key), map.get(key));
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		assertEquals(expected, new HashMap<>(map));
+	}
+
+	@Test
+	public void resizeUnderConcurrentLoad() throws InterruptedException {
+		final OffHeapLocalMap<String> map = map(4096);
+		final int threads = 8;
+		final int keys = 5000;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			Thread worker = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < keys; i++) {
+							String key = thread + "-" + i;
+							map.put(key, "first-" + key);
+							if (i % 3 == 0) {
+								map.remove(key);
+							} else if (i % 3 == 1) {
+								map.put(key, "second-" + key);
+							}
+							// own keys stay readable while others grow index
+							String check = thread + "-" + (i / 2);
+							String read = map.get(check);
+							if ((i / 2) % 3 != 0 && read == null) {
+								throw new AssertionError("Missing " + check);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		int live = 0;
+		for (int t = 0; t < threads; t++) {
+			for (int i = 0; i < keys; i++) {
+				String key = t + "-" + i;
+				if (i % 3 == 0) {
+					assertNull(map.get(key));
+				} else {
+					assertEquals((i % 3 == 1 ? "second-" : "first-") + key, map.get(key));
+					live++;
+				}
+			}
+		}
+		assertEquals(live, map.size());
+	}
+
+}
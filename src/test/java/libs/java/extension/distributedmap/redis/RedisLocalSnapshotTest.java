@@ -0,0 +1,298 @@
+package libs.java.extension.distributedmap.redis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import libs.java.extension.distributedmap.AsyncDistributedMap;
+import libs.java.extension.distributedmap.DistributedMap;
+import libs.java.extension.distributedmap.codec.ValueCodec;
+import libs.java.extension.distributedmap.metrics.DefaultMapMetrics;
+import libs.java.extension.distributedmap.metrics.MapMetrics;
+
+/**
+ * Tests of {@link RedisLocalSnapshot}: local map and stream positions written
+ * by save are read back by load, snapshots of other nodes and damaged files
+ * are not used.
+ *
+ * @author Kuldeep
+ *
+ */
+public class RedisLocalSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * UTF-8 string codec, "bad" can't be encoded or decoded
+	 */
+	private static class StringCodec implements ValueCodec<String> {
+
+		@Override
+		public byte[] encode(String value) throws IOException {
+			if ("bad".equals(value)) {
+				throw new IOException("Not encodable");
+			}
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String decode(byte[] data) throws IOException {
+			return decode(data, 0, data.length);
+		}
+
+		@Override
+		public String decode(byte[] data, int offset, int length) throws IOException {
+			String value = new String(data, offset, length, StandardCharsets.UTF_8);
+			if ("bad".equals(value)) {
+				throw new IOException("Not decodable");
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * Map of local keys only
+	 */
+	private static class LocalMap extends DistributedMap<String, String> {
+
+		private final MapMetrics metrics = new DefaultMapMetrics();
+
+		LocalMap() {
+			super("snapshot-test", null, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public int size() {
+			return sizeLocal();
+		}
+
+		@Override
+		public boolean isEmpty() {
+			return isEmptyLocal();
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return containsKeyLocal(key);
+		}
+
+		@Override
+		public boolean containsValue(Object value) {
+			return containsValueLocal(value);
+		}
+
+		@Override
+		public String get(Object key) {
+			return getLocal(key);
+		}
+
+		@Override
+		public String put(String key, String value) {
+			return putLocal(key, value);
+		}
+
+		@Override
+		public String remove(Object key) {
+			return removeLocal(key);
+		}
+
+		@Override
+		public void putAll(Map<? extends String, ? extends String> m) {
+			putAllLocal(m);
+		}
+
+		@Override
+		public void clear() {
+			clearLocal();
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return keySetLocal();
+		}
+
+		@Override
+		public Collection<String> values() {
+			return valuesLocal();
+		}
+
+		@Override
+		public Set<Map.Entry<String, String>> entrySet() {
+			return entrySetLocal();
+		}
+
+		@Override
+		public String put(String key, String value, long ttlMillis) {
+			return putLocal(key, value);
+		}
+
+		@Override
+		public Map<String, String> getAll(Collection<String> keys) {
+			Map<String, String> values = new HashMap<>();
+			for (String key : keys) {
+				String value = getLocal(key);
+				if (value != null) {
+					values.put(key, value);
+				}
+			}
+			return values;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public AsyncDistributedMap<String> async() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public int preload(Collection<String> priorityKeys) {
+			return 0;
+		}
+
+		@Override
+		public MapMetrics getMetrics() {
+			return metrics;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Stream positions of two nodes
+	 *
+	 * @return positions
+	 */
+	private static Map<String, String> positions() {
+		Map<String, String> positions = new LinkedHashMap<>();
+		positions.put("host1:6379", "1700000000000-1");
+		positions.put("host2:6379", "1700000000005-0");
+		return positions;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		File file = new File(folder.getRoot(), "map.snapshot");
+		LocalMap saved = new LocalMap();
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 200000; i++) {
+			large.append((char) ('a' + i % 26));
+		}
+		for (int i = 0; i < 10000; i++) {
+			saved.putLocal("key-" + i, "value-" + i);
+		}
+		saved.putLocal("large", large.toString());
+		saved.putLocal("empty", "");
+		saved.putLocal("unicode-\u00e9", "\u20ac\u00e9");
+		new RedisLocalSnapshot<String>("test", file, saved, new StringCodec()).save(positions());
+		assertTrue(file.isFile());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		LocalMap loaded = new LocalMap();
+		Map<String, String> read = new RedisLocalSnapshot<String>("test", file, loaded, new StringCodec())
+				.load(Arrays.asList("host2:6379", "host1:6379"));
+
+		assertEquals(positions(), read);
+		assertEquals(toMap(saved), toMap(loaded));
+		assertEquals(large.toString(), loaded.getLocal("large"));
+	}
+
+	@Test
+	public void valuesNotEncodableAreSkipped() throws IOException {
+		File file = new File(folder.getRoot(), "map.snapshot");
+		LocalMap saved = new LocalMap();
+		saved.putLocal("a", "1");
+		saved.putLocal("b", "bad");
+		saved.putLocal("c", "3");
+		new RedisLocalSnapshot<String>("test", file, saved, new StringCodec()).save(positions());
+
+		LocalMap loaded = new LocalMap();
+		new RedisLocalSnapshot<String>("test", file, loaded, new StringCodec()).load(positions().keySet());
+
+		assertEquals(2, loaded.sizeLocal());
+		assertEquals("1", loaded.getLocal("a"));
+		assertNull(loaded.getLocal("b"));
+		assertEquals("3", loaded.getLocal("c"));
+	}
+
+	@Test
+	public void snapshotOfOtherNodesIsNotLoaded() throws IOException {
+		File file = new File(folder.getRoot(), "map.snapshot");
+		LocalMap saved = new LocalMap();
+		saved.putLocal("a", "1");
+		new RedisLocalSnapshot<String>("test", file, saved, new StringCodec()).save(positions());
+
+		LocalMap loaded = new LocalMap();
+		Map<String, String> read = new RedisLocalSnapshot<String>("test", file, loaded, new StringCodec())
+				.load(Arrays.asList("host1:6379"));
+
+		assertNull(read);
+		assertTrue(loaded.isEmptyLocal());
+	}
+
+	@Test
+	public void truncatedSnapshotIsNotLoaded() throws IOException {
+		File file = new File(folder.getRoot(), "map.snapshot");
+		LocalMap saved = new LocalMap();
+		for (int i = 0; i < 100; i++) {
+			saved.putLocal("key-" + i, "value-" + i);
+		}
+		new RedisLocalSnapshot<String>("test", file, saved, new StringCodec()).save(positions());
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(bytes, 0, bytes.length - 3);
+		}
+
+		LocalMap loaded = new LocalMap();
+		Map<String, String> read = new RedisLocalSnapshot<String>("test", file, loaded, new StringCodec())
+				.load(positions().keySet());
+
+		assertNull(read);
+		assertTrue(loaded.isEmptyLocal());
+	}
+
+	@Test
+	public void missingSnapshotIsNotLoaded() {
+		LocalMap loaded = new LocalMap();
+		assertNull(new RedisLocalSnapshot<String>("test", new File(folder.getRoot(), "none"), loaded,
+				new StringCodec()).load(positions().keySet()));
+	}
+
+	/**
+	 * Copy of local entries
+	 *
+	 * @param map
+	 *            map
+	 * @return entries
+	 */
+	private static Map<String, String> toMap(LocalMap map) {
+		Map<String, String> copy = new HashMap<>();
+		for (Map.Entry<String, String> entry : map.entrySetLocal()) {
+			copy.put(entry.getKey(), entry.getValue());
+		}
+		return copy;
+	}
+
+}